@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import dev.morling.onebrc.CalculateAverage_emersonmde_live.Snapshot;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Point-in-time copy of per-station aggregates. Temperatures are fixed-point tenths of a degree, as parsed; every
+ * station is consistent on its own (min, max, sum and count describe the same rows).
+ *
+ * @param sequence increases with every snapshot taken from the same source
+ * @param stations stations with at least one row, in the order they first appeared
+ */
+public record AggregateSnapshot(long sequence, List<Station> stations) {
+
+    public AggregateSnapshot {
+        stations = List.copyOf(stations);
+    }
+
+    /**
+     * Aggregate of one station.
+     *
+     * @param id the station id of its source
+     * @param version changes whenever the station's stats do
+     */
+    public record Station(int id, String name, long min, long max, long sum, long count, long version) {
+
+        public double minDegrees() {
+            return min / 10.0;
+        }
+
+        public double meanDegrees() {
+            return (sum / 10.0) / count;
+        }
+
+        public double maxDegrees() {
+            return max / 10.0;
+        }
+    }
+
+    /**
+     * Copies a snapshot of a live store, with station ids being the store's slots.
+     */
+    static AggregateSnapshot of(long sequence, Snapshot snapshot) {
+        List<Station> stations = new ArrayList<>(snapshot.size);
+        for (int i = 0; i < snapshot.size; i++) {
+            stations.add(new Station(snapshot.slots[i], new String(snapshot.names[i], StandardCharsets.UTF_8),
+                    snapshot.mins[i], snapshot.maxs[i], snapshot.sums[i], snapshot.counts[i], snapshot.versions[i]));
+        }
+        return new AggregateSnapshot(sequence, stations);
+    }
+
+    public Optional<Station> station(String name) {
+        return stations.stream().filter(station -> station.name().equals(name)).findFirst();
+    }
+
+    public long rows() {
+        return stations.stream().mapToLong(Station::count).sum();
+    }
+
+    /**
+     * The stations in the usual {name=min/mean/max, ...} form, sorted by name.
+     */
+    public String format() {
+        TreeMap<String, String> result = new TreeMap<>();
+        for (Station station : stations) {
+            result.put(station.name(), round(station.minDegrees()) + "/" + round(station.meanDegrees()) + "/" + round(station.maxDegrees()));
+        }
+        return result.toString();
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+}
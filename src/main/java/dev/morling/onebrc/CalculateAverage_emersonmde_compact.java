@@ -0,0 +1,362 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Each station, key and stats, is packed into one 32 byte slot of off-heap memory instead of one object per station:
+ *
+ *   0  short min          (tenths)
+ *   2  short max          (tenths)
+ *   4  int   count        (unsigned, carries into a lazily allocated wide counter on overflow)
+ *   8  long  sum          (tenths)
+ *  16  long  nameAddress  (into the mapped file, 0 for a free slot)
+ *  24  int   hash
+ *  28  int   nameLength
+ *
+ * Two stations share a cache line and a lookup touches exactly one line of the table (plus the name in the file),
+ * compared to one MeasurementAggregator (three doubles, a long, an object header and the map entry pointing to it)
+ * per station. Names are not copied.
+ */
+public class CalculateAverage_emersonmde_compact {
+    private static final String FILE = "./measurements.txt";
+
+    private static final long SEMICOLONS = 0x3B3B3B3B3B3B3B3BL;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int numberOfChunks = Runtime.getRuntime().availableProcessors();
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long[] chunks = getSegments(fileChannel, numberOfChunks);
+
+            CompactStore result = IntStream.range(0, chunks.length - 1).mapToObj(chunkIndex -> {
+                CompactStore store = new CompactStore(1 << 10);
+                parseLoop(chunks[chunkIndex], chunks[chunkIndex + 1], store);
+                return store;
+            }).parallel().reduce((left, right) -> {
+                left.mergeFrom(right);
+                right.close();
+                return left;
+            }).orElseGet(() -> new CompactStore(1 << 10));
+
+            TreeMap<String, String> output = new TreeMap<>();
+            for (int slot = 0; slot < result.capacity; slot++) {
+                if (result.isUsed(slot)) {
+                    output.put(result.name(slot), result.format(slot));
+                }
+            }
+            result.close();
+            System.out.println(output);
+        }
+    }
+
+    private static long[] getSegments(FileChannel fileChannel, int numberOfChunks) throws IOException {
+        long fileSize = fileChannel.size();
+        long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
+        long[] chunks = new long[numberOfChunks + 1];
+        long mappedAddress = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+        chunks[0] = mappedAddress;
+        long endAddress = mappedAddress + fileSize;
+        for (int i = 1; i < numberOfChunks; ++i) {
+            long chunkAddress = mappedAddress + i * segmentSize;
+            // Align to first row start.
+            while (chunkAddress < endAddress && UNSAFE.getByte(chunkAddress++) != '\n') {
+                // nop
+            }
+            chunks[i] = Math.min(chunkAddress, endAddress);
+        }
+        chunks[numberOfChunks] = endAddress;
+        return chunks;
+    }
+
+    private static void parseLoop(long chunkStart, long chunkEnd, CompactStore store) {
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // Scan for ';' delimiter 8 bytes at a time, falling back to single bytes near the end of the chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = (hash ^ (word & ((lowest >>> 7) - 1))) * HASH_MULTIPLIER;
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            scanPtr++;
+
+            // Parse number.
+            int number;
+            byte sign = UNSAFE.getByte(scanPtr++);
+            if (sign == '-') {
+                number = UNSAFE.getByte(scanPtr++) - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+                number = -number;
+            }
+            else {
+                number = sign - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+            }
+
+            store.add(store.slot(nameAddress, nameLength, (int) (hash ^ (hash >>> 32))), number);
+
+            // Skip new line.
+            scanPtr++;
+        }
+    }
+
+    private static boolean nameEquals(long left, long right, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (UNSAFE.getLong(left + i) != UNSAFE.getLong(right + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (UNSAFE.getByte(left + i) != UNSAFE.getByte(right + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Open addressing table of 32 byte off-heap slots, see the class comment for the slot layout. Grows by doubling at
+     * a load factor of 0.5.
+     */
+    static final class CompactStore implements AutoCloseable {
+        static final int SLOT_SIZE = 32;
+        private static final int MIN = 0;
+        private static final int MAX = 2;
+        private static final int COUNT = 4;
+        private static final int SUM = 8;
+        private static final int NAME_ADDRESS = 16;
+        private static final int HASH = 24;
+        private static final int NAME_LENGTH = 28;
+
+        int capacity;
+        int size;
+        // Number of times the 32 bit count of a slot wrapped around, only allocated once that happens.
+        long[] countCarries;
+        Arena arena;
+        long slots;
+
+        CompactStore(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            this.capacity = capacity;
+            this.countCarries = null;
+            this.arena = Arena.ofShared();
+            // Zeroed, so every slot starts out free.
+            MemorySegment segment = arena.allocate((long) capacity * SLOT_SIZE, 64);
+            this.slots = segment.address();
+        }
+
+        private long address(int slot) {
+            return slots + (long) slot * SLOT_SIZE;
+        }
+
+        boolean isUsed(int slot) {
+            return UNSAFE.getLong(address(slot) + NAME_ADDRESS) != 0;
+        }
+
+        int slot(long nameAddress, int nameLength, int hash) {
+            int mask = capacity - 1;
+            int slot = hash & mask;
+            long address;
+            long existing;
+            while ((existing = UNSAFE.getLong((address = address(slot)) + NAME_ADDRESS)) != 0) {
+                if (UNSAFE.getInt(address + HASH) == hash && UNSAFE.getInt(address + NAME_LENGTH) == nameLength
+                        && nameEquals(existing, nameAddress, nameLength)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if ((size + 1) * 2 > capacity) {
+                grow();
+                return slot(nameAddress, nameLength, hash);
+            }
+            size++;
+            UNSAFE.putShort(address + MIN, Short.MAX_VALUE);
+            UNSAFE.putShort(address + MAX, Short.MIN_VALUE);
+            UNSAFE.putInt(address + COUNT, 0);
+            UNSAFE.putLong(address + SUM, 0);
+            UNSAFE.putLong(address + NAME_ADDRESS, nameAddress);
+            UNSAFE.putInt(address + HASH, hash);
+            UNSAFE.putInt(address + NAME_LENGTH, nameLength);
+            return slot;
+        }
+
+        void add(int slot, int value) {
+            long address = address(slot);
+            UNSAFE.putShort(address + MIN, (short) Math.min(UNSAFE.getShort(address + MIN), value));
+            UNSAFE.putShort(address + MAX, (short) Math.max(UNSAFE.getShort(address + MAX), value));
+            int count = UNSAFE.getInt(address + COUNT) + 1;
+            UNSAFE.putInt(address + COUNT, count);
+            if (count == 0) {
+                carry(slot, 1);
+            }
+            UNSAFE.putLong(address + SUM, UNSAFE.getLong(address + SUM) + value);
+        }
+
+        private void carry(int slot, long carries) {
+            if (countCarries == null) {
+                countCarries = new long[capacity];
+            }
+            countCarries[slot] += carries;
+        }
+
+        int min(int slot) {
+            return UNSAFE.getShort(address(slot) + MIN);
+        }
+
+        int max(int slot) {
+            return UNSAFE.getShort(address(slot) + MAX);
+        }
+
+        long count(int slot) {
+            long count = Integer.toUnsignedLong(UNSAFE.getInt(address(slot) + COUNT));
+            return countCarries == null ? count : (countCarries[slot] << 32) + count;
+        }
+
+        long sum(int slot) {
+            return UNSAFE.getLong(address(slot) + SUM);
+        }
+
+        String name(int slot) {
+            long address = address(slot);
+            byte[] bytes = new byte[UNSAFE.getInt(address + NAME_LENGTH)];
+            UNSAFE.copyMemory(null, UNSAFE.getLong(address + NAME_ADDRESS), bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        String format(int slot) {
+            return round(min(slot) / 10.0) + "/" + round((sum(slot) / 10.0) / count(slot)) + "/" + round(max(slot) / 10.0);
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 10.0) / 10.0;
+        }
+
+        // Combine stats of a whole other store into this one, slot by slot.
+        void mergeFrom(CompactStore other) {
+            for (int otherSlot = 0; otherSlot < other.capacity; otherSlot++) {
+                if (!other.isUsed(otherSlot)) {
+                    continue;
+                }
+                long otherAddress = other.address(otherSlot);
+                int slot = slot(UNSAFE.getLong(otherAddress + NAME_ADDRESS), UNSAFE.getInt(otherAddress + NAME_LENGTH), UNSAFE.getInt(otherAddress + HASH));
+                merge(slot, other.min(otherSlot), other.max(otherSlot), other.count(otherSlot), other.sum(otherSlot));
+            }
+        }
+
+        private void merge(int slot, int min, int max, long count, long sum) {
+            long address = address(slot);
+            UNSAFE.putShort(address + MIN, (short) Math.min(UNSAFE.getShort(address + MIN), min));
+            UNSAFE.putShort(address + MAX, (short) Math.max(UNSAFE.getShort(address + MAX), max));
+            long total = count(slot) + count;
+            UNSAFE.putInt(address + COUNT, (int) total);
+            if (total >>> 32 != 0 || countCarries != null) {
+                carry(slot, (total >>> 32) - (countCarries == null ? 0 : countCarries[slot]));
+            }
+            UNSAFE.putLong(address + SUM, UNSAFE.getLong(address + SUM) + sum);
+        }
+
+        private void grow() {
+            long[] oldCarries = countCarries;
+            Arena oldArena = arena;
+            long oldSlots = slots;
+            int oldCapacity = capacity;
+
+            allocate(oldCapacity * 2);
+            int mask = capacity - 1;
+            for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+                long oldAddress = oldSlots + (long) oldSlot * SLOT_SIZE;
+                if (UNSAFE.getLong(oldAddress + NAME_ADDRESS) == 0) {
+                    continue;
+                }
+                int slot = UNSAFE.getInt(oldAddress + HASH) & mask;
+                while (isUsed(slot)) {
+                    slot = (slot + 1) & mask;
+                }
+                UNSAFE.copyMemory(oldAddress, address(slot), SLOT_SIZE);
+                if (oldCarries != null && oldCarries[oldSlot] != 0) {
+                    carry(slot, oldCarries[oldSlot]);
+                }
+            }
+            oldArena.close();
+        }
+
+        @Override
+        public void close() {
+            arena.close();
+        }
+    }
+}
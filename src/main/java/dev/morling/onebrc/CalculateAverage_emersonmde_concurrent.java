@@ -0,0 +1,617 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * All workers aggregate into one shared open addressing table instead of private tables that are merged at the end.
+ *
+ * Slots are claimed by CAS-ing a (hash, length) tag into place, the station name is published right after. Stats
+ * are striped: each worker updates its own stripe of min/max/sum/count with atomic adds and CAS loops, so writers of
+ * a hot station do not all contend on the same cache line. Memory is capacity x stripes instead of threads x keys and
+ * there is no merge phase.
+ *
+ * Run with --bench [rows] to compare against per-thread tables plus merge across thread counts and cardinalities.
+ */
+public class CalculateAverage_emersonmde_concurrent {
+    private static final String FILE = "./measurements.txt";
+    private static final int CAPACITY = Integer.getInteger("concurrent.capacity", 1 << 17);
+    private static final int MAX_STRIPES = Integer.getInteger("concurrent.stripes", 8);
+
+    private static final long SEMICOLONS = 0x3B3B3B3B3B3B3B3BL;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--bench")) {
+            Benchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000);
+            return;
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long address = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            SharedTable table = new SharedTable(CAPACITY, stripesFor(threads));
+            runShared(table, getSegments(address, fileSize, threads));
+
+            TreeMap<String, String> result = new TreeMap<>();
+            table.forEach((name, min, max, sum, count) -> result.put(new String(name, StandardCharsets.UTF_8), format(min, max, sum, count)));
+            System.out.println(result);
+        }
+    }
+
+    static int stripesFor(int threads) {
+        return Math.min(MAX_STRIPES, threads <= 1 ? 1 : Integer.highestOneBit(threads - 1) << 1);
+    }
+
+    private static String format(long min, long max, long sum, long count) {
+        return round(min / 10.0) + "/" + round((sum / 10.0) / count) + "/" + round(max / 10.0);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    static long[] getSegments(long address, long size, int numberOfChunks) {
+        long segmentSize = (size + numberOfChunks - 1) / numberOfChunks;
+        long[] chunks = new long[numberOfChunks + 1];
+        chunks[0] = address;
+        long endAddress = address + size;
+        for (int i = 1; i < numberOfChunks; ++i) {
+            long chunkAddress = address + i * segmentSize;
+            // Align to first row start.
+            while (chunkAddress < endAddress && UNSAFE.getByte(chunkAddress++) != '\n') {
+                // nop
+            }
+            chunks[i] = Math.min(chunkAddress, endAddress);
+        }
+        chunks[numberOfChunks] = endAddress;
+        return chunks;
+    }
+
+    private static void runShared(SharedTable table, long[] chunks) throws InterruptedException {
+        Thread[] workers = new Thread[chunks.length - 1];
+        for (int i = 0; i < workers.length; i++) {
+            int index = i;
+            workers[i] = new Thread(() -> parseLoop(chunks[index], chunks[index + 1], table.writer(index)));
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * Receives every parsed row of a chunk.
+     */
+    abstract static class Sink {
+        abstract void add(long nameAddress, int nameLength, int hash, int value);
+    }
+
+    static void parseLoop(long chunkStart, long chunkEnd, Sink sink) {
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // Scan for ';' delimiter 8 bytes at a time, falling back to single bytes near the end of the chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = (hash ^ (word & ((lowest >>> 7) - 1))) * HASH_MULTIPLIER;
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            scanPtr++;
+
+            // Parse number.
+            int number;
+            byte sign = UNSAFE.getByte(scanPtr++);
+            if (sign == '-') {
+                number = UNSAFE.getByte(scanPtr++) - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+                number = -number;
+            }
+            else {
+                number = sign - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+            }
+
+            sink.add(nameAddress, nameLength, (int) (hash ^ (hash >>> 32)), number);
+
+            // Skip new line.
+            scanPtr++;
+        }
+    }
+
+    /**
+     * parseLoop for input from elsewhere, e.g. a file named or bytes sent by a client, which may be malformed: a
+     * chunk that doesn't end with a new line or a row without ';' fails with an IllegalArgumentException, and no row
+     * reads outside of the chunk. Rows of well-formed input yield the same values as with parseLoop.
+     */
+    static void parseLoopChecked(long chunkStart, long chunkEnd, Sink sink) {
+        if (chunkEnd > chunkStart && UNSAFE.getByte(chunkEnd - 1) != '\n') {
+            throw new IllegalArgumentException("Input doesn't end with a new line");
+        }
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // As in parseLoop, but the byte-wise scan stops at the new line that ends every chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = (hash ^ (word & ((lowest >>> 7) - 1))) * HASH_MULTIPLIER;
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        if (scanPtr + 1 == chunkEnd) {
+                            throw new IllegalArgumentException("Row without a ';' delimiter");
+                        }
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            scanPtr++;
+
+            // The ';' is never the last byte, so the sign is inside; the rest goes byte by byte near the end.
+            int number;
+            byte sign = UNSAFE.getByte(scanPtr++);
+            if (scanPtr + 4 > chunkEnd) {
+                boolean negative = sign == '-';
+                number = negative || sign == '.' ? 0 : sign - '0';
+                while (scanPtr < chunkEnd && (b = UNSAFE.getByte(scanPtr)) != '\n') {
+                    if (b != '.') {
+                        number = number * 10 + (b - '0');
+                    }
+                    scanPtr++;
+                }
+                number = negative ? -number : number;
+            }
+            else if (sign == '-') {
+                number = UNSAFE.getByte(scanPtr++) - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+                number = -number;
+            }
+            else {
+                number = sign - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+            }
+
+            sink.add(nameAddress, nameLength, (int) (hash ^ (hash >>> 32)), number);
+
+            // Skip new line.
+            scanPtr++;
+        }
+    }
+
+    static boolean nameEquals(byte[] name, long address, int length) {
+        if (name.length != length) {
+            return false;
+        }
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (UNSAFE.getLong(name, Unsafe.ARRAY_BYTE_BASE_OFFSET + i) != UNSAFE.getLong(address + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (name[i] != UNSAFE.getByte(address + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte[] copyName(long address, int length) {
+        byte[] name = new byte[length];
+        UNSAFE.copyMemory(null, address, name, Unsafe.ARRAY_BYTE_BASE_OFFSET, length);
+        return name;
+    }
+
+    @FunctionalInterface
+    interface EntryConsumer {
+        void accept(byte[] name, long min, long max, long sum, long count);
+    }
+
+    /**
+     * Fixed-capacity open addressing table shared by all writers.
+     *
+     * A slot is claimed by CAS-ing its tag from 0 to (hash, length), then the name is published with a release store.
+     * Writers probing past a claimed slot only wait for the name when the tag matches their own. Stats live in
+     * stripe-major blocks of four longs (min, max, sum, count) per slot.
+     */
+    static final class SharedTable {
+        private static final VarHandle TAGS = MethodHandles.arrayElementVarHandle(long[].class);
+        private static final VarHandle NAMES = MethodHandles.arrayElementVarHandle(byte[][].class);
+        private static final VarHandle STATS = MethodHandles.arrayElementVarHandle(long[].class);
+
+        final int capacity;
+        final int mask;
+        final int stripes;
+        final long[] tags;
+        final byte[][] names;
+        final long[] stats;
+
+        SharedTable(int capacity, int stripes) {
+            if (Integer.bitCount(capacity) != 1 || Integer.bitCount(stripes) != 1) {
+                throw new IllegalArgumentException("Capacity and stripes must be powers of two");
+            }
+            if ((long) capacity * stripes * 4 > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Capacity " + capacity + " with " + stripes + " stripes is too large");
+            }
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.stripes = stripes;
+            this.tags = new long[capacity];
+            this.names = new byte[capacity][];
+            this.stats = new long[capacity * stripes * 4];
+            for (int i = 0; i < stats.length; i += 4) {
+                stats[i] = Long.MAX_VALUE;
+                stats[i + 1] = Long.MIN_VALUE;
+            }
+        }
+
+        Sink writer(int worker) {
+            int stripe = worker & (stripes - 1);
+            return new Sink() {
+                @Override
+                void add(long nameAddress, int nameLength, int hash, int value) {
+                    SharedTable.this.add(stripe, nameAddress, nameLength, hash, value);
+                }
+            };
+        }
+
+        int slot(long nameAddress, int nameLength, int hash) {
+            long tag = ((long) hash << 32) | (nameLength + 1);
+            int slot = hash & mask;
+            for (int probes = 0; probes < capacity; probes++, slot = (slot + 1) & mask) {
+                long current = (long) TAGS.getAcquire(tags, slot);
+                if (current == 0) {
+                    if (TAGS.compareAndSet(tags, slot, 0L, tag)) {
+                        NAMES.setRelease(names, slot, copyName(nameAddress, nameLength));
+                        return slot;
+                    }
+                    current = (long) TAGS.getAcquire(tags, slot);
+                }
+                if (current == tag) {
+                    byte[] name;
+                    while ((name = (byte[]) NAMES.getAcquire(names, slot)) == null) {
+                        Thread.onSpinWait();
+                    }
+                    if (nameEquals(name, nameAddress, nameLength)) {
+                        return slot;
+                    }
+                }
+            }
+            throw new IllegalStateException("Shared table is full, capacity is " + capacity);
+        }
+
+        void add(int stripe, long nameAddress, int nameLength, int hash, int value) {
+            int base = (stripe * capacity + slot(nameAddress, nameLength, hash)) << 2;
+            long current = (long) STATS.getOpaque(stats, base);
+            while (value < current && !STATS.weakCompareAndSet(stats, base, current, (long) value)) {
+                current = (long) STATS.getOpaque(stats, base);
+            }
+            current = (long) STATS.getOpaque(stats, base + 1);
+            while (value > current && !STATS.weakCompareAndSet(stats, base + 1, current, (long) value)) {
+                current = (long) STATS.getOpaque(stats, base + 1);
+            }
+            STATS.getAndAdd(stats, base + 2, (long) value);
+            STATS.getAndAdd(stats, base + 3, 1L);
+        }
+
+        // Only consistent once all writers are done.
+        void forEach(EntryConsumer consumer) {
+            for (int slot = 0; slot < capacity; slot++) {
+                byte[] name = (byte[]) NAMES.getAcquire(names, slot);
+                if (name == null) {
+                    continue;
+                }
+                long min = Long.MAX_VALUE;
+                long max = Long.MIN_VALUE;
+                long sum = 0;
+                long count = 0;
+                for (int stripe = 0; stripe < stripes; stripe++) {
+                    int base = (stripe * capacity + slot) << 2;
+                    min = Math.min(min, (long) STATS.getAcquire(stats, base));
+                    max = Math.max(max, (long) STATS.getAcquire(stats, base + 1));
+                    sum += (long) STATS.getAcquire(stats, base + 2);
+                    count += (long) STATS.getAcquire(stats, base + 3);
+                }
+                consumer.accept(name, min, max, sum, count);
+            }
+        }
+    }
+
+    /**
+     * Single-threaded growable table, the per-thread-and-merge baseline for the benchmark.
+     */
+    static final class LocalTable extends Sink {
+        private int[] hashes = new int[1 << 10];
+        private byte[][] names = new byte[1 << 10][];
+        private int[] mins = new int[1 << 10];
+        private int[] maxs = new int[1 << 10];
+        private long[] sums = new long[1 << 10];
+        private long[] counts = new long[1 << 10];
+        private int size;
+
+        @Override
+        void add(long nameAddress, int nameLength, int hash, int value) {
+            int mask = names.length - 1;
+            int slot = hash & mask;
+            byte[] name;
+            while ((name = names[slot]) != null) {
+                if (hashes[slot] == hash && nameEquals(name, nameAddress, nameLength)) {
+                    mins[slot] = Math.min(mins[slot], value);
+                    maxs[slot] = Math.max(maxs[slot], value);
+                    sums[slot] += value;
+                    counts[slot]++;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            insert(slot, hash, copyName(nameAddress, nameLength), value, value, value, 1);
+        }
+
+        void merge(LocalTable other) {
+            for (int i = 0; i < other.names.length; i++) {
+                byte[] otherName = other.names[i];
+                if (otherName == null) {
+                    continue;
+                }
+                int hash = other.hashes[i];
+                int mask = names.length - 1;
+                int slot = hash & mask;
+                byte[] name;
+                while ((name = names[slot]) != null && !(hashes[slot] == hash && Arrays.equals(name, otherName))) {
+                    slot = (slot + 1) & mask;
+                }
+                if (name == null) {
+                    insert(slot, hash, otherName, other.mins[i], other.maxs[i], other.sums[i], other.counts[i]);
+                }
+                else {
+                    mins[slot] = Math.min(mins[slot], other.mins[i]);
+                    maxs[slot] = Math.max(maxs[slot], other.maxs[i]);
+                    sums[slot] += other.sums[i];
+                    counts[slot] += other.counts[i];
+                }
+            }
+        }
+
+        private void insert(int slot, int hash, byte[] name, int min, int max, long sum, long count) {
+            hashes[slot] = hash;
+            names[slot] = name;
+            mins[slot] = min;
+            maxs[slot] = max;
+            sums[slot] = sum;
+            counts[slot] = count;
+            if (++size * 2 > names.length) {
+                grow();
+            }
+        }
+
+        private void grow() {
+            int[] oldHashes = hashes;
+            byte[][] oldNames = names;
+            int[] oldMins = mins;
+            int[] oldMaxs = maxs;
+            long[] oldSums = sums;
+            long[] oldCounts = counts;
+            int length = oldNames.length * 2;
+            hashes = new int[length];
+            names = new byte[length][];
+            mins = new int[length];
+            maxs = new int[length];
+            sums = new long[length];
+            counts = new long[length];
+            for (int i = 0; i < oldNames.length; i++) {
+                if (oldNames[i] != null) {
+                    int slot = oldHashes[i] & (length - 1);
+                    while (names[slot] != null) {
+                        slot = (slot + 1) & (length - 1);
+                    }
+                    hashes[slot] = oldHashes[i];
+                    names[slot] = oldNames[i];
+                    mins[slot] = oldMins[i];
+                    maxs[slot] = oldMaxs[i];
+                    sums[slot] = oldSums[i];
+                    counts[slot] = oldCounts[i];
+                }
+            }
+        }
+
+        void forEach(EntryConsumer consumer) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i] != null) {
+                    consumer.accept(names[i], mins[i], maxs[i], sums[i], counts[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Shared table versus per-thread tables plus a sequential merge, on synthetic in-memory data so that only
+     * aggregation is measured. Reports the best of three runs after one warm-up run per configuration.
+     */
+    static final class Benchmark {
+        private static final int[] CARDINALITIES = { 413, 10_000, 100_000, 1_000_000 };
+
+        static void run(int rows) throws InterruptedException {
+            int maxThreads = Runtime.getRuntime().availableProcessors();
+            System.out.printf("rows=%,d, cores=%d, max stripes=%d%n", rows, maxThreads, MAX_STRIPES);
+            System.out.printf("%10s %8s %8s %12s %12s %8s%n", "keys", "threads", "stripes", "shared ms", "merged ms", "faster");
+            StringBuilder crossovers = new StringBuilder();
+            for (int keys : CARDINALITIES) {
+                int crossover = -1;
+                try (var arena = Arena.ofShared()) {
+                    MemorySegment data = generate(arena, rows, names(keys));
+                    for (int threads = 1; threads <= Math.max(2, maxThreads * 2); threads *= 2) {
+                        long[] chunks = getSegments(data.address(), data.byteSize(), threads);
+                        int capacity = Integer.highestOneBit(keys * 2 - 1) << 1;
+                        int stripes = stripesFor(threads);
+                        long shared = best(() -> runShared(new SharedTable(capacity, stripes), chunks));
+                        long merged = best(() -> runMerged(chunks));
+                        System.out.printf("%10d %8d %8d %12d %12d %8s%n", keys, threads, stripes, shared, merged, shared < merged ? "shared" : "merged");
+                        if (crossover < 0 && shared < merged) {
+                            crossover = threads;
+                        }
+                    }
+                }
+                crossovers.append(String.format("%,d keys: %s%n", keys,
+                        crossover < 0 ? "merged at every thread count" : "shared from " + crossover + " threads on"));
+            }
+            System.out.print("Crossover, fewest threads at which the shared table wins:\n" + crossovers);
+        }
+
+        private interface Run {
+            void run() throws InterruptedException;
+        }
+
+        private static long best(Run run) throws InterruptedException {
+            run.run();
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < 3; i++) {
+                long start = System.nanoTime();
+                run.run();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            return best / 1_000_000;
+        }
+
+        private static LocalTable runMerged(long[] chunks) throws InterruptedException {
+            LocalTable[] tables = new LocalTable[chunks.length - 1];
+            Thread[] workers = new Thread[tables.length];
+            for (int i = 0; i < workers.length; i++) {
+                int index = i;
+                tables[i] = new LocalTable();
+                workers[i] = new Thread(() -> parseLoop(chunks[index], chunks[index + 1], tables[index]));
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            for (int i = 1; i < tables.length; i++) {
+                tables[0].merge(tables[i]);
+            }
+            return tables[0];
+        }
+
+        static byte[][] names(int keys) {
+            byte[][] names = new byte[keys][];
+            for (int i = 0; i < keys; i++) {
+                names[i] = ("station-" + Integer.toHexString(i * 0x9E3779B1)).getBytes(StandardCharsets.UTF_8);
+            }
+            return names;
+        }
+
+        // Rows with random temperatures, every name appears at least once and random names follow.
+        static MemorySegment generate(Arena arena, int rows, byte[][] names) {
+            int maxNameLength = Arrays.stream(names).mapToInt(name -> name.length).max().orElse(0);
+            MemorySegment data = arena.allocate((long) rows * (maxNameLength + ";-99.9\n".length()));
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long position = 0;
+            for (int i = 0; i < rows; i++) {
+                byte[] name = names[i < names.length ? i : random.nextInt(names.length)];
+                MemorySegment.copy(name, 0, data, ValueLayout.JAVA_BYTE, position, name.length);
+                position += name.length;
+                byte[] value = (";" + random.nextInt(-999, 1000) / 10.0 + "\n").getBytes(StandardCharsets.UTF_8);
+                MemorySegment.copy(value, 0, data, ValueLayout.JAVA_BYTE, position, value.length);
+                position += value.length;
+            }
+            return data.asSlice(0, position);
+        }
+    }
+}
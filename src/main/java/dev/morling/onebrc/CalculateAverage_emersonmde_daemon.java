@@ -0,0 +1,490 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Unsafe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.reflect.Field;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+/**
+ * Keeps the engine resident in a long-lived JVM so repeated queries skip start-up, class loading and JIT warm-up.
+ *
+ * The daemon listens on a Unix domain socket. A request is a command line followed by key=value option lines, sent
+ * by the client before it shuts down its output; the daemon answers with one status byte (0 ok, 1 error) followed by
+ * the UTF-8 result or error message and closes the connection. Commands:
+ *   aggregate   options file=<absolute path> and optionally chunks=<n>
+ *   shutdown    stops the daemon
+ *
+ * Every aggregate request maps its file into its own arena, which is closed once the result has been rendered, so
+ * the daemon doesn't accumulate mappings.
+ *
+ * Usage:
+ *   --serve          runs the daemon in the foreground
+ *   --stop           asks a running daemon to shut down
+ *   [file]           queries the daemon (default ./measurements.txt), running in-process if no daemon listens
+ *
+ * Configuration via system properties:
+ *   daemon.socket    socket path (default ${java.io.tmpdir}/onebrc-emersonmde.sock)
+ *   daemon.warmup    file to aggregate a few times at start-up, so even the first query runs compiled code
+ */
+public class CalculateAverage_emersonmde_daemon {
+    private static final String FILE = "./measurements.txt";
+
+    private static final Path SOCKET = Path.of(System.getProperty("daemon.socket",
+            Path.of(System.getProperty("java.io.tmpdir"), "onebrc-emersonmde.sock").toString()));
+    private static final String WARMUP = System.getProperty("daemon.warmup");
+    private static final int WARMUP_ROUNDS = 5;
+
+    private static final byte OK = 0;
+    private static final byte ERROR = 1;
+
+    private static final long SEMICOLONS = 0x3B3B3B3B3B3B3B3BL;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--serve")) {
+            serve();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--stop")) {
+            String response = request("shutdown\n");
+            if (response == null) {
+                System.err.println("No daemon listening on " + SOCKET);
+            }
+            return;
+        }
+
+        Path file = Path.of(args.length > 0 ? args[0] : FILE).toAbsolutePath();
+        int chunks = Runtime.getRuntime().availableProcessors();
+        String response = request("aggregate\nfile=" + file + "\nchunks=" + chunks + "\n");
+        System.out.println(response != null ? response : aggregate(file, chunks));
+    }
+
+    /**
+     * Sends a request to the daemon and returns the result, or null if no daemon is listening.
+     */
+    private static String request(String request) throws IOException {
+        if (!Files.exists(SOCKET)) {
+            return null;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(SOCKET));
+        }
+        catch (IOException e) {
+            // Stale socket file of a daemon that is gone.
+            return null;
+        }
+        try (channel) {
+            ByteBuffer buffer = ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.shutdownOutput();
+            byte[] response = readFully(channel);
+            if (response.length == 0) {
+                throw new IOException("Daemon closed the connection without a response");
+            }
+            String payload = new String(response, 1, response.length - 1, StandardCharsets.UTF_8);
+            if (response[0] != OK) {
+                throw new IOException("Daemon failed: " + payload);
+            }
+            return payload;
+        }
+    }
+
+    private static void serve() throws IOException {
+        if (WARMUP != null) {
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                aggregate(Path.of(WARMUP), Runtime.getRuntime().availableProcessors());
+            }
+        }
+
+        if (Files.exists(SOCKET)) {
+            // Only a stale socket file may be replaced, never the socket of a daemon that still answers.
+            try {
+                SocketChannel.open(UnixDomainSocketAddress.of(SOCKET)).close();
+            }
+            catch (ConnectException e) {
+                Files.deleteIfExists(SOCKET);
+            }
+            if (Files.exists(SOCKET)) {
+                throw new IOException("A daemon is already listening on " + SOCKET);
+            }
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor()) {
+            server.bind(UnixDomainSocketAddress.of(SOCKET));
+            System.err.println("Listening on " + SOCKET);
+            while (server.isOpen()) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                }
+                catch (IOException e) {
+                    // Closed by a shutdown request.
+                    break;
+                }
+                connections.submit(() -> handle(channel, server));
+            }
+        }
+        finally {
+            Files.deleteIfExists(SOCKET);
+        }
+    }
+
+    private static Void handle(SocketChannel channel, ServerSocketChannel server) throws IOException {
+        try (channel) {
+            byte status = OK;
+            String payload;
+            try {
+                String[] lines = new String(readFully(channel), StandardCharsets.UTF_8).split("\n");
+                Map<String, String> options = new HashMap<>();
+                for (int i = 1; i < lines.length; i++) {
+                    int separator = lines[i].indexOf('=');
+                    if (separator > 0) {
+                        options.put(lines[i].substring(0, separator), lines[i].substring(separator + 1));
+                    }
+                }
+                switch (lines[0]) {
+                    case "aggregate" -> {
+                        String file = options.get("file");
+                        if (file == null) {
+                            throw new IllegalArgumentException("aggregate needs a file option");
+                        }
+                        int chunks = Integer.parseInt(options.getOrDefault("chunks",
+                                String.valueOf(Runtime.getRuntime().availableProcessors())));
+                        payload = aggregate(Path.of(file), Math.max(1, chunks));
+                    }
+                    case "shutdown" -> {
+                        server.close();
+                        payload = "";
+                    }
+                    default -> throw new IllegalArgumentException("Unknown command " + lines[0]);
+                }
+            }
+            catch (Exception e) {
+                status = ERROR;
+                payload = String.valueOf(e);
+            }
+            byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer response = ByteBuffer.allocate(1 + bytes.length).put(status).put(bytes).flip();
+            while (response.hasRemaining()) {
+                channel.write(response);
+            }
+        }
+        return null;
+    }
+
+    private static byte[] readFully(SocketChannel channel) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (channel.read(buffer) >= 0) {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Aggregates the file into the baseline output format. The mapping lives only for the duration of the call.
+     */
+    static String aggregate(Path file, int numberOfChunks) throws IOException {
+        try (Arena arena = Arena.ofShared();
+                var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long mappedAddress = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, arena).address();
+            // Clients pick the file, so a malformed one must fail the request rather than the daemon.
+            if (fileSize > 0 && UNSAFE.getByte(mappedAddress + fileSize - 1) != '\n') {
+                throw new IllegalArgumentException("File doesn't end with a new line: " + file);
+            }
+            long[] chunks = getSegments(mappedAddress, fileSize, numberOfChunks);
+
+            Table result = IntStream.range(0, chunks.length - 1).mapToObj(chunkIndex -> {
+                Table table = new Table(1 << 10);
+                parseLoop(chunks[chunkIndex], chunks[chunkIndex + 1], table);
+                return table;
+            }).parallel().reduce((left, right) -> {
+                left.mergeFrom(right);
+                return left;
+            }).orElseGet(() -> new Table(1 << 10));
+
+            // Names point into the mapping, so render before the arena closes.
+            TreeMap<String, String> output = new TreeMap<>();
+            for (int slot = 0; slot < result.nameAddresses.length; slot++) {
+                if (result.nameAddresses[slot] == 0) {
+                    continue;
+                }
+                output.put(result.name(slot), round(result.mins[slot] / 10.0) + "/"
+                        + round((result.sums[slot] / 10.0) / result.counts[slot]) + "/"
+                        + round(result.maxs[slot] / 10.0));
+            }
+            return output.toString();
+        }
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    private static long[] getSegments(long mappedAddress, long fileSize, int numberOfChunks) {
+        long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
+        long[] chunks = new long[numberOfChunks + 1];
+        chunks[0] = mappedAddress;
+        long endAddress = mappedAddress + fileSize;
+        for (int i = 1; i < numberOfChunks; ++i) {
+            long chunkAddress = mappedAddress + i * segmentSize;
+            // Align to first row start.
+            while (chunkAddress < endAddress && UNSAFE.getByte(chunkAddress++) != '\n') {
+                // nop
+            }
+            chunks[i] = Math.min(chunkAddress, endAddress);
+        }
+        chunks[numberOfChunks] = endAddress;
+        return chunks;
+    }
+
+    private static void parseLoop(long chunkStart, long chunkEnd, Table table) {
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // Scan for ';' delimiter 8 bytes at a time, falling back to single bytes near the end of the chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = (hash ^ (word & ((lowest >>> 7) - 1))) * HASH_MULTIPLIER;
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        if (scanPtr + 1 == chunkEnd) {
+                            throw new IllegalArgumentException("Row without a ';' delimiter");
+                        }
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            scanPtr++;
+
+            // Parse number, byte by byte near the end of the chunk so a short last row can't read past it.
+            int number;
+            byte sign = UNSAFE.getByte(scanPtr++);
+            if (scanPtr + 4 > chunkEnd) {
+                boolean negative = sign == '-';
+                number = negative || sign == '.' ? 0 : sign - '0';
+                while (scanPtr < chunkEnd && (b = UNSAFE.getByte(scanPtr)) != '\n') {
+                    if (b != '.') {
+                        number = number * 10 + (b - '0');
+                    }
+                    scanPtr++;
+                }
+                number = negative ? -number : number;
+            }
+            else if (sign == '-') {
+                number = UNSAFE.getByte(scanPtr++) - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+                number = -number;
+            }
+            else {
+                number = sign - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+            }
+
+            table.add(nameAddress, nameLength, (int) (hash ^ (hash >>> 32)), number);
+
+            // Skip new line.
+            scanPtr++;
+        }
+    }
+
+    private static boolean nameEquals(long left, long right, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (UNSAFE.getLong(left + i) != UNSAFE.getLong(right + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (UNSAFE.getByte(left + i) != UNSAFE.getByte(right + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Growable linear probing table, names point into the mapped file.
+     */
+    private static final class Table {
+        long[] nameAddresses;
+        int[] nameLengths;
+        int[] hashes;
+        int[] mins;
+        int[] maxs;
+        long[] counts;
+        long[] sums;
+        int size;
+
+        Table(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            nameAddresses = new long[capacity];
+            nameLengths = new int[capacity];
+            hashes = new int[capacity];
+            mins = new int[capacity];
+            maxs = new int[capacity];
+            counts = new long[capacity];
+            sums = new long[capacity];
+        }
+
+        private int slot(long nameAddress, int nameLength, int hash) {
+            int mask = nameAddresses.length - 1;
+            int slot = hash & mask;
+            long existing;
+            while ((existing = nameAddresses[slot]) != 0) {
+                if (hashes[slot] == hash && nameLengths[slot] == nameLength && nameEquals(existing, nameAddress, nameLength)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if ((size + 1) * 2 > nameAddresses.length) {
+                grow();
+                return slot(nameAddress, nameLength, hash);
+            }
+            size++;
+            nameAddresses[slot] = nameAddress;
+            nameLengths[slot] = nameLength;
+            hashes[slot] = hash;
+            mins[slot] = Integer.MAX_VALUE;
+            maxs[slot] = Integer.MIN_VALUE;
+            return slot;
+        }
+
+        void add(long nameAddress, int nameLength, int hash, int value) {
+            int slot = slot(nameAddress, nameLength, hash);
+            mins[slot] = Math.min(mins[slot], value);
+            maxs[slot] = Math.max(maxs[slot], value);
+            counts[slot]++;
+            sums[slot] += value;
+        }
+
+        void mergeFrom(Table other) {
+            for (int otherSlot = 0; otherSlot < other.nameAddresses.length; otherSlot++) {
+                if (other.nameAddresses[otherSlot] == 0) {
+                    continue;
+                }
+                int slot = slot(other.nameAddresses[otherSlot], other.nameLengths[otherSlot], other.hashes[otherSlot]);
+                mins[slot] = Math.min(mins[slot], other.mins[otherSlot]);
+                maxs[slot] = Math.max(maxs[slot], other.maxs[otherSlot]);
+                counts[slot] += other.counts[otherSlot];
+                sums[slot] += other.sums[otherSlot];
+            }
+        }
+
+        String name(int slot) {
+            byte[] bytes = new byte[nameLengths[slot]];
+            UNSAFE.copyMemory(null, nameAddresses[slot], bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void grow() {
+            long[] oldNameAddresses = nameAddresses;
+            int[] oldNameLengths = nameLengths;
+            int[] oldHashes = hashes;
+            int[] oldMins = mins;
+            int[] oldMaxs = maxs;
+            long[] oldCounts = counts;
+            long[] oldSums = sums;
+            allocate(oldNameAddresses.length * 2);
+            int mask = nameAddresses.length - 1;
+            for (int oldSlot = 0; oldSlot < oldNameAddresses.length; oldSlot++) {
+                if (oldNameAddresses[oldSlot] == 0) {
+                    continue;
+                }
+                int slot = oldHashes[oldSlot] & mask;
+                while (nameAddresses[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                nameAddresses[slot] = oldNameAddresses[oldSlot];
+                nameLengths[slot] = oldNameLengths[oldSlot];
+                hashes[slot] = oldHashes[oldSlot];
+                mins[slot] = oldMins[oldSlot];
+                maxs[slot] = oldMaxs[oldSlot];
+                counts[slot] = oldCounts[oldSlot];
+                sums[slot] = oldSums[oldSlot];
+            }
+        }
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import dev.morling.onebrc.CalculateAverage_emersonmde_concurrent.LocalTable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Splits an aggregation across worker processes, possibly on other hosts sharing the file system.
+ *
+ * The coordinator maps the file only to align dist.ranges byte ranges (default four per worker) to row starts, then
+ * hands them out over TCP to whichever worker is free. A worker maps just its range, aggregates it with the
+ * concurrent engine's per-thread tables and replies with a binary partial aggregate, which the coordinator merges.
+ * When a worker fails or does not answer within dist.timeout seconds, its range goes back to the queue and the
+ * worker is dropped; partial aggregates are only merged once complete, so nothing is counted twice.
+ *
+ * Wire format, big-endian, several requests per connection:
+ * <pre>
+ * request:  int MAGIC, long start, long end, short path length, path (UTF-8)
+ * response: byte OK, int stations, then per station: short name length, name, short min, short max, long sum, long count
+ *           byte ERROR, modified UTF-8 message
+ * </pre>
+ *
+ * Without arguments, aggregates ./measurements.txt with the workers listed in dist.workers (host:port,...) or, if
+ * unset, with dist.spawn local worker JVMs (default 2). Other modes:
+ * <ul>
+ * <li>--worker [port]: serves ranges on dist.host (default localhost), with dist.threads threads per range</li>
+ * <li>--scale [workers]: times the aggregation with 1 to n spawned single-threaded workers</li>
+ * </ul>
+ * Set dist.dieAfter=n to make the first spawned worker halt on its (n+1)th range, to exercise reassignment.
+ */
+public class CalculateAverage_emersonmde_distributed {
+    private static final String FILE = "./measurements.txt";
+    private static final String WORKERS = System.getProperty("dist.workers");
+    private static final int SPAWN = Integer.getInteger("dist.spawn", 2);
+    private static final int RANGES_PER_WORKER = 4;
+    private static final String RANGES = System.getProperty("dist.ranges");
+    private static final int TIMEOUT = Integer.getInteger("dist.timeout", 60);
+    private static final String HOST = System.getProperty("dist.host", "localhost");
+    private static final int THREADS = Integer.getInteger("dist.threads", Runtime.getRuntime().availableProcessors());
+    private static final int DIE_AFTER = Integer.getInteger("dist.dieAfter", -1);
+    private static final boolean PARENT = Boolean.getBoolean("dist.parent");
+
+    private static final int MAGIC = 0x31425243;
+    private static final byte OK = 0;
+    private static final byte ERROR = 1;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--worker")) {
+            new Worker(args.length > 1 ? Integer.parseInt(args[1]) : 0).serve();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--scale")) {
+            scale(Path.of(FILE), args.length > 1 ? Integer.parseInt(args[1]) : 4);
+            return;
+        }
+
+        Path file = Path.of(FILE).toAbsolutePath();
+        if (WORKERS != null) {
+            List<InetSocketAddress> workers = new ArrayList<>();
+            for (String worker : WORKERS.split(",")) {
+                int separator = worker.lastIndexOf(':');
+                workers.add(new InetSocketAddress(worker.substring(0, separator), Integer.parseInt(worker.substring(separator + 1))));
+            }
+            System.out.println(format(coordinate(file, workers, ranges(workers.size()))));
+            return;
+        }
+        try (LocalWorkers workers = LocalWorkers.spawn(SPAWN, THREADS, DIE_AFTER)) {
+            System.out.println(format(coordinate(file, workers.addresses, ranges(SPAWN))));
+        }
+    }
+
+    private static int ranges(int workers) {
+        return RANGES != null ? Integer.parseInt(RANGES) : workers * RANGES_PER_WORKER;
+    }
+
+    private static String format(Map<String, Partial> result) {
+        StringBuilder out = new StringBuilder("{");
+        for (Map.Entry<String, Partial> entry : result.entrySet()) {
+            if (out.length() > 1) {
+                out.append(", ");
+            }
+            Partial stats = entry.getValue();
+            out.append(entry.getKey()).append('=').append(round(stats.min / 10.0)).append('/')
+                    .append(round((stats.sum / 10.0) / stats.count)).append('/').append(round(stats.max / 10.0));
+        }
+        return out.append('}').toString();
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    /**
+     * Stats of one station over some ranges.
+     */
+    private static final class Partial {
+        int min;
+        int max;
+        long sum;
+        long count;
+
+        Partial(int min, int max, long sum, long count) {
+            this.min = min;
+            this.max = max;
+            this.sum = sum;
+            this.count = count;
+        }
+
+        void merge(Partial other) {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            sum += other.sum;
+            count += other.count;
+        }
+    }
+
+    private record Range(long start, long end) {
+    }
+
+    /**
+     * Aggregates the file with the given workers; one connection, and one outstanding range, per worker.
+     */
+    static Map<String, Partial> coordinate(Path file, List<InetSocketAddress> workers, int numberOfRanges) throws IOException, InterruptedException {
+        BlockingQueue<Range> queue = new LinkedBlockingQueue<>();
+        try (Arena arena = Arena.ofConfined();
+                var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            MemorySegment mapped = fileChannel.map(MapMode.READ_ONLY, 0, size, arena);
+            long[] chunks = CalculateAverage_emersonmde_concurrent.getSegments(mapped.address(), size, numberOfRanges);
+            for (int i = 0; i < numberOfRanges; i++) {
+                if (chunks[i + 1] > chunks[i]) {
+                    queue.add(new Range(chunks[i] - mapped.address(), chunks[i + 1] - mapped.address()));
+                }
+            }
+        }
+
+        String path = file.toString();
+        CountDownLatch done = new CountDownLatch(queue.size());
+        AtomicInteger alive = new AtomicInteger(workers.size());
+        Map<String, Partial> result = new TreeMap<>();
+        Thread[] threads = new Thread[workers.size()];
+        for (int i = 0; i < threads.length; i++) {
+            InetSocketAddress address = workers.get(i);
+            threads[i] = Thread.ofVirtual().start(() -> {
+                Range range = null;
+                try (Socket socket = new Socket()) {
+                    socket.connect(address, TIMEOUT * 1000);
+                    socket.setSoTimeout(TIMEOUT * 1000);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    while (done.getCount() > 0) {
+                        range = queue.poll(100, TimeUnit.MILLISECONDS);
+                        if (range == null) {
+                            continue;
+                        }
+                        writeRequest(out, path, range);
+                        Map<String, Partial> partial = readResponse(in);
+                        synchronized (result) {
+                            partial.forEach((name, stats) -> result.merge(name, stats, (left, right) -> {
+                                left.merge(right);
+                                return left;
+                            }));
+                        }
+                        range = null;
+                        done.countDown();
+                    }
+                }
+                catch (IOException | InterruptedException e) {
+                    System.err.println("Worker " + address + " failed: " + e + (range != null ? ", reassigning " + range : ""));
+                    if (range != null) {
+                        queue.add(range);
+                    }
+                    if (alive.decrementAndGet() == 0) {
+                        // Nobody is left to take the queue: release the coordinator.
+                        while (done.getCount() > 0) {
+                            done.countDown();
+                        }
+                    }
+                }
+            });
+        }
+        done.await();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!queue.isEmpty()) {
+            throw new IOException("All workers failed, " + queue.size() + " ranges left");
+        }
+        return result;
+    }
+
+    private static void writeRequest(DataOutputStream out, String path, Range range) throws IOException {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(MAGIC);
+        out.writeLong(range.start);
+        out.writeLong(range.end);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+        out.flush();
+    }
+
+    private static Map<String, Partial> readResponse(DataInputStream in) throws IOException {
+        byte status = in.readByte();
+        if (status != OK) {
+            throw new IOException("Worker error: " + in.readUTF());
+        }
+        int stations = in.readInt();
+        Map<String, Partial> partial = new TreeMap<>();
+        byte[] name = new byte[256];
+        for (int i = 0; i < stations; i++) {
+            int length = in.readUnsignedShort();
+            if (length > name.length) {
+                name = new byte[length];
+            }
+            in.readFully(name, 0, length);
+            partial.put(new String(name, 0, length, StandardCharsets.UTF_8), new Partial(in.readShort(), in.readShort(), in.readLong(), in.readLong()));
+        }
+        return partial;
+    }
+
+    /**
+     * Serves ranges, one connection per virtual thread.
+     */
+    static final class Worker {
+        private final int port;
+        private final AtomicInteger served = new AtomicInteger();
+
+        Worker(int port) {
+            this.port = port;
+        }
+
+        void serve() throws IOException {
+            try (ServerSocket server = new ServerSocket()) {
+                server.bind(new InetSocketAddress(InetAddress.getByName(HOST), port));
+                // The spawning coordinator reads the port from the first line.
+                System.out.println("port " + server.getLocalPort());
+                System.out.flush();
+                if (PARENT) {
+                    Thread.ofPlatform().daemon().start(() -> {
+                        try {
+                            while (System.in.read() >= 0) {
+                                // Exit with the coordinator, which holds our stdin.
+                            }
+                        }
+                        catch (IOException ignored) {
+                        }
+                        Runtime.getRuntime().halt(0);
+                    });
+                }
+                while (true) {
+                    Socket socket = server.accept();
+                    Thread.ofVirtual().start(() -> handle(socket));
+                }
+            }
+        }
+
+        private void handle(Socket socket) {
+            try (socket) {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                while (true) {
+                    int magic;
+                    try {
+                        magic = in.readInt();
+                    }
+                    catch (EOFException e) {
+                        return;
+                    }
+                    if (magic != MAGIC) {
+                        throw new IOException("Bad magic " + Integer.toHexString(magic));
+                    }
+                    long start = in.readLong();
+                    long end = in.readLong();
+                    byte[] path = new byte[in.readUnsignedShort()];
+                    in.readFully(path);
+                    if (served.getAndIncrement() == DIE_AFTER) {
+                        System.err.println("Worker halting as requested by dist.dieAfter");
+                        Runtime.getRuntime().halt(1);
+                    }
+
+                    LocalTable table;
+                    try {
+                        table = aggregate(Path.of(new String(path, StandardCharsets.UTF_8)), start, end);
+                    }
+                    catch (Exception e) {
+                        out.writeByte(ERROR);
+                        out.writeUTF(String.valueOf(e));
+                        out.flush();
+                        continue;
+                    }
+                    writePartial(out, table);
+                }
+            }
+            catch (IOException e) {
+                System.err.println("Connection failed: " + e);
+            }
+        }
+
+        private static LocalTable aggregate(Path file, long start, long end) throws IOException, InterruptedException {
+            try (Arena arena = Arena.ofShared();
+                    var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (start < 0 || end < start || end > fileChannel.size()) {
+                    throw new IllegalArgumentException("Range " + start + ".." + end + " outside of " + file);
+                }
+                MemorySegment range = fileChannel.map(MapMode.READ_ONLY, start, end - start, arena);
+                // Clients pick the file and range, so the range is parsed as untrusted input.
+                if (range.byteSize() > 0 && range.get(ValueLayout.JAVA_BYTE, range.byteSize() - 1) != '\n') {
+                    throw new IllegalArgumentException("Range " + start + ".." + end + " of " + file + " doesn't end with a new line");
+                }
+                int threads = (int) Math.max(1, Math.min(THREADS, range.byteSize() >> 20));
+                long[] chunks = CalculateAverage_emersonmde_concurrent.getSegments(range.address(), range.byteSize(), threads);
+                LocalTable[] tables = new LocalTable[threads];
+                Thread[] workers = new Thread[threads];
+                AtomicReference<RuntimeException> failure = new AtomicReference<>();
+                for (int i = 0; i < threads; i++) {
+                    int index = i;
+                    tables[i] = new LocalTable();
+                    workers[i] = new Thread(() -> {
+                        try {
+                            CalculateAverage_emersonmde_concurrent.parseLoopChecked(chunks[index], chunks[index + 1], tables[index]);
+                        }
+                        catch (RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    });
+                    workers[i].start();
+                }
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                if (failure.get() != null) {
+                    throw failure.get();
+                }
+                for (int i = 1; i < threads; i++) {
+                    tables[0].merge(tables[i]);
+                }
+                return tables[0];
+            }
+        }
+
+        private static void writePartial(DataOutputStream out, LocalTable table) throws IOException {
+            List<byte[]> names = new ArrayList<>();
+            List<long[]> stats = new ArrayList<>();
+            table.forEach((name, min, max, sum, count) -> {
+                names.add(name);
+                stats.add(new long[]{ min, max, sum, count });
+            });
+            out.writeByte(OK);
+            out.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                long[] station = stats.get(i);
+                out.writeShort(names.get(i).length);
+                out.write(names.get(i));
+                out.writeShort((int) station[0]);
+                out.writeShort((int) station[1]);
+                out.writeLong(station[2]);
+                out.writeLong(station[3]);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Worker JVMs started from this one's java binary and class path, on ephemeral ports of localhost.
+     */
+    static final class LocalWorkers implements AutoCloseable {
+        final List<InetSocketAddress> addresses = new ArrayList<>();
+        private final List<Process> processes = new ArrayList<>();
+
+        static LocalWorkers spawn(int count, int threads, int dieAfter) throws IOException {
+            LocalWorkers workers = new LocalWorkers();
+            try {
+                String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+                for (int i = 0; i < count; i++) {
+                    List<String> command = new ArrayList<>(List.of(java, "--enable-preview", "-cp", System.getProperty("java.class.path"),
+                            "-Ddist.parent=true", "-Ddist.host=localhost", "-Ddist.threads=" + threads));
+                    if (i == 0 && dieAfter >= 0) {
+                        command.add("-Ddist.dieAfter=" + dieAfter);
+                    }
+                    command.addAll(List.of(CalculateAverage_emersonmde_distributed.class.getName(), "--worker", "0"));
+                    Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+                    workers.processes.add(process);
+                }
+                for (Process process : workers.processes) {
+                    String line = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)).readLine();
+                    if (line == null || !line.startsWith("port ")) {
+                        throw new IOException("Worker did not start: " + line);
+                    }
+                    workers.addresses.add(new InetSocketAddress("localhost", Integer.parseInt(line.substring(5))));
+                }
+                return workers;
+            }
+            catch (IOException | RuntimeException e) {
+                workers.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * Best of three runs per worker count, after one warm-up run, with single-threaded workers so that every
+     * worker is one more process.
+     */
+    private static void scale(Path file, int maxWorkers) throws Exception {
+        System.out.printf("%-8s %10s %8s%n", "workers", "best ms", "speedup");
+        long baseline = 0;
+        for (int count = 1; count <= maxWorkers; count++) {
+            try (LocalWorkers workers = LocalWorkers.spawn(count, 1, -1)) {
+                long fastest = Long.MAX_VALUE;
+                for (int run = 0; run < 4; run++) {
+                    long start = System.nanoTime();
+                    coordinate(file.toAbsolutePath(), workers.addresses, count * RANGES_PER_WORKER);
+                    if (run > 0) {
+                        fastest = Math.min(fastest, System.nanoTime() - start);
+                    }
+                }
+                if (count == 1) {
+                    baseline = fastest;
+                }
+                System.out.printf("%-8d %10.1f %8.2f%n", count, fastest / 1e6, (double) baseline / fastest);
+            }
+        }
+    }
+}
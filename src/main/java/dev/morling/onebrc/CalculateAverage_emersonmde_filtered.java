@@ -0,0 +1,456 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Aggregation with predicates evaluated inside the scan.
+ *
+ * Every station aggregate carries two threshold counters, rows above filter.above and rows below filter.below,
+ * maintained without branches. With an allow-list, the name hash of each row is tested against a small bitmap
+ * before the temperature is parsed; rows of other stations skip straight to the next line. Rows that pass the
+ * bitmap are looked up in a table that holds exactly the allowed stations and never grows, so hash collisions of
+ * other stations are dropped there.
+ *
+ * Configuration via system properties:
+ *   filter.stations      allowed stations separated by ';' (default: all stations)
+ *   filter.stationsFile  file with one allowed station per line, combined with filter.stations
+ *   filter.above         count rows with a temperature above this value
+ *   filter.below         count rows with a temperature below this value
+ *
+ * Every station is printed as name=min/mean/max, followed by above=.. and below=.. for the configured thresholds.
+ */
+public class CalculateAverage_emersonmde_filtered {
+    private static final String FILE = "./measurements.txt";
+
+    private static final long SEMICOLONS = 0x3B3B3B3B3B3B3B3BL;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    // Outside of -99.9..99.9, so a disabled threshold never counts.
+    private static final int NO_ABOVE = 1000;
+    private static final int NO_BELOW = -1000;
+
+    private static final int FILTER_BITS = 1 << 16;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String above = System.getProperty("filter.above");
+        String below = System.getProperty("filter.below");
+        int aboveLimit = above == null ? NO_ABOVE : tenths(above);
+        int belowLimit = below == null ? NO_BELOW : tenths(below);
+        List<String> allowed = allowedStations();
+
+        // Allowed names live off-heap so the table can compare them like names in the mapped file.
+        MemorySegment allowedNames = allowed == null ? null : encode(allowed);
+        // Built once up front, the workers only read it.
+        long[] filter = allowedNames == null ? null : newFilter(allowedNames);
+
+        int numberOfChunks = Runtime.getRuntime().availableProcessors();
+        long[] chunks = getSegments(numberOfChunks);
+
+        Table result = IntStream.range(0, chunks.length - 1).mapToObj(chunkIndex -> {
+            Table table = newTable(allowedNames, aboveLimit, belowLimit);
+            parseLoop(chunks[chunkIndex], chunks[chunkIndex + 1], table, filter);
+            return table;
+        }).parallel().reduce((left, right) -> {
+            left.mergeFrom(right);
+            return left;
+        }).orElseGet(() -> newTable(allowedNames, aboveLimit, belowLimit));
+
+        TreeMap<String, String> output = new TreeMap<>();
+        for (int slot = 0; slot < result.nameAddresses.length; slot++) {
+            if (result.nameAddresses[slot] == 0 || result.counts[slot] == 0) {
+                continue;
+            }
+            StringBuilder stats = new StringBuilder();
+            stats.append(round(result.mins[slot] / 10.0)).append('/')
+                    .append(round((result.sums[slot] / 10.0) / result.counts[slot])).append('/')
+                    .append(round(result.maxs[slot] / 10.0));
+            if (above != null) {
+                stats.append(" above=").append(result.aboveCounts[slot]);
+            }
+            if (below != null) {
+                stats.append(" below=").append(result.belowCounts[slot]);
+            }
+            output.put(result.name(slot), stats.toString());
+        }
+        System.out.println(output);
+    }
+
+    private static int tenths(String degrees) {
+        int value = (int) Math.round(Double.parseDouble(degrees) * 10);
+        if (value < NO_BELOW || value > NO_ABOVE) {
+            throw new IllegalArgumentException("Threshold out of range: " + degrees);
+        }
+        return value;
+    }
+
+    private static List<String> allowedStations() throws IOException {
+        String stations = System.getProperty("filter.stations");
+        String stationsFile = System.getProperty("filter.stationsFile");
+        if (stations == null && stationsFile == null) {
+            return null;
+        }
+        List<String> allowed = new ArrayList<>();
+        if (stations != null) {
+            allowed.addAll(Arrays.asList(stations.split(";")));
+        }
+        if (stationsFile != null) {
+            allowed.addAll(Files.readAllLines(Path.of(stationsFile), StandardCharsets.UTF_8));
+        }
+        allowed.removeIf(String::isEmpty);
+        return allowed;
+    }
+
+    // Names back to back, each prefixed with its length as an int.
+    private static MemorySegment encode(List<String> names) {
+        List<byte[]> encoded = names.stream().map(name -> name.getBytes(StandardCharsets.UTF_8)).toList();
+        long size = encoded.stream().mapToLong(bytes -> Integer.BYTES + bytes.length).sum();
+        MemorySegment segment = Arena.global().allocate(Math.max(size, 1));
+        long address = segment.address();
+        for (byte[] bytes : encoded) {
+            UNSAFE.putInt(address, bytes.length);
+            UNSAFE.copyMemory(bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, null, address + Integer.BYTES, bytes.length);
+            address += Integer.BYTES + bytes.length;
+        }
+        return segment;
+    }
+
+    /**
+     * One bit per upper hash half of each allowed name, so most rejected rows never probe the table.
+     */
+    private static long[] newFilter(MemorySegment allowedNames) {
+        long[] filter = new long[FILTER_BITS / Long.SIZE];
+        long address = allowedNames.address();
+        long end = address + allowedNames.byteSize();
+        while (address + Integer.BYTES <= end) {
+            int length = UNSAFE.getInt(address);
+            long nameAddress = address + Integer.BYTES;
+            int hash = hash(nameAddress, length);
+            filter[(hash >>> 16) >>> 6] |= 1L << (hash >>> 16);
+            address = nameAddress + length;
+        }
+        return filter;
+    }
+
+    private static Table newTable(MemorySegment allowedNames, int aboveLimit, int belowLimit) {
+        Table table = new Table(1 << 10, aboveLimit, belowLimit);
+        if (allowedNames != null) {
+            long address = allowedNames.address();
+            long end = address + allowedNames.byteSize();
+            while (address + Integer.BYTES <= end) {
+                int length = UNSAFE.getInt(address);
+                long nameAddress = address + Integer.BYTES;
+                table.slot(nameAddress, length, hash(nameAddress, length));
+                address = nameAddress + length;
+            }
+            table.closed = true;
+        }
+        return table;
+    }
+
+    /**
+     * Same hash as the parse loop computes for a name.
+     */
+    private static int hash(long address, int length) {
+        long hash = 0;
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            hash = (hash ^ UNSAFE.getLong(address + i)) * HASH_MULTIPLIER;
+        }
+        long word = 0;
+        for (int shift = 0; i < length; i++, shift += 8) {
+            word |= (UNSAFE.getByte(address + i) & 0xFFL) << shift;
+        }
+        hash = (hash ^ word) * HASH_MULTIPLIER;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    private static long[] getSegments(int numberOfChunks) throws IOException {
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
+            long[] chunks = new long[numberOfChunks + 1];
+            long mappedAddress = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            chunks[0] = mappedAddress;
+            long endAddress = mappedAddress + fileSize;
+            for (int i = 1; i < numberOfChunks; ++i) {
+                long chunkAddress = mappedAddress + i * segmentSize;
+                // Align to first row start.
+                while (chunkAddress < endAddress && UNSAFE.getByte(chunkAddress++) != '\n') {
+                    // nop
+                }
+                chunks[i] = Math.min(chunkAddress, endAddress);
+            }
+            chunks[numberOfChunks] = endAddress;
+            return chunks;
+        }
+    }
+
+    private static void parseLoop(long chunkStart, long chunkEnd, Table table, long[] filter) {
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // Scan for ';' delimiter 8 bytes at a time, falling back to single bytes near the end of the chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = (hash ^ (word & ((lowest >>> 7) - 1))) * HASH_MULTIPLIER;
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            int nameHash = (int) (hash ^ (hash >>> 32));
+
+            if (filter != null && (filter[(nameHash >>> 16) >>> 6] & (1L << (nameHash >>> 16))) == 0) {
+                // Not an allowed station, the shortest number is x.y, so the line ends 4 bytes after ';' at the earliest.
+                scanPtr += 4;
+                while (UNSAFE.getByte(scanPtr) != '\n') {
+                    scanPtr++;
+                }
+                scanPtr++;
+                continue;
+            }
+            scanPtr++;
+
+            // Parse number.
+            int number;
+            byte sign = UNSAFE.getByte(scanPtr++);
+            if (sign == '-') {
+                number = UNSAFE.getByte(scanPtr++) - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+                number = -number;
+            }
+            else {
+                number = sign - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+            }
+
+            table.add(nameAddress, nameLength, nameHash, number);
+
+            // Skip new line.
+            scanPtr++;
+        }
+    }
+
+    private static boolean nameEquals(long left, long right, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (UNSAFE.getLong(left + i) != UNSAFE.getLong(right + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (UNSAFE.getByte(left + i) != UNSAFE.getByte(right + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Growable linear probing table, names point into the mapped file or the allow-list. A closed table only
+     * aggregates the stations it already holds and ignores all others.
+     */
+    private static final class Table {
+        final int aboveLimit;
+        final int belowLimit;
+        boolean closed;
+
+        long[] nameAddresses;
+        int[] nameLengths;
+        int[] hashes;
+        int[] mins;
+        int[] maxs;
+        long[] counts;
+        long[] sums;
+        long[] aboveCounts;
+        long[] belowCounts;
+        int size;
+
+        Table(int capacity, int aboveLimit, int belowLimit) {
+            this.aboveLimit = aboveLimit;
+            this.belowLimit = belowLimit;
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            nameAddresses = new long[capacity];
+            nameLengths = new int[capacity];
+            hashes = new int[capacity];
+            mins = new int[capacity];
+            maxs = new int[capacity];
+            counts = new long[capacity];
+            sums = new long[capacity];
+            aboveCounts = new long[capacity];
+            belowCounts = new long[capacity];
+        }
+
+        // Returns -1 if the table is closed and does not hold the station.
+        int slot(long nameAddress, int nameLength, int hash) {
+            int mask = nameAddresses.length - 1;
+            int slot = hash & mask;
+            long existing;
+            while ((existing = nameAddresses[slot]) != 0) {
+                if (hashes[slot] == hash && nameLengths[slot] == nameLength && nameEquals(existing, nameAddress, nameLength)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (closed) {
+                return -1;
+            }
+            if ((size + 1) * 2 > nameAddresses.length) {
+                grow();
+                return slot(nameAddress, nameLength, hash);
+            }
+            size++;
+            nameAddresses[slot] = nameAddress;
+            nameLengths[slot] = nameLength;
+            hashes[slot] = hash;
+            mins[slot] = Integer.MAX_VALUE;
+            maxs[slot] = Integer.MIN_VALUE;
+            return slot;
+        }
+
+        void add(long nameAddress, int nameLength, int hash, int value) {
+            int slot = slot(nameAddress, nameLength, hash);
+            if (slot < 0) {
+                return;
+            }
+            mins[slot] = Math.min(mins[slot], value);
+            maxs[slot] = Math.max(maxs[slot], value);
+            counts[slot]++;
+            sums[slot] += value;
+            // Sign bit of the difference is set iff the value is beyond the limit.
+            aboveCounts[slot] += (aboveLimit - value) >>> 31;
+            belowCounts[slot] += (value - belowLimit) >>> 31;
+        }
+
+        void mergeFrom(Table other) {
+            for (int otherSlot = 0; otherSlot < other.nameAddresses.length; otherSlot++) {
+                if (other.nameAddresses[otherSlot] == 0) {
+                    continue;
+                }
+                int slot = slot(other.nameAddresses[otherSlot], other.nameLengths[otherSlot], other.hashes[otherSlot]);
+                mins[slot] = Math.min(mins[slot], other.mins[otherSlot]);
+                maxs[slot] = Math.max(maxs[slot], other.maxs[otherSlot]);
+                counts[slot] += other.counts[otherSlot];
+                sums[slot] += other.sums[otherSlot];
+                aboveCounts[slot] += other.aboveCounts[otherSlot];
+                belowCounts[slot] += other.belowCounts[otherSlot];
+            }
+        }
+
+        String name(int slot) {
+            byte[] bytes = new byte[nameLengths[slot]];
+            UNSAFE.copyMemory(null, nameAddresses[slot], bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void grow() {
+            long[] oldNameAddresses = nameAddresses;
+            int[] oldNameLengths = nameLengths;
+            int[] oldHashes = hashes;
+            int[] oldMins = mins;
+            int[] oldMaxs = maxs;
+            long[] oldCounts = counts;
+            long[] oldSums = sums;
+            long[] oldAboveCounts = aboveCounts;
+            long[] oldBelowCounts = belowCounts;
+            allocate(oldNameAddresses.length * 2);
+            int mask = nameAddresses.length - 1;
+            for (int oldSlot = 0; oldSlot < oldNameAddresses.length; oldSlot++) {
+                if (oldNameAddresses[oldSlot] == 0) {
+                    continue;
+                }
+                int slot = oldHashes[oldSlot] & mask;
+                while (nameAddresses[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                nameAddresses[slot] = oldNameAddresses[oldSlot];
+                nameLengths[slot] = oldNameLengths[oldSlot];
+                hashes[slot] = oldHashes[oldSlot];
+                mins[slot] = oldMins[oldSlot];
+                maxs[slot] = oldMaxs[oldSlot];
+                counts[slot] = oldCounts[oldSlot];
+                sums[slot] = oldSums[oldSlot];
+                aboveCounts[slot] = oldAboveCounts[oldSlot];
+                belowCounts[slot] = oldBelowCounts[oldSlot];
+            }
+        }
+    }
+}
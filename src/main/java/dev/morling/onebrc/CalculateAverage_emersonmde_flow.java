@@ -0,0 +1,199 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import dev.morling.onebrc.CalculateAverage_emersonmde_live.LiveStore;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scans ./measurements.txt into a MeasurementSink while a SnapshotPublisher publishes partial results every
+ * flow.interval milliseconds (default 100); the final snapshot delivered to a subscriber is printed.
+ *
+ * Run with -Dflow.progress=true to also attach a subscriber that requests one snapshot at a time and reports
+ * progress on stderr, sleeping flow.subscriberDelay milliseconds per snapshot to show coalescing.
+ *
+ * With --live, rows come from the ingestion server of CalculateAverage_emersonmde_ingest (same ingest.* properties)
+ * into a live store instead, and snapshots of that store are published until the process is stopped, which prints
+ * the final one.
+ */
+public class CalculateAverage_emersonmde_flow {
+    private static final String FILE = "./measurements.txt";
+    private static final int STATIONS = Integer.getInteger("sink.stations", 10_000);
+    private static final int CAPACITY = Integer.getInteger("live.capacity", 1 << 15);
+    private static final int REACTORS = Integer.getInteger("ingest.reactors", Runtime.getRuntime().availableProcessors());
+    private static final long INTERVAL = Long.getLong("flow.interval", 100);
+    private static final boolean PROGRESS = Boolean.getBoolean("flow.progress");
+    private static final long SUBSCRIBER_DELAY = Long.getLong("flow.subscriberDelay", 0);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--live")) {
+            live();
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        MeasurementSink sink = new MeasurementSink(STATIONS, threads);
+        SnapshotPublisher publisher = new SnapshotPublisher(sink::snapshot, Duration.ofMillis(INTERVAL));
+        Last result = new Last();
+        publisher.subscribe(result);
+        Progress progress = null;
+        if (PROGRESS) {
+            progress = new Progress();
+            publisher.subscribe(progress);
+        }
+
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            MemorySegment file = fileChannel.map(MapMode.READ_ONLY, 0, fileChannel.size(), Arena.global());
+            long[] chunks = CalculateAverage_emersonmde_concurrent.getSegments(file.address(), file.byteSize(), threads);
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < workers.length; i++) {
+                int index = i;
+                workers[i] = new Thread(() -> {
+                    try (MeasurementSink.Producer producer = sink.producer()) {
+                        CalculateAverage_emersonmde_concurrent.parseLoop(chunks[index], chunks[index + 1], new CalculateAverage_emersonmde_concurrent.Sink() {
+                            @Override
+                            void add(long nameAddress, int nameLength, int hash, int value) {
+                                producer.add(file, nameAddress - file.address(), nameLength, (short) value);
+                            }
+                        });
+                    }
+                });
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+        catch (Exception e) {
+            publisher.fail(e);
+            throw e;
+        }
+        publisher.complete();
+
+        System.out.println(result.done.get().format());
+        if (progress != null) {
+            progress.done.join();
+        }
+    }
+
+    private static void live() throws IOException, InterruptedException {
+        LiveStore store = new LiveStore(CAPACITY, CalculateAverage_emersonmde_live.stripesFor(REACTORS));
+        AtomicLong sequence = new AtomicLong();
+        SnapshotPublisher publisher = new SnapshotPublisher(() -> AggregateSnapshot.of(sequence.incrementAndGet(), store.snapshot()),
+                Duration.ofMillis(INTERVAL));
+        Last result = new Last();
+        publisher.subscribe(result);
+        Progress progress = null;
+        if (PROGRESS) {
+            progress = new Progress();
+            publisher.subscribe(progress);
+        }
+        CalculateAverage_emersonmde_ingest.Server ingest = new CalculateAverage_emersonmde_ingest.Server(
+                reactor -> CalculateAverage_emersonmde_ingest.Lines.parsing(store.writer(reactor)),
+                () -> AggregateSnapshot.of(0, store.snapshot()).rows());
+        Progress last = progress;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            ingest.stop();
+            publisher.complete();
+            System.out.println(result.done.join().format());
+            if (last != null) {
+                last.done.join();
+            }
+        }));
+        ingest.start();
+        ingest.reportLoop();
+    }
+
+    /**
+     * Requests everything and keeps the newest snapshot.
+     */
+    private static final class Last implements Flow.Subscriber<AggregateSnapshot> {
+        final CompletableFuture<AggregateSnapshot> done = new CompletableFuture<>();
+        private AggregateSnapshot last;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(AggregateSnapshot snapshot) {
+            last = snapshot;
+        }
+
+        @Override
+        public void onError(Throwable failure) {
+            done.completeExceptionally(failure);
+        }
+
+        @Override
+        public void onComplete() {
+            done.complete(last);
+        }
+    }
+
+    /**
+     * Requests one snapshot at a time, after it is done with the previous one.
+     */
+    private static final class Progress implements Flow.Subscriber<AggregateSnapshot> {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private int received;
+        private long previous = -1;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(AggregateSnapshot snapshot) {
+            received++;
+            System.err.printf("snapshot #%d: %,d rows, %d stations%s%n", snapshot.sequence(), snapshot.rows(), snapshot.stations().size(),
+                    previous >= 0 && snapshot.sequence() > previous + 1 ? " (skipped " + (snapshot.sequence() - previous - 1) + ")" : "");
+            previous = snapshot.sequence();
+            try {
+                Thread.sleep(SUBSCRIBER_DELAY);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable failure) {
+            done.completeExceptionally(failure);
+        }
+
+        @Override
+        public void onComplete() {
+            System.err.printf("complete after %d snapshots%n", received);
+            done.complete(null);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dev.morling.onebrc.CalculateAverage_emersonmde_live.LiveStore;
+import dev.morling.onebrc.CalculateAverage_emersonmde_live.Snapshot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * HTTP queries and server-sent event deltas over the live store, fed by the ingestion server.
+ *
+ * Every tick one snapshot of the store is taken and the stations whose version changed since the previous tick are
+ * encoded once as a JSON delta, shared by all event stream clients that are caught up. A client that fell behind
+ * or just connected gets a delta against the versions it was last sent instead, so its first event is the full table
+ * and nothing is ever skipped. Ticks without changes send nothing, so the cost per client follows the change rate,
+ * not the number of stations. Requests are served on virtual threads.
+ *
+ * Endpoints:
+ *   GET /stations/{name}          one station, 404 if it has no rows
+ *   GET /stations?prefix=&minMean=&maxMean=&minCount=&limit=
+ *                                 all stations matching every given filter, in first-seen order
+ *   GET /events                   text/event-stream of "delta" events, each a JSON array of changed stations
+ * A station is {"name":..,"min":..,"mean":..,"max":..,"count":..,"version":..}, temperatures in degrees.
+ *
+ * An optional file argument is aggregated into the store before serving. Rows keep arriving through the ingestion
+ * server, configured by its ingest.* properties.
+ *
+ * Configuration via system properties:
+ *   http.port       HTTP port (default 8080)
+ *   http.tick       milliseconds between event ticks (default 1000)
+ *   live.capacity   station capacity of the store
+ */
+public class CalculateAverage_emersonmde_http {
+    private static final String HOST = System.getProperty("ingest.host", "localhost");
+    private static final int PORT = Integer.getInteger("http.port", 8080);
+    private static final long TICK_MILLIS = Long.getLong("http.tick", 1000);
+    private static final int CAPACITY = Integer.getInteger("live.capacity", 1 << 15);
+    private static final int REACTORS = Integer.getInteger("ingest.reactors", Runtime.getRuntime().availableProcessors());
+    private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(15);
+
+    public static void main(String[] args) throws Exception {
+        LiveStore store = new LiveStore(CAPACITY, CalculateAverage_emersonmde_live.stripesFor(REACTORS));
+        if (args.length > 0) {
+            load(Path.of(args[0]), store);
+        }
+
+        CalculateAverage_emersonmde_ingest.Server ingest = new CalculateAverage_emersonmde_ingest.Server(
+                reactor -> CalculateAverage_emersonmde_ingest.Lines.parsing(store.writer(reactor)),
+                () -> rows(store.snapshot()));
+        ingest.start();
+
+        Ticker ticker = new Ticker(store);
+        Thread.ofPlatform().daemon().name("http-ticker").start(ticker);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(HOST, PORT), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/stations", exchange -> respond(exchange, () -> stations(exchange, store)));
+        server.createContext("/events", exchange -> respond(exchange, () -> events(exchange, ticker)));
+        server.start();
+        System.err.printf("HTTP on %s:%d%n", HOST, PORT);
+    }
+
+    // Before any reactor runs, so the loading threads may use the reactors' stripes.
+    private static void load(Path file, LiveStore store) throws IOException, InterruptedException {
+        try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long address = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            long[] chunks = CalculateAverage_emersonmde_concurrent.getSegments(address, fileSize, store.stripes);
+            Thread[] workers = new Thread[store.stripes];
+            for (int i = 0; i < workers.length; i++) {
+                int index = i;
+                workers[i] = new Thread(() -> CalculateAverage_emersonmde_concurrent.parseLoop(chunks[index], chunks[index + 1], store.writer(index)));
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+    }
+
+    private static long rows(Snapshot snapshot) {
+        long rows = 0;
+        for (int i = 0; i < snapshot.size; i++) {
+            rows += snapshot.counts[i];
+        }
+        return rows;
+    }
+
+    private interface Handler {
+        void handle() throws IOException;
+    }
+
+    private static void respond(HttpExchange exchange, Handler handler) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                send(exchange, 405, "{\"error\":\"only GET is supported\"}");
+                return;
+            }
+            try {
+                handler.handle();
+            }
+            catch (IllegalArgumentException e) {
+                send(exchange, 400, "{\"error\":" + quote(e.getMessage()) + "}");
+            }
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void stations(HttpExchange exchange, LiveStore store) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.length() > "/stations/".length()) {
+            byte[] name = path.substring("/stations/".length()).getBytes(StandardCharsets.UTF_8);
+            int slot = store.find(name);
+            long[] values = new long[4];
+            long version = slot < 0 ? 0 : store.read(slot, values);
+            if (slot < 0 || values[3] == 0) {
+                send(exchange, 404, "{\"error\":\"unknown station\"}");
+                return;
+            }
+            StringBuilder json = new StringBuilder();
+            appendStation(json, name, values[0], values[1], values[2], values[3], version);
+            send(exchange, 200, json.toString());
+            return;
+        }
+
+        Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+        byte[] prefix = query.getOrDefault("prefix", "").getBytes(StandardCharsets.UTF_8);
+        double minMean = number(query, "minMean", Double.NEGATIVE_INFINITY);
+        double maxMean = number(query, "maxMean", Double.POSITIVE_INFINITY);
+        double minCount = number(query, "minCount", 0);
+        double limit = number(query, "limit", Integer.MAX_VALUE);
+
+        Snapshot snapshot = store.snapshot();
+        StringBuilder json = new StringBuilder("[");
+        int matches = 0;
+        for (int i = 0; i < snapshot.size && matches < limit; i++) {
+            double mean = (snapshot.sums[i] / 10.0) / snapshot.counts[i];
+            if (mean < minMean || mean > maxMean || snapshot.counts[i] < minCount || !startsWith(snapshot.names[i], prefix)) {
+                continue;
+            }
+            if (matches++ > 0) {
+                json.append(',');
+            }
+            appendStation(json, snapshot.names[i], snapshot.mins[i], snapshot.maxs[i], snapshot.sums[i], snapshot.counts[i],
+                    snapshot.versions[i]);
+        }
+        send(exchange, 200, json.append(']').toString());
+    }
+
+    private static boolean startsWith(byte[] name, byte[] prefix) {
+        return name.length >= prefix.length && Arrays.equals(name, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                query.put(URLDecoder.decode(parameter.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return query;
+    }
+
+    private static double number(Map<String, String> query, String key, double defaultValue) {
+        String value = query.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be a number");
+        }
+    }
+
+    private static void events(HttpExchange exchange, Ticker ticker) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        long[] sent = new long[CAPACITY];
+        Tick last = null;
+        long lastWrite = System.nanoTime();
+        try {
+            while (true) {
+                Tick tick = ticker.await(last);
+                byte[] payload;
+                if (last != null && tick.id == last.id + 1) {
+                    payload = tick.delta;
+                    for (int i : tick.changed) {
+                        sent[tick.snapshot.slots[i]] = tick.snapshot.versions[i];
+                    }
+                }
+                else {
+                    payload = delta(tick.snapshot, sent);
+                }
+                last = tick;
+                if (payload != null) {
+                    out.write(("id: " + tick.id + "\nevent: delta\ndata: ").getBytes(StandardCharsets.UTF_8));
+                    out.write(payload);
+                    out.write("\n\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    lastWrite = System.nanoTime();
+                }
+                else if (System.nanoTime() - lastWrite > KEEP_ALIVE_NANOS) {
+                    // Comment line, lets both sides notice a dead connection.
+                    out.write(":\n\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    lastWrite = System.nanoTime();
+                }
+            }
+        }
+        catch (IOException e) {
+            // Client went away.
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Stations whose version differs from what this client was sent, null if there are none.
+    private static byte[] delta(Snapshot snapshot, long[] sent) {
+        StringBuilder json = new StringBuilder("[");
+        int changed = 0;
+        for (int i = 0; i < snapshot.size; i++) {
+            if (sent[snapshot.slots[i]] == snapshot.versions[i]) {
+                continue;
+            }
+            sent[snapshot.slots[i]] = snapshot.versions[i];
+            if (changed++ > 0) {
+                json.append(',');
+            }
+            appendStation(json, snapshot.names[i], snapshot.mins[i], snapshot.maxs[i], snapshot.sums[i], snapshot.counts[i],
+                    snapshot.versions[i]);
+        }
+        return changed == 0 ? null : json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendStation(StringBuilder json, byte[] name, long min, long max, long sum, long count, long version) {
+        json.append("{\"name\":").append(quote(new String(name, StandardCharsets.UTF_8)))
+                .append(",\"min\":").append(round(min / 10.0))
+                .append(",\"mean\":").append(round((sum / 10.0) / count))
+                .append(",\"max\":").append(round(max / 10.0))
+                .append(",\"count\":").append(count)
+                .append(",\"version\":").append(version)
+                .append('}');
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                case '\n' -> quoted.append("\\n");
+                case '\r' -> quoted.append("\\r");
+                case '\t' -> quoted.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        quoted.append(c);
+                    }
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    /**
+     * One snapshot per tick, with the stations changed since the previous tick and their encoded delta.
+     */
+    record Tick(long id, Snapshot snapshot, int[] changed, byte[] delta) {
+    }
+
+    /**
+     * Takes a snapshot every tick and wakes up the event streams.
+     */
+    static final class Ticker implements Runnable {
+        private final LiveStore store;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition ticked = lock.newCondition();
+        private volatile Tick current;
+
+        Ticker(LiveStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public void run() {
+            long[] versions = new long[store.capacity];
+            long id = 0;
+            while (true) {
+                Snapshot snapshot = store.snapshot();
+                int[] changed = new int[snapshot.size];
+                int size = 0;
+                for (int i = 0; i < snapshot.size; i++) {
+                    if (versions[snapshot.slots[i]] != snapshot.versions[i]) {
+                        changed[size++] = i;
+                    }
+                }
+                // Encoded against the previous tick, which is exactly what caught-up clients were sent.
+                byte[] delta = delta(snapshot, versions);
+                Tick tick = new Tick(id++, snapshot, Arrays.copyOf(changed, size), delta);
+                lock.lock();
+                try {
+                    current = tick;
+                    ticked.signalAll();
+                }
+                finally {
+                    lock.unlock();
+                }
+                try {
+                    Thread.sleep(TICK_MILLIS);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        // The next tick after the given one, or the current one for a new client.
+        Tick await(Tick after) throws InterruptedException {
+            lock.lock();
+            try {
+                while (current == null || (after != null && current.id <= after.id)) {
+                    ticked.await();
+                }
+                return current;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import dev.morling.onebrc.CalculateAverage_emersonmde_concurrent.SharedTable;
+import dev.morling.onebrc.CalculateAverage_emersonmde_concurrent.Sink;
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.LongSupplier;
+
+/**
+ * Live ingestion of name;temp lines pushed over TCP (and optionally UDP) into one continuously updated aggregate.
+ *
+ * An acceptor hands new connections round-robin to a few reactor threads, each with its own Selector. Every
+ * connection owns a direct buffer from its reactor's pool while it is open. After each read the complete lines are
+ * handed to the batch parser straight from the buffer, and the partial line at the end is moved to the front to be
+ * completed by the next read. Rows go into the shared lock-free table of the concurrent variant, one stripe per
+ * reactor. UDP datagrams must contain whole lines; a trailing partial line is dropped.
+ *
+ * The batch parser trusts its input and scans for ';' without a bound. Network input is not trusted, so every pooled
+ * buffer is followed by the eight guard bytes ";00.0000": malformed lines yield garbage values but never read outside
+ * of it.
+ * Connections sending a line longer than the buffer, or a new station once the table is full, are closed; such a
+ * datagram is dropped.
+ *
+ * Usage:
+ *   --serve                      runs the server until it is terminated, then prints the aggregate
+ *   --load file [connections] [repetitions]
+ *                                load generator, every connection sends the file the given number of times
+ *
+ * Configuration via system properties:
+ *   ingest.host         host to bind or connect to (default localhost)
+ *   ingest.port         TCP and UDP port (default 9999)
+ *   ingest.udp          also ingest UDP datagrams, or for --load send datagrams instead of a stream (default false)
+ *   ingest.reactors     reactor threads (default available processors)
+ *   ingest.bufferSize   bytes per connection buffer (default 64 KB)
+ *   ingest.capacity     station capacity of the shared table (default 131072)
+ */
+public class CalculateAverage_emersonmde_ingest {
+    private static final String HOST = System.getProperty("ingest.host", "localhost");
+    private static final int PORT = Integer.getInteger("ingest.port", 9999);
+    private static final boolean UDP = Boolean.getBoolean("ingest.udp");
+    private static final int REACTORS = Integer.getInteger("ingest.reactors", Runtime.getRuntime().availableProcessors());
+    private static final int BUFFER_SIZE = Integer.getInteger("ingest.bufferSize", 64 * 1024);
+    private static final int CAPACITY = Integer.getInteger("ingest.capacity", 1 << 17);
+
+    // A ';' plus the four bytes the parser reads after it at most (sign or digit, digit, point, digit) stop a scan
+    // that runs off the buffer. Padded to eight bytes so that, with sizes a multiple of eight, every buffer of a slab
+    // starts 8-byte aligned for the word-wise scan.
+    private static final byte[] GUARD = ";00.0000".getBytes(StandardCharsets.US_ASCII);
+    private static final int SLAB_BUFFERS = 64;
+    private static final int DATAGRAM_SIZE = 1400;
+    private static final int MAX_DATAGRAM = 65_507;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 && args[0].equals("--load")) {
+            LoadGenerator.run(Path.of(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 4,
+                    args.length > 3 ? Integer.parseInt(args[3]) : 1);
+            return;
+        }
+        if (args.length == 0 || !args[0].equals("--serve")) {
+            System.err.println("Usage: --serve | --load file [connections] [repetitions]");
+            System.exit(1);
+        }
+
+        SharedTable table = new SharedTable(CAPACITY, CalculateAverage_emersonmde_concurrent.stripesFor(REACTORS));
+        Server server = new Server(reactor -> Lines.parsing(table.writer(reactor)), () -> rows(table));
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            System.out.println(format(table));
+        }));
+        server.reportLoop();
+    }
+
+    private static long rows(SharedTable table) {
+        long[] rows = new long[1];
+        table.forEach((name, min, max, sum, count) -> rows[0] += count);
+        return rows[0];
+    }
+
+    private static String format(SharedTable table) {
+        TreeMap<String, String> result = new TreeMap<>();
+        table.forEach((name, min, max, sum, count) -> result.put(new String(name, StandardCharsets.UTF_8),
+                round(min / 10.0) + "/" + round((sum / 10.0) / count) + "/" + round(max / 10.0)));
+        return result.toString();
+    }
+
+    /**
+     * Receives runs of complete lines straight from a connection buffer, valid only during the call.
+     */
+    @FunctionalInterface
+    interface Lines {
+        void accept(long start, long end);
+
+        static Lines parsing(Sink sink) {
+            return (start, end) -> CalculateAverage_emersonmde_concurrent.parseLoop(start, end, sink);
+        }
+    }
+
+    /**
+     * Acceptor and reactors; reactor i hands its complete lines to consumers.apply(i).
+     */
+    static final class Server {
+        final IntFunction<Lines> consumers;
+        final LongSupplier rows;
+        final Reactor[] reactors;
+        private ServerSocketChannel acceptor;
+        private Thread acceptorThread;
+        private volatile boolean running = true;
+
+        Server(IntFunction<Lines> consumers, LongSupplier rows) {
+            this.consumers = consumers;
+            this.rows = rows;
+            this.reactors = new Reactor[REACTORS];
+        }
+
+        void start() throws IOException {
+            for (int i = 0; i < reactors.length; i++) {
+                reactors[i] = new Reactor(i, consumers.apply(i));
+            }
+            if (UDP) {
+                DatagramChannel datagrams = DatagramChannel.open().bind(new InetSocketAddress(HOST, PORT));
+                datagrams.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+                reactors[0].register(datagrams);
+            }
+            acceptor = ServerSocketChannel.open().bind(new InetSocketAddress(HOST, PORT));
+            for (Reactor reactor : reactors) {
+                reactor.thread.start();
+            }
+            acceptorThread = new Thread(() -> {
+                int next = 0;
+                try {
+                    while (running) {
+                        SocketChannel channel = acceptor.accept();
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        reactors[next++ % reactors.length].register(channel);
+                    }
+                }
+                catch (IOException e) {
+                    // Closed by stop().
+                }
+            }, "ingest-acceptor");
+            acceptorThread.start();
+            System.err.printf("Listening on %s:%d (tcp%s), %d reactors%n", HOST, PORT, UDP ? ", udp" : "", reactors.length);
+        }
+
+        void stop() {
+            running = false;
+            try {
+                acceptor.close();
+                acceptorThread.join();
+                for (Reactor reactor : reactors) {
+                    reactor.selector.close();
+                    reactor.thread.join();
+                }
+            }
+            catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        // Prints the ingest rate once per second while rows arrive.
+        void reportLoop() throws InterruptedException {
+            long last = 0;
+            long lastTime = System.nanoTime();
+            while (running) {
+                Thread.sleep(1000);
+                long rows = this.rows.getAsLong();
+                long now = System.nanoTime();
+                if (rows != last) {
+                    System.err.printf("%,d rows, %,.0f rows/s%n", rows, (rows - last) * 1e9 / (now - lastTime));
+                }
+                last = rows;
+                lastTime = now;
+            }
+        }
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    /**
+     * One selector thread with its own buffer pool, writing to its own stripe of the store.
+     */
+    static final class Reactor implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        private final Lines lines;
+        private final ConcurrentLinkedQueue<SelectableChannel> pending = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<Buffer> pool = new ArrayDeque<>();
+
+        Reactor(int index, Lines lines) throws IOException {
+            this.selector = Selector.open();
+            this.lines = lines;
+            this.thread = new Thread(this, "ingest-reactor-" + index);
+        }
+
+        void register(SelectableChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    SelectableChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        channel.configureBlocking(false);
+                        // A datagram larger than the buffer would be truncated, so UDP gets room for the largest.
+                        channel.register(selector, SelectionKey.OP_READ,
+                                channel instanceof DatagramChannel ? Buffer.allocate(MAX_DATAGRAM, 1).pop() : acquire());
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                    }
+                }
+            }
+            catch (ClosedSelectorException e) {
+                // Stopped.
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void read(SelectionKey key) {
+            Buffer buffer = (Buffer) key.attachment();
+            try {
+                if (key.channel()instanceof DatagramChannel datagrams) {
+                    while (datagrams.receive(buffer.bytes) != null) {
+                        try {
+                            buffer.drain(lines);
+                        }
+                        catch (RuntimeException e) {
+                            // The channel is shared by all senders, so only this datagram is dropped.
+                            System.err.println("Dropping datagram on " + datagrams + ": " + e);
+                        }
+                        // Datagrams carry whole lines only.
+                        buffer.bytes.clear();
+                    }
+                    return;
+                }
+                SocketChannel channel = (SocketChannel) key.channel();
+                int read;
+                while ((read = channel.read(buffer.bytes)) > 0) {
+                    buffer.drain(lines);
+                    if (!buffer.bytes.hasRemaining()) {
+                        throw new IOException("Line longer than " + BUFFER_SIZE + " bytes");
+                    }
+                }
+                if (read < 0) {
+                    close(key);
+                }
+            }
+            catch (IOException e) {
+                System.err.println("Closing " + key.channel() + ": " + e.getMessage());
+                close(key);
+            }
+            catch (RuntimeException e) {
+                // E.g. a full station table, which must not take the reactor and its other connections down.
+                System.err.println("Closing " + key.channel() + ": " + e);
+                close(key);
+            }
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            }
+            catch (IOException e) {
+                // Gone anyway.
+            }
+            Buffer buffer = (Buffer) key.attachment();
+            if (buffer.bytes.capacity() == BUFFER_SIZE) {
+                buffer.bytes.clear();
+                pool.push(buffer);
+            }
+        }
+
+        private Buffer acquire() {
+            if (pool.isEmpty()) {
+                pool.addAll(Buffer.allocate(BUFFER_SIZE, SLAB_BUFFERS));
+            }
+            return pool.pop();
+        }
+    }
+
+    /**
+     * A pooled direct buffer holding the not yet parsed bytes of one connection, followed in memory by the guard.
+     */
+    static final class Buffer {
+        final ByteBuffer bytes;
+        final long address;
+
+        Buffer(ByteBuffer bytes) {
+            this.bytes = bytes;
+            this.address = MemorySegment.ofBuffer(bytes).address();
+        }
+
+        // One slab of guarded buffers at a time, so the buffers of a reactor are close together.
+        static ArrayDeque<Buffer> allocate(int size, int count) {
+            int stride = size + GUARD.length;
+            ByteBuffer slab = ByteBuffer.allocateDirect(stride * count);
+            ArrayDeque<Buffer> buffers = new ArrayDeque<>(count);
+            for (int i = 0; i < count; i++) {
+                slab.put(i * stride + size, GUARD);
+                buffers.push(new Buffer(slab.slice(i * stride, size)));
+            }
+            return buffers;
+        }
+
+        // Parses all complete lines and moves the remaining partial line to the front.
+        void drain(Lines lines) {
+            int filled = bytes.position();
+            int end = filled;
+            while (end > 0 && UNSAFE.getByte(address + end - 1) != '\n') {
+                end--;
+            }
+            if (end == 0) {
+                return;
+            }
+            lines.accept(address, address + end);
+            UNSAFE.copyMemory(address + end, address, filled - end);
+            bytes.position(filled - end);
+        }
+    }
+
+    /**
+     * Sends a file over several connections, each on its own thread, and reports the achieved rate.
+     */
+    static final class LoadGenerator {
+        static void run(Path file, int connections, int repetitions) throws Exception {
+            long size;
+            long lines;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                size = channel.size();
+                lines = countLines(channel);
+            }
+            AtomicLong sent = new AtomicLong();
+            Thread[] threads = new Thread[connections];
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                threads[i] = new Thread(() -> {
+                    try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                        for (int r = 0; r < repetitions; r++) {
+                            if (UDP) {
+                                sendDatagrams(source);
+                            }
+                            else {
+                                sendStream(source, size);
+                            }
+                            sent.addAndGet(lines);
+                        }
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("sent %,d rows over %d connections in %.2f s, %,.0f rows/s%n", sent.get(), connections, seconds,
+                    sent.get() / seconds);
+        }
+
+        private static void sendStream(FileChannel source, long size) throws IOException {
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(HOST, PORT))) {
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, channel);
+                }
+            }
+        }
+
+        // Datagrams of whole lines; UDP may drop some of them under load.
+        private static void sendDatagrams(FileChannel source) throws IOException {
+            try (DatagramChannel channel = DatagramChannel.open().connect(new InetSocketAddress(HOST, PORT))) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+                ByteBuffer datagram = ByteBuffer.allocateDirect(DATAGRAM_SIZE);
+                long position = 0;
+                while (source.read(buffer, position) > 0) {
+                    int lineStart = 0;
+                    for (int i = 0; i < buffer.position(); i++) {
+                        if (buffer.get(i) != '\n') {
+                            continue;
+                        }
+                        int length = i + 1 - lineStart;
+                        if (datagram.position() + length > DATAGRAM_SIZE) {
+                            channel.write(datagram.flip());
+                            datagram.clear();
+                        }
+                        datagram.put(buffer.slice(lineStart, length));
+                        lineStart = i + 1;
+                    }
+                    if (lineStart == 0) {
+                        // Unterminated last line.
+                        break;
+                    }
+                    // The partial line is read again with the next block.
+                    position += lineStart;
+                    buffer.clear();
+                }
+                if (datagram.position() > 0) {
+                    channel.write(datagram.flip());
+                }
+            }
+        }
+
+        private static long countLines(FileChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            long lines = 0;
+            long position = 0;
+            int read;
+            while ((read = channel.read(buffer, position)) > 0) {
+                position += read;
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        lines++;
+                    }
+                }
+                buffer.clear();
+            }
+            return lines;
+        }
+    }
+}
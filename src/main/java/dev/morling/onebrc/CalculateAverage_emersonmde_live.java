@@ -0,0 +1,549 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import dev.morling.onebrc.CalculateAverage_emersonmde_concurrent.Sink;
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A live aggregate store that readers can query at any time without blocking writers or seeing torn stats.
+ *
+ * Stations are found through the same CAS-claimed, fixed-capacity index as the shared table of the concurrent
+ * variant. Stats are striped by writer, and every stripe of a station is guarded by its own seqlock: the single writer
+ * of a stripe makes the sequence odd, updates min, max, sum and count, and makes it even again, using ordered stores
+ * only and no atomic read-modify-write. A reader copies the four values between two reads of the sequence and retries
+ * if it changed or was odd. Combining the stripes then yields, for every writer, the stats of some prefix of its rows,
+ * so min, max, sum and count always describe the same set of rows. The per-station version is the sum of the stripe
+ * sequences, it changes whenever the station does.
+ *
+ * A full-table snapshot is the same read for every claimed slot, copied into flat arrays; writers are never paused.
+ *
+ * Without arguments ./measurements.txt is aggregated through the store, one writer per chunk. Run with
+ * --bench [seconds] [writers] [readers] [keys] to measure writers and readers running against each other.
+ */
+public class CalculateAverage_emersonmde_live {
+    private static final String FILE = "./measurements.txt";
+    private static final int CAPACITY = Integer.getInteger("live.capacity", 1 << 15);
+
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--bench")) {
+            Benchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 5,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 2,
+                    args.length > 3 ? Integer.parseInt(args[3]) : 2,
+                    args.length > 4 ? Integer.parseInt(args[4]) : 10_000);
+            return;
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long address = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            long[] chunks = CalculateAverage_emersonmde_concurrent.getSegments(address, fileSize, threads);
+            LiveStore store = new LiveStore(CAPACITY, stripesFor(threads));
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < workers.length; i++) {
+                int index = i;
+                workers[i] = new Thread(() -> CalculateAverage_emersonmde_concurrent.parseLoop(chunks[index], chunks[index + 1], store.writer(index)));
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            System.out.println(store.snapshot().format());
+        }
+    }
+
+    // Every writer needs a stripe of its own.
+    static int stripesFor(int writers) {
+        return Integer.highestOneBit(Math.max(1, writers) * 2 - 1);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    /**
+     * The hash the parse loop computes for a name: full words, then the remaining 0-7 bytes as one more word.
+     */
+    static int hash(byte[] name) {
+        return hash(name, Unsafe.ARRAY_BYTE_BASE_OFFSET, name.length);
+    }
+
+    static int hash(long address, int length) {
+        return hash(null, address, length);
+    }
+
+    private static int hash(Object base, long offset, int length) {
+        long hash = 0;
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            hash = (hash ^ UNSAFE.getLong(base, offset + i)) * HASH_MULTIPLIER;
+        }
+        long word = 0;
+        for (int shift = 0; i < length; i++, shift += 8) {
+            word |= (UNSAFE.getByte(base, offset + i) & 0xFFL) << shift;
+        }
+        hash = (hash ^ word) * HASH_MULTIPLIER;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Fixed-capacity store with a seqlock per station and stripe. Stats of a slot in a stripe take one cache line:
+     * sequence, min, max, sum and count, padded to eight longs.
+     */
+    static final class LiveStore {
+        private static final VarHandle TAGS = MethodHandles.arrayElementVarHandle(long[].class);
+        private static final VarHandle NAMES = MethodHandles.arrayElementVarHandle(byte[][].class);
+        private static final VarHandle STATS = MethodHandles.arrayElementVarHandle(long[].class);
+        private static final VarHandle ORDER = MethodHandles.arrayElementVarHandle(int[].class);
+
+        static final int SEQUENCE = 0;
+        static final int MIN = 1;
+        static final int MAX = 2;
+        static final int SUM = 3;
+        static final int COUNT = 4;
+        private static final int SHIFT = 3;
+
+        final int capacity;
+        final int mask;
+        final int stripes;
+        private final long[] tags;
+        private final byte[][] names;
+        private final long[] stats;
+        // Claimed slots plus one, in claim order, so snapshots only visit stations.
+        private final int[] order;
+        private final AtomicInteger claimed = new AtomicInteger();
+
+        LiveStore(int capacity, int stripes) {
+            if (Integer.bitCount(capacity) != 1 || Integer.bitCount(stripes) != 1) {
+                throw new IllegalArgumentException("Capacity and stripes must be powers of two");
+            }
+            if (((long) capacity * stripes << SHIFT) > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Capacity " + capacity + " with " + stripes + " stripes is too large");
+            }
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.stripes = stripes;
+            this.tags = new long[capacity];
+            this.names = new byte[capacity][];
+            this.stats = new long[capacity * stripes << SHIFT];
+            this.order = new int[capacity];
+            for (int i = 0; i < stats.length; i += 1 << SHIFT) {
+                stats[i + MIN] = Long.MAX_VALUE;
+                stats[i + MAX] = Long.MIN_VALUE;
+            }
+        }
+
+        /**
+         * The writer of a stripe. Two writers of the same stripe must never run concurrently.
+         */
+        Writer writer(int index) {
+            return new Writer(index & (stripes - 1));
+        }
+
+        final class Writer extends Sink {
+            private final int stripe;
+
+            private Writer(int stripe) {
+                this.stripe = stripe;
+            }
+
+            @Override
+            void add(long nameAddress, int nameLength, int hash, int value) {
+                add(slot(nameAddress, nameLength, hash), value);
+            }
+
+            /**
+             * Adds a value to a slot returned by claim.
+             */
+            void add(int slot, int value) {
+                int base = (stripe * capacity + slot) << SHIFT;
+                // Only this writer stores to its stripe, so plain loads of its own values are current.
+                long sequence = stats[base + SEQUENCE];
+                STATS.setOpaque(stats, base + SEQUENCE, sequence + 1);
+                VarHandle.storeStoreFence();
+                STATS.setOpaque(stats, base + MIN, Math.min(stats[base + MIN], value));
+                STATS.setOpaque(stats, base + MAX, Math.max(stats[base + MAX], value));
+                STATS.setOpaque(stats, base + SUM, stats[base + SUM] + value);
+                STATS.setOpaque(stats, base + COUNT, stats[base + COUNT] + 1);
+                STATS.setRelease(stats, base + SEQUENCE, sequence + 2);
+            }
+
+            /**
+             * Adds stats aggregated elsewhere, e.g. restored from a checkpoint.
+             */
+            void merge(long nameAddress, int nameLength, long min, long max, long sum, long count) {
+                int base = (stripe * capacity + slot(nameAddress, nameLength, hash(nameAddress, nameLength))) << SHIFT;
+                long sequence = stats[base + SEQUENCE];
+                STATS.setOpaque(stats, base + SEQUENCE, sequence + 1);
+                VarHandle.storeStoreFence();
+                STATS.setOpaque(stats, base + MIN, Math.min(stats[base + MIN], min));
+                STATS.setOpaque(stats, base + MAX, Math.max(stats[base + MAX], max));
+                STATS.setOpaque(stats, base + SUM, stats[base + SUM] + sum);
+                STATS.setOpaque(stats, base + COUNT, stats[base + COUNT] + count);
+                STATS.setRelease(stats, base + SEQUENCE, sequence + 2);
+            }
+        }
+
+        private int slot(long nameAddress, int nameLength, int hash) {
+            long tag = ((long) hash << 32) | (nameLength + 1);
+            int slot = hash & mask;
+            for (int probes = 0; probes < capacity; probes++, slot = (slot + 1) & mask) {
+                long current = (long) TAGS.getAcquire(tags, slot);
+                if (current == 0) {
+                    if (TAGS.compareAndSet(tags, slot, 0L, tag)) {
+                        NAMES.setRelease(names, slot, CalculateAverage_emersonmde_concurrent.copyName(nameAddress, nameLength));
+                        ORDER.setRelease(order, claimed.getAndIncrement(), slot + 1);
+                        return slot;
+                    }
+                    current = (long) TAGS.getAcquire(tags, slot);
+                }
+                if (current == tag) {
+                    byte[] name;
+                    while ((name = (byte[]) NAMES.getAcquire(names, slot)) == null) {
+                        Thread.onSpinWait();
+                    }
+                    if (CalculateAverage_emersonmde_concurrent.nameEquals(name, nameAddress, nameLength)) {
+                        return slot;
+                    }
+                }
+            }
+            throw new IllegalStateException("Live store is full, capacity is " + capacity);
+        }
+
+        /**
+         * Slot of the station, claimed if it is new. Slots never move, so they serve as station ids.
+         */
+        int claim(long nameAddress, int nameLength) {
+            return slot(nameAddress, nameLength, hash(nameAddress, nameLength));
+        }
+
+        int claim(byte[] name) {
+            int hash = hash(name);
+            long tag = ((long) hash << 32) | (name.length + 1);
+            int slot = hash & mask;
+            for (int probes = 0; probes < capacity; probes++, slot = (slot + 1) & mask) {
+                long current = (long) TAGS.getAcquire(tags, slot);
+                if (current == 0) {
+                    if (TAGS.compareAndSet(tags, slot, 0L, tag)) {
+                        NAMES.setRelease(names, slot, name.clone());
+                        ORDER.setRelease(order, claimed.getAndIncrement(), slot + 1);
+                        return slot;
+                    }
+                    current = (long) TAGS.getAcquire(tags, slot);
+                }
+                if (current == tag) {
+                    byte[] existing;
+                    while ((existing = (byte[]) NAMES.getAcquire(names, slot)) == null) {
+                        Thread.onSpinWait();
+                    }
+                    if (Arrays.equals(existing, name)) {
+                        return slot;
+                    }
+                }
+            }
+            throw new IllegalStateException("Live store is full, capacity is " + capacity);
+        }
+
+        /**
+         * Slot of the station, or -1 if it has no rows yet.
+         */
+        int find(byte[] name) {
+            int hash = hash(name);
+            long tag = ((long) hash << 32) | (name.length + 1);
+            int slot = hash & mask;
+            for (int probes = 0; probes < capacity; probes++, slot = (slot + 1) & mask) {
+                long current = (long) TAGS.getAcquire(tags, slot);
+                if (current == 0) {
+                    return -1;
+                }
+                byte[] existing;
+                if (current == tag && (existing = (byte[]) NAMES.getAcquire(names, slot)) != null
+                        && Arrays.equals(existing, name)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Copies a consistent min, max, sum and count of the slot into out and returns its version.
+         */
+        long read(int slot, long[] out) {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            long sum = 0;
+            long count = 0;
+            long version = 0;
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                int base = (stripe * capacity + slot) << SHIFT;
+                while (true) {
+                    long before = (long) STATS.getAcquire(stats, base + SEQUENCE);
+                    long stripeMin = (long) STATS.getOpaque(stats, base + MIN);
+                    long stripeMax = (long) STATS.getOpaque(stats, base + MAX);
+                    long stripeSum = (long) STATS.getOpaque(stats, base + SUM);
+                    long stripeCount = (long) STATS.getOpaque(stats, base + COUNT);
+                    VarHandle.loadLoadFence();
+                    if ((before & 1) == 0 && (long) STATS.getOpaque(stats, base + SEQUENCE) == before) {
+                        min = Math.min(min, stripeMin);
+                        max = Math.max(max, stripeMax);
+                        sum += stripeSum;
+                        count += stripeCount;
+                        version += before;
+                        break;
+                    }
+                    Thread.onSpinWait();
+                }
+            }
+            out[0] = min;
+            out[1] = max;
+            out[2] = sum;
+            out[3] = count;
+            return version;
+        }
+
+        byte[] name(int slot) {
+            return (byte[]) NAMES.getAcquire(names, slot);
+        }
+
+        /**
+         * Whether the slot has been claimed by a station, i.e. is a valid station id.
+         */
+        boolean isClaimed(int slot) {
+            return (long) TAGS.getAcquire(tags, slot) != 0;
+        }
+
+        /**
+         * Copies every station with at least one row, each consistent on its own.
+         */
+        Snapshot snapshot() {
+            int stations = claimed.get();
+            Snapshot snapshot = new Snapshot(stations);
+            long[] values = new long[4];
+            for (int i = 0; i < stations; i++) {
+                // Zero while the claiming writer is between its two stores, the station shows up next time.
+                int slot = (int) ORDER.getAcquire(order, i) - 1;
+                if (slot < 0) {
+                    continue;
+                }
+                byte[] name = (byte[]) NAMES.getAcquire(names, slot);
+                long version = read(slot, values);
+                if (values[3] > 0) {
+                    snapshot.add(slot, name, values, version);
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Flat copy of the store, in the order stations first appeared.
+     */
+    static final class Snapshot {
+        int size;
+        final int[] slots;
+        final byte[][] names;
+        final long[] mins;
+        final long[] maxs;
+        final long[] sums;
+        final long[] counts;
+        final long[] versions;
+
+        Snapshot(int capacity) {
+            slots = new int[capacity];
+            names = new byte[capacity][];
+            mins = new long[capacity];
+            maxs = new long[capacity];
+            sums = new long[capacity];
+            counts = new long[capacity];
+            versions = new long[capacity];
+        }
+
+        void add(int slot, byte[] name, long[] values, long version) {
+            slots[size] = slot;
+            names[size] = name;
+            mins[size] = values[0];
+            maxs[size] = values[1];
+            sums[size] = values[2];
+            counts[size] = values[3];
+            versions[size] = version;
+            size++;
+        }
+
+        String format() {
+            TreeMap<String, String> result = new TreeMap<>();
+            for (int i = 0; i < size; i++) {
+                result.put(new String(names[i], StandardCharsets.UTF_8),
+                        round(mins[i] / 10.0) + "/" + round((sums[i] / 10.0) / counts[i]) + "/" + round(maxs[i] / 10.0));
+            }
+            return result.toString();
+        }
+    }
+
+    /**
+     * Writers parse synthetic rows into the store for a fixed time while readers look up random stations or take full
+     * snapshots. Every station always has the same value, so a torn read shows up as sum != count * value.
+     */
+    static final class Benchmark {
+        static void run(int seconds, int writers, int readers, int keys) throws InterruptedException {
+            byte[][] names = CalculateAverage_emersonmde_concurrent.Benchmark.names(keys);
+            System.out.printf("writers=%d, readers=%d, keys=%,d, %d s per run, cores=%d%n", writers, readers, keys, seconds,
+                    Runtime.getRuntime().availableProcessors());
+            System.out.printf("%-10s %8s %16s %16s %8s%n", "readers", "count", "writer rows/s", "reads/s", "torn");
+            try (Arena arena = Arena.ofShared()) {
+                MemorySegment data = generate(arena, 4_000_000, names);
+                long[] chunks = CalculateAverage_emersonmde_concurrent.getSegments(data.address(), data.byteSize(), writers);
+                // Warm-up, then writers alone and against each kind of reader.
+                measure(1, chunks, writers, 0, false, names);
+                System.out.println(measure(seconds, chunks, writers, 0, false, names));
+                System.out.println(measure(seconds, chunks, writers, readers, false, names));
+                System.out.println(measure(seconds, chunks, writers, readers, true, names));
+            }
+        }
+
+        private static String measure(int seconds, long[] chunks, int writers, int readers, boolean snapshots, byte[][] names)
+                throws InterruptedException {
+            LiveStore store = new LiveStore(Integer.highestOneBit(names.length * 2 - 1) << 1,
+                    stripesFor(writers));
+            AtomicBoolean running = new AtomicBoolean(true);
+            LongAdder rows = new LongAdder();
+            LongAdder reads = new LongAdder();
+            LongAdder torn = new LongAdder();
+            Thread[] threads = new Thread[writers + readers];
+            for (int i = 0; i < writers; i++) {
+                int index = i;
+                threads[i] = new Thread(() -> {
+                    Sink writer = store.writer(index);
+                    long rowsPerPass = chunkRows(chunks[index], chunks[index + 1]);
+                    while (running.get()) {
+                        CalculateAverage_emersonmde_concurrent.parseLoop(chunks[index], chunks[index + 1], writer);
+                        rows.add(rowsPerPass);
+                    }
+                });
+            }
+            for (int i = writers; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    long[] values = new long[4];
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (running.get()) {
+                        if (snapshots) {
+                            Snapshot snapshot = store.snapshot();
+                            for (int s = 0; s < snapshot.size; s++) {
+                                long value = value(snapshot.names[s]);
+                                if (snapshot.sums[s] != snapshot.counts[s] * value || snapshot.mins[s] != value || snapshot.maxs[s] != value) {
+                                    torn.increment();
+                                }
+                            }
+                        }
+                        else {
+                            int station = random.nextInt(names.length);
+                            int slot = store.find(names[station]);
+                            if (slot >= 0) {
+                                store.read(slot, values);
+                                long value = value(names[station]);
+                                if (values[2] != values[3] * value || values[0] != value || values[1] != value) {
+                                    torn.increment();
+                                }
+                            }
+                        }
+                        reads.increment();
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            Thread.sleep(seconds * 1000L);
+            running.set(false);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            return String.format("%-10s %8d %,16.0f %,16.0f %8d", readers == 0 ? "none" : snapshots ? "snapshot" : "station",
+                    readers, rows.sum() / elapsed, reads.sum() / elapsed, torn.sum());
+        }
+
+        private static long chunkRows(long start, long end) {
+            long rows = 0;
+            for (long address = start; address < end; address++) {
+                if (UNSAFE.getByte(address) == '\n') {
+                    rows++;
+                }
+            }
+            return rows;
+        }
+
+        // Every row of a station has this value in tenths.
+        private static long value(byte[] name) {
+            return Math.floorMod(hash(name), 1999) - 999;
+        }
+
+        private static MemorySegment generate(Arena arena, int rows, byte[][] names) {
+            byte[][] lines = new byte[names.length][];
+            int longest = 0;
+            for (int i = 0; i < names.length; i++) {
+                long value = value(names[i]);
+                String text = (value < 0 ? "-" : "") + Math.abs(value) / 10 + "." + Math.abs(value) % 10;
+                lines[i] = (new String(names[i], StandardCharsets.UTF_8) + ";" + text + "\n").getBytes(StandardCharsets.UTF_8);
+                longest = Math.max(longest, lines[i].length);
+            }
+            MemorySegment data = arena.allocate((long) rows * longest);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long position = 0;
+            for (int i = 0; i < rows; i++) {
+                byte[] line = lines[i < lines.length ? i : random.nextInt(lines.length)];
+                MemorySegment.copy(line, 0, data, ValueLayout.JAVA_BYTE, position, line.length);
+                position += line.length;
+            }
+            return data.asSlice(0, position);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Aggregates rows with several fixed-point values, e.g. station;temperature;humidity;pressure.
+ *
+ * The columns are described by a schema, each with a name and a range whose bounds also fix the number of decimals.
+ * From that every column derives its parser: if the longest value fits into 8 bytes, a branch-free SWAR parser that
+ * locates the decimal point (or the delimiter for integers), aligns the digits to the top of the word, drops the
+ * point and combines all digits with three multiplications; otherwise a plain digit loop. Values stay scaled
+ * integers throughout, and every column has its own min/max/sum lanes in the station table.
+ *
+ * Configuration via system properties:
+ *   multimetric.schema  comma separated name:min..max columns (default temperature:-99.9..99.9)
+ *
+ * Every station is printed as name={column=min/mean/max, ...}.
+ */
+public class CalculateAverage_emersonmde_multimetric {
+    private static final String FILE = "./measurements.txt";
+
+    private static final long SEMICOLONS = 0x3B3B3B3B3B3B3B3BL;
+    private static final long NEW_LINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Column[] columns = Arrays.stream(System.getProperty("multimetric.schema", "temperature:-99.9..99.9").split(","))
+                .map(Column::new)
+                .toArray(Column[]::new);
+
+        int numberOfChunks = Runtime.getRuntime().availableProcessors();
+        long[] chunks = getSegments(numberOfChunks);
+
+        Table result = IntStream.range(0, chunks.length - 1).mapToObj(chunkIndex -> {
+            Table table = new Table(1 << 10, columns.length);
+            parseLoop(chunks[chunkIndex], chunks[chunkIndex + 1], table, columns);
+            return table;
+        }).parallel().reduce((left, right) -> {
+            left.mergeFrom(right);
+            return left;
+        }).orElseGet(() -> new Table(1 << 10, columns.length));
+
+        TreeMap<String, Map<String, String>> output = new TreeMap<>();
+        for (int slot = 0; slot < result.nameAddresses.length; slot++) {
+            if (result.nameAddresses[slot] == 0) {
+                continue;
+            }
+            Map<String, String> stats = new LinkedHashMap<>();
+            for (int c = 0; c < columns.length; c++) {
+                int lane = slot * columns.length + c;
+                stats.put(columns[c].name, columns[c].format(result.mins[lane], result.maxs[lane], result.sums[lane], result.counts[slot]));
+            }
+            output.put(result.name(slot), stats);
+        }
+        System.out.println(output);
+    }
+
+    /**
+     * One fixed-point column: its scale, and whether its values are short enough for the SWAR parser.
+     */
+    static final class Column {
+        final String name;
+        final int scale;
+        final boolean swar;
+        // Byte position of the decimal point once the last digit is aligned to the top byte.
+        private final int pointShift;
+
+        Column(String spec) {
+            int colon = spec.indexOf(':');
+            int dots = spec.indexOf("..");
+            if (colon < 1 || dots < colon) {
+                throw new IllegalArgumentException("Expected name:min..max: " + spec);
+            }
+            name = spec.substring(0, colon);
+            BigDecimal minimum = new BigDecimal(spec.substring(colon + 1, dots));
+            BigDecimal maximum = new BigDecimal(spec.substring(dots + 2));
+            if (minimum.scale() != maximum.scale() || minimum.scale() < 0 || minimum.compareTo(maximum) > 0) {
+                throw new IllegalArgumentException("Bounds need the same number of decimals and min <= max: " + spec);
+            }
+            scale = minimum.scale();
+            long largest = Math.max(minimum.unscaledValue().abs().longValueExact(), maximum.unscaledValue().abs().longValueExact());
+            if (largest > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Values must fit into an int when scaled: " + spec);
+            }
+            int digits = Math.max(Long.toString(largest).length(), scale + 1);
+            int longest = (minimum.signum() < 0 ? 1 : 0) + digits + (scale > 0 ? 1 : 0);
+            swar = longest <= Long.BYTES;
+            pointShift = (Long.BYTES - 1 - scale) * Byte.SIZE;
+        }
+
+        /**
+         * Parses the value at the address. Returns the scaled value in the low 32 bits and the number of bytes
+         * consumed, including the delimiter, in the high 32 bits.
+         */
+        long parse(long address, long limit) {
+            // One spare byte for the reload past a sign.
+            if (swar && address + Long.BYTES < limit) {
+                return parseSwar(address);
+            }
+            return parseScalar(address);
+        }
+
+        private long parseSwar(long address) {
+            long word = UNSAFE.getLong(address);
+            // '-' has bit 4 clear, digits have it set.
+            long signed = (~word << 59) >> 63;
+            // Reload past the sign rather than shift it out, a negative value may still have seven digits and its
+            // delimiter in the following eight bytes.
+            long unsigned = UNSAFE.getLong(address - signed);
+            int length;
+            long digits;
+            if (scale > 0) {
+                // The first byte with bit 4 clear is the decimal point.
+                length = (Long.numberOfTrailingZeros(~unsigned & 0x1010101010101010L) >>> 3) + 1 + scale;
+                long aligned = unsigned << ((Long.BYTES - length) << 3);
+                // Move the integer digits up by one byte, over the point.
+                digits = (((aligned & ((1L << pointShift) - 1)) << 8) | (aligned & (-1L << (pointShift + 8))));
+            }
+            else {
+                long semicolons = unsigned ^ SEMICOLONS;
+                long newLines = unsigned ^ NEW_LINES;
+                long delimiters = (((semicolons - ONES) & ~semicolons) | ((newLines - ONES) & ~newLines)) & HIGH_BITS;
+                // Borrows only propagate upwards, so the lowest flagged byte is the first delimiter; none means 8 digits.
+                length = Long.numberOfTrailingZeros(delimiters) >>> 3;
+                digits = unsigned << ((Long.BYTES - length) << 3);
+            }
+            // Eight digits, most significant in the lowest byte, padded with leading zeros.
+            digits &= 0x0F0F0F0F0F0F0F0FL;
+            digits = (digits * 2561) >>> 8;
+            digits = ((digits & 0x00FF00FF00FF00FFL) * 6553601) >>> 16;
+            digits = ((digits & 0x0000FFFF0000FFFFL) * 42949672960001L) >>> 32;
+            long value = ((int) digits ^ signed) - signed;
+            return ((long) ((int) (signed & 1) + length + 1) << 32) | (value & 0xFFFFFFFFL);
+        }
+
+        private long parseScalar(long address) {
+            long position = address;
+            boolean negative = UNSAFE.getByte(position) == '-';
+            if (negative) {
+                position++;
+            }
+            int value = 0;
+            byte b;
+            while ((b = UNSAFE.getByte(position++)) != ';' && b != '\n') {
+                if (b != '.') {
+                    value = value * 10 + (b - '0');
+                }
+            }
+            return ((position - address) << 32) | ((negative ? -value : value) & 0xFFFFFFFFL);
+        }
+
+        String format(long min, long max, long sum, long count) {
+            double factor = Math.pow(10, scale);
+            long mean = Math.round(((sum / factor) / count) * factor);
+            return BigDecimal.valueOf(min, scale).toPlainString() + "/" + BigDecimal.valueOf(mean, scale).toPlainString() + "/"
+                    + BigDecimal.valueOf(max, scale).toPlainString();
+        }
+    }
+
+    private static long[] getSegments(int numberOfChunks) throws IOException {
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
+            long[] chunks = new long[numberOfChunks + 1];
+            long mappedAddress = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            chunks[0] = mappedAddress;
+            long endAddress = mappedAddress + fileSize;
+            for (int i = 1; i < numberOfChunks; ++i) {
+                long chunkAddress = mappedAddress + i * segmentSize;
+                // Align to first row start.
+                while (chunkAddress < endAddress && UNSAFE.getByte(chunkAddress++) != '\n') {
+                    // nop
+                }
+                chunks[i] = Math.min(chunkAddress, endAddress);
+            }
+            chunks[numberOfChunks] = endAddress;
+            return chunks;
+        }
+    }
+
+    private static void parseLoop(long chunkStart, long chunkEnd, Table table, Column[] columns) {
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // Scan for ';' delimiter 8 bytes at a time, falling back to single bytes near the end of the chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - ONES) & ~match & HIGH_BITS;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = (hash ^ (word & ((lowest >>> 7) - 1))) * HASH_MULTIPLIER;
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            scanPtr++;
+
+            int slot = table.slot(nameAddress, nameLength, (int) (hash ^ (hash >>> 32)));
+            table.counts[slot]++;
+            int lane = slot * columns.length;
+            for (Column column : columns) {
+                long parsed = column.parse(scanPtr, chunkEnd);
+                table.add(lane++, (int) parsed);
+                scanPtr += parsed >>> 32;
+            }
+        }
+    }
+
+    private static boolean nameEquals(long left, long right, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (UNSAFE.getLong(left + i) != UNSAFE.getLong(right + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (UNSAFE.getByte(left + i) != UNSAFE.getByte(right + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Growable linear probing table, names point into the mapped file. Each station has one lane per column in
+     * mins, maxs and sums, at slot * columns + column.
+     */
+    private static final class Table {
+        final int columns;
+        long[] nameAddresses;
+        int[] nameLengths;
+        int[] hashes;
+        long[] counts;
+        int[] mins;
+        int[] maxs;
+        long[] sums;
+        int size;
+
+        Table(int capacity, int columns) {
+            this.columns = columns;
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            nameAddresses = new long[capacity];
+            nameLengths = new int[capacity];
+            hashes = new int[capacity];
+            counts = new long[capacity];
+            mins = new int[capacity * columns];
+            maxs = new int[capacity * columns];
+            sums = new long[capacity * columns];
+        }
+
+        int slot(long nameAddress, int nameLength, int hash) {
+            int mask = nameAddresses.length - 1;
+            int slot = hash & mask;
+            long existing;
+            while ((existing = nameAddresses[slot]) != 0) {
+                if (hashes[slot] == hash && nameLengths[slot] == nameLength && nameEquals(existing, nameAddress, nameLength)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if ((size + 1) * 2 > nameAddresses.length) {
+                grow();
+                return slot(nameAddress, nameLength, hash);
+            }
+            size++;
+            nameAddresses[slot] = nameAddress;
+            nameLengths[slot] = nameLength;
+            hashes[slot] = hash;
+            Arrays.fill(mins, slot * columns, (slot + 1) * columns, Integer.MAX_VALUE);
+            Arrays.fill(maxs, slot * columns, (slot + 1) * columns, Integer.MIN_VALUE);
+            return slot;
+        }
+
+        void add(int lane, int value) {
+            mins[lane] = Math.min(mins[lane], value);
+            maxs[lane] = Math.max(maxs[lane], value);
+            sums[lane] += value;
+        }
+
+        void mergeFrom(Table other) {
+            for (int otherSlot = 0; otherSlot < other.nameAddresses.length; otherSlot++) {
+                if (other.nameAddresses[otherSlot] == 0) {
+                    continue;
+                }
+                int slot = slot(other.nameAddresses[otherSlot], other.nameLengths[otherSlot], other.hashes[otherSlot]);
+                counts[slot] += other.counts[otherSlot];
+                for (int c = 0; c < columns; c++) {
+                    int lane = slot * columns + c;
+                    int otherLane = otherSlot * columns + c;
+                    mins[lane] = Math.min(mins[lane], other.mins[otherLane]);
+                    maxs[lane] = Math.max(maxs[lane], other.maxs[otherLane]);
+                    sums[lane] += other.sums[otherLane];
+                }
+            }
+        }
+
+        String name(int slot) {
+            byte[] bytes = new byte[nameLengths[slot]];
+            UNSAFE.copyMemory(null, nameAddresses[slot], bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void grow() {
+            long[] oldNameAddresses = nameAddresses;
+            int[] oldNameLengths = nameLengths;
+            int[] oldHashes = hashes;
+            long[] oldCounts = counts;
+            int[] oldMins = mins;
+            int[] oldMaxs = maxs;
+            long[] oldSums = sums;
+            allocate(oldNameAddresses.length * 2);
+            int mask = nameAddresses.length - 1;
+            for (int oldSlot = 0; oldSlot < oldNameAddresses.length; oldSlot++) {
+                if (oldNameAddresses[oldSlot] == 0) {
+                    continue;
+                }
+                int slot = oldHashes[oldSlot] & mask;
+                while (nameAddresses[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                nameAddresses[slot] = oldNameAddresses[oldSlot];
+                nameLengths[slot] = oldNameLengths[oldSlot];
+                hashes[slot] = oldHashes[oldSlot];
+                counts[slot] = oldCounts[oldSlot];
+                System.arraycopy(oldMins, oldSlot * columns, mins, slot * columns, columns);
+                System.arraycopy(oldMaxs, oldSlot * columns, maxs, slot * columns, columns);
+                System.arraycopy(oldSums, oldSlot * columns, sums, slot * columns, columns);
+            }
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Per-thread tables like most other entries, but the merge is parallel as well.
+ *
+ * The hash space is split into one range per thread. After parsing, every worker buckets its entries by range, then
+ * each merge thread owns one range and folds that range from every worker's table into its own table, comparing name
+ * bytes in the mapped file. Strings are only created for the final output: each range is formatted and sorted by its
+ * owner and the sorted ranges are combined with a k-way merge.
+ */
+public class CalculateAverage_emersonmde_partitioned {
+    private static final String FILE = "./measurements.txt";
+
+    private static final long SEMICOLONS = 0x3B3B3B3B3B3B3B3BL;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int numberOfChunks = Runtime.getRuntime().availableProcessors();
+        long[] chunks = getSegments(numberOfChunks);
+        int partitions = numberOfChunks;
+
+        // Parse chunks into private tables.
+        Table[] tables = IntStream.range(0, chunks.length - 1).mapToObj(chunkIndex -> {
+            Table table = new Table(1 << 10);
+            parseLoop(chunks[chunkIndex], chunks[chunkIndex + 1], table);
+            table.partition(partitions);
+            return table;
+        }).parallel().toArray(Table[]::new);
+
+        // Every partition owner merges its hash range from all tables, then formats and sorts it.
+        Row[][] sortedPartitions = IntStream.range(0, partitions).mapToObj(partition -> {
+            Table merged = new Table(1 << 10);
+            for (Table table : tables) {
+                int[] entries = table.partitionEntries[partition];
+                for (int i = 0, n = table.partitionSizes[partition]; i < n; i++) {
+                    merged.merge(table, entries[i]);
+                }
+            }
+            return merged.sortedOutput();
+        }).parallel().toArray(Row[][]::new);
+
+        // Final k-way merge of the sorted partitions.
+        PriorityQueue<int[]> queue = new PriorityQueue<>(Math.max(1, partitions),
+                (l, r) -> sortedPartitions[l[0]][l[1]].name().compareTo(sortedPartitions[r[0]][r[1]].name()));
+        int total = 0;
+        for (int partition = 0; partition < partitions; partition++) {
+            total += sortedPartitions[partition].length;
+            if (sortedPartitions[partition].length > 0) {
+                queue.add(new int[]{ partition, 0 });
+            }
+        }
+        StringBuilder builder = new StringBuilder(total * 24 + 2);
+        builder.append('{');
+        while (!queue.isEmpty()) {
+            int[] cursor = queue.poll();
+            if (builder.length() > 1) {
+                builder.append(", ");
+            }
+            Row row = sortedPartitions[cursor[0]][cursor[1]];
+            builder.append(row.name()).append('=').append(row.stats());
+            if (++cursor[1] < sortedPartitions[cursor[0]].length) {
+                queue.add(cursor);
+            }
+        }
+        builder.append('}');
+        System.out.println(builder);
+    }
+
+    private static long[] getSegments(int numberOfChunks) throws IOException {
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
+            long[] chunks = new long[numberOfChunks + 1];
+            long mappedAddress = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            chunks[0] = mappedAddress;
+            long endAddress = mappedAddress + fileSize;
+            for (int i = 1; i < numberOfChunks; ++i) {
+                long chunkAddress = mappedAddress + i * segmentSize;
+                // Align to first row start.
+                while (chunkAddress < endAddress && UNSAFE.getByte(chunkAddress++) != '\n') {
+                    // nop
+                }
+                chunks[i] = Math.min(chunkAddress, endAddress);
+            }
+            chunks[numberOfChunks] = endAddress;
+            return chunks;
+        }
+    }
+
+    private static void parseLoop(long chunkStart, long chunkEnd, Table table) {
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // Scan for ';' delimiter 8 bytes at a time, falling back to single bytes near the end of the chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = (hash ^ (word & ((lowest >>> 7) - 1))) * HASH_MULTIPLIER;
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            scanPtr++;
+
+            // Parse number.
+            int number;
+            byte sign = UNSAFE.getByte(scanPtr++);
+            if (sign == '-') {
+                number = UNSAFE.getByte(scanPtr++) - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+                number = -number;
+            }
+            else {
+                number = sign - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+            }
+
+            table.add(nameAddress, nameLength, (int) (hash ^ (hash >>> 32)), number);
+
+            // Skip new line.
+            scanPtr++;
+        }
+    }
+
+    private static boolean nameEquals(long left, long right, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (UNSAFE.getLong(left + i) != UNSAFE.getLong(right + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (UNSAFE.getByte(left + i) != UNSAFE.getByte(right + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    private record Row(String name, String stats) {
+    }
+
+    /**
+     * Growable linear probing table, names point into the mapped file.
+     */
+    private static final class Table {
+        long[] nameAddresses;
+        int[] nameLengths;
+        int[] hashes;
+        int[] mins;
+        int[] maxs;
+        long[] sums;
+        long[] counts;
+        int size;
+
+        // Slots of this table bucketed by hash range, filled once parsing is done.
+        int[][] partitionEntries;
+        int[] partitionSizes;
+
+        Table(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            nameAddresses = new long[capacity];
+            nameLengths = new int[capacity];
+            hashes = new int[capacity];
+            mins = new int[capacity];
+            maxs = new int[capacity];
+            sums = new long[capacity];
+            counts = new long[capacity];
+        }
+
+        private int slot(long nameAddress, int nameLength, int hash) {
+            int mask = nameAddresses.length - 1;
+            int slot = hash & mask;
+            long existing;
+            while ((existing = nameAddresses[slot]) != 0) {
+                if (hashes[slot] == hash && nameLengths[slot] == nameLength && nameEquals(existing, nameAddress, nameLength)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if ((size + 1) * 2 > nameAddresses.length) {
+                grow();
+                return slot(nameAddress, nameLength, hash);
+            }
+            size++;
+            nameAddresses[slot] = nameAddress;
+            nameLengths[slot] = nameLength;
+            hashes[slot] = hash;
+            mins[slot] = Integer.MAX_VALUE;
+            maxs[slot] = Integer.MIN_VALUE;
+            return slot;
+        }
+
+        void add(long nameAddress, int nameLength, int hash, int value) {
+            int slot = slot(nameAddress, nameLength, hash);
+            mins[slot] = Math.min(mins[slot], value);
+            maxs[slot] = Math.max(maxs[slot], value);
+            sums[slot] += value;
+            counts[slot]++;
+        }
+
+        void merge(Table other, int otherSlot) {
+            int slot = slot(other.nameAddresses[otherSlot], other.nameLengths[otherSlot], other.hashes[otherSlot]);
+            mins[slot] = Math.min(mins[slot], other.mins[otherSlot]);
+            maxs[slot] = Math.max(maxs[slot], other.maxs[otherSlot]);
+            sums[slot] += other.sums[otherSlot];
+            counts[slot] += other.counts[otherSlot];
+        }
+
+        // Bucket the used slots by hash range: the range of a hash is its position in the unsigned 32 bit space.
+        void partition(int partitions) {
+            partitionSizes = new int[partitions];
+            int[] partitionOf = new int[nameAddresses.length];
+            for (int slot = 0; slot < nameAddresses.length; slot++) {
+                if (nameAddresses[slot] != 0) {
+                    int partition = (int) (((hashes[slot] & 0xFFFFFFFFL) * partitions) >>> 32);
+                    partitionOf[slot] = partition;
+                    partitionSizes[partition]++;
+                }
+            }
+            partitionEntries = new int[partitions][];
+            for (int partition = 0; partition < partitions; partition++) {
+                partitionEntries[partition] = new int[partitionSizes[partition]];
+                partitionSizes[partition] = 0;
+            }
+            for (int slot = 0; slot < nameAddresses.length; slot++) {
+                if (nameAddresses[slot] != 0) {
+                    int partition = partitionOf[slot];
+                    partitionEntries[partition][partitionSizes[partition]++] = slot;
+                }
+            }
+        }
+
+        Row[] sortedOutput() {
+            Row[] output = new Row[size];
+            int i = 0;
+            for (int slot = 0; slot < nameAddresses.length; slot++) {
+                if (nameAddresses[slot] != 0) {
+                    byte[] name = new byte[nameLengths[slot]];
+                    UNSAFE.copyMemory(null, nameAddresses[slot], name, Unsafe.ARRAY_BYTE_BASE_OFFSET, name.length);
+                    output[i++] = new Row(new String(name, StandardCharsets.UTF_8),
+                            round(mins[slot] / 10.0) + "/" + round((sums[slot] / 10.0) / counts[slot]) + "/" + round(maxs[slot] / 10.0));
+                }
+            }
+            Arrays.sort(output, Comparator.comparing(Row::name));
+            return output;
+        }
+
+        private void grow() {
+            long[] oldNameAddresses = nameAddresses;
+            int[] oldNameLengths = nameLengths;
+            int[] oldHashes = hashes;
+            int[] oldMins = mins;
+            int[] oldMaxs = maxs;
+            long[] oldSums = sums;
+            long[] oldCounts = counts;
+            allocate(oldNameAddresses.length * 2);
+            int mask = nameAddresses.length - 1;
+            for (int oldSlot = 0; oldSlot < oldNameAddresses.length; oldSlot++) {
+                if (oldNameAddresses[oldSlot] == 0) {
+                    continue;
+                }
+                int slot = oldHashes[oldSlot] & mask;
+                while (nameAddresses[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                nameAddresses[slot] = oldNameAddresses[oldSlot];
+                nameLengths[slot] = oldNameLengths[oldSlot];
+                hashes[slot] = oldHashes[oldSlot];
+                mins[slot] = oldMins[oldSlot];
+                maxs[slot] = oldMaxs[oldSlot];
+                sums[slot] = oldSums[oldSlot];
+                counts[slot] = oldCounts[oldSlot];
+            }
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Exact per-station percentiles in a single scan.
+ *
+ * Temperatures only take 1999 distinct values (-99.9..99.9 in tenths), so instead of keeping the values themselves
+ * every station keeps a histogram: a handful of (value, count) pairs while it is cold, a dense int[1999] once it has
+ * seen more than 32 distinct values. Histograms of all workers are merged and percentiles are read off by nearest
+ * rank, so they are exact.
+ *
+ * Usage: CalculateAverage_emersonmde_percentiles [quantiles], e.g. 0.5,0.95,0.99 (the default). Every station is
+ * printed as name=min/mean/max p50=.. p95=.. p99=..
+ */
+public class CalculateAverage_emersonmde_percentiles {
+    private static final String FILE = "./measurements.txt";
+
+    private static final long SEMICOLONS = 0x3B3B3B3B3B3B3B3BL;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        BigDecimal[] quantiles = parseQuantiles(args.length > 0 ? args[0] : "0.5,0.95,0.99");
+        String[] labels = new String[quantiles.length];
+        for (int i = 0; i < quantiles.length; i++) {
+            labels[i] = " p" + quantiles[i].movePointRight(2).stripTrailingZeros().toPlainString() + "=";
+        }
+
+        int numberOfChunks = Runtime.getRuntime().availableProcessors();
+        long[] chunks = getSegments(numberOfChunks);
+
+        Table result = IntStream.range(0, chunks.length - 1).mapToObj(chunkIndex -> {
+            Table table = new Table(1 << 10);
+            parseLoop(chunks[chunkIndex], chunks[chunkIndex + 1], table);
+            return table;
+        }).parallel().reduce((left, right) -> {
+            left.mergeFrom(right);
+            return left;
+        }).orElseGet(() -> new Table(1 << 10));
+
+        TreeMap<String, String> output = new TreeMap<>();
+        for (int slot = 0; slot < result.nameAddresses.length; slot++) {
+            if (result.nameAddresses[slot] == 0) {
+                continue;
+            }
+            Histogram histogram = result.histograms[slot];
+            StringBuilder stats = new StringBuilder();
+            stats.append(round(histogram.min() / 10.0)).append('/')
+                    .append(round((result.sums[slot] / 10.0) / histogram.count)).append('/')
+                    .append(round(histogram.max() / 10.0));
+            for (int i = 0; i < quantiles.length; i++) {
+                stats.append(labels[i]).append(round(histogram.quantile(quantiles[i]) / 10.0));
+            }
+            output.put(result.name(slot), stats.toString());
+        }
+        System.out.println(output);
+    }
+
+    // Decimal, so that ranks and labels are exactly what was typed: 0.07 * 100 is 7, not 7.000000000000001.
+    private static BigDecimal[] parseQuantiles(String arg) {
+        BigDecimal[] quantiles = Arrays.stream(arg.split(",")).map(quantile -> new BigDecimal(quantile.trim())).toArray(BigDecimal[]::new);
+        for (BigDecimal quantile : quantiles) {
+            if (quantile.signum() <= 0 || quantile.compareTo(BigDecimal.ONE) > 0) {
+                throw new IllegalArgumentException("Quantiles must be in (0, 1]: " + arg);
+            }
+        }
+        return quantiles;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    private static long[] getSegments(int numberOfChunks) throws IOException {
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
+            long[] chunks = new long[numberOfChunks + 1];
+            long mappedAddress = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            chunks[0] = mappedAddress;
+            long endAddress = mappedAddress + fileSize;
+            for (int i = 1; i < numberOfChunks; ++i) {
+                long chunkAddress = mappedAddress + i * segmentSize;
+                // Align to first row start.
+                while (chunkAddress < endAddress && UNSAFE.getByte(chunkAddress++) != '\n') {
+                    // nop
+                }
+                chunks[i] = Math.min(chunkAddress, endAddress);
+            }
+            chunks[numberOfChunks] = endAddress;
+            return chunks;
+        }
+    }
+
+    private static void parseLoop(long chunkStart, long chunkEnd, Table table) {
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // Scan for ';' delimiter 8 bytes at a time, falling back to single bytes near the end of the chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = (hash ^ (word & ((lowest >>> 7) - 1))) * HASH_MULTIPLIER;
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            scanPtr++;
+
+            // Parse number.
+            int number;
+            byte sign = UNSAFE.getByte(scanPtr++);
+            if (sign == '-') {
+                number = UNSAFE.getByte(scanPtr++) - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+                number = -number;
+            }
+            else {
+                number = sign - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+            }
+
+            table.add(nameAddress, nameLength, (int) (hash ^ (hash >>> 32)), number);
+
+            // Skip new line.
+            scanPtr++;
+        }
+    }
+
+    private static boolean nameEquals(long left, long right, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (UNSAFE.getLong(left + i) != UNSAFE.getLong(right + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (UNSAFE.getByte(left + i) != UNSAFE.getByte(right + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts per temperature value. Starts out as a short list of (value, count) pairs and switches to one counter
+     * per possible value once the list fills up.
+     */
+    static final class Histogram {
+        static final int OFFSET = 999;
+        static final int BINS = 2 * OFFSET + 1;
+        static final int SPARSE_LIMIT = 32;
+
+        short[] sparseValues = new short[4];
+        int[] sparseCounts = new int[4];
+        int sparseSize;
+        int[] dense;
+        long count;
+
+        void add(int value) {
+            count++;
+            if (dense != null) {
+                dense[value + OFFSET]++;
+            }
+            else {
+                addSparse(value, 1);
+            }
+        }
+
+        private void addSparse(int value, int n) {
+            for (int i = 0; i < sparseSize; i++) {
+                if (sparseValues[i] == value) {
+                    sparseCounts[i] += n;
+                    return;
+                }
+            }
+            if (sparseSize == SPARSE_LIMIT) {
+                densify();
+                dense[value + OFFSET] += n;
+                return;
+            }
+            if (sparseSize == sparseValues.length) {
+                sparseValues = Arrays.copyOf(sparseValues, sparseSize * 2);
+                sparseCounts = Arrays.copyOf(sparseCounts, sparseSize * 2);
+            }
+            sparseValues[sparseSize] = (short) value;
+            sparseCounts[sparseSize++] = n;
+        }
+
+        private void densify() {
+            dense = new int[BINS];
+            for (int i = 0; i < sparseSize; i++) {
+                dense[sparseValues[i] + OFFSET] += sparseCounts[i];
+            }
+            sparseValues = null;
+            sparseCounts = null;
+            sparseSize = 0;
+        }
+
+        void merge(Histogram other) {
+            count += other.count;
+            if (other.dense != null) {
+                if (dense == null) {
+                    densify();
+                }
+                for (int i = 0; i < BINS; i++) {
+                    dense[i] += other.dense[i];
+                }
+            }
+            else if (dense != null) {
+                for (int i = 0; i < other.sparseSize; i++) {
+                    dense[other.sparseValues[i] + OFFSET] += other.sparseCounts[i];
+                }
+            }
+            else {
+                for (int i = 0; i < other.sparseSize; i++) {
+                    addSparse(other.sparseValues[i], other.sparseCounts[i]);
+                }
+            }
+        }
+
+        int min() {
+            return quantileByRank(1);
+        }
+
+        int max() {
+            return quantileByRank(count);
+        }
+
+        // Nearest rank: the smallest value with at least ceil(q * count) values less than or equal to it.
+        int quantile(BigDecimal quantile) {
+            return quantileByRank(Math.max(1, quantile.multiply(BigDecimal.valueOf(count)).setScale(0, RoundingMode.CEILING).longValueExact()));
+        }
+
+        private int quantileByRank(long rank) {
+            long seen = 0;
+            if (dense != null) {
+                for (int i = 0; i < BINS; i++) {
+                    seen += dense[i];
+                    if (seen >= rank) {
+                        return i - OFFSET;
+                    }
+                }
+            }
+            else {
+                sortSparse();
+                for (int i = 0; i < sparseSize; i++) {
+                    seen += sparseCounts[i];
+                    if (seen >= rank) {
+                        return sparseValues[i];
+                    }
+                }
+            }
+            throw new IllegalStateException("Rank " + rank + " exceeds count " + count);
+        }
+
+        private void sortSparse() {
+            for (int i = 1; i < sparseSize; i++) {
+                short value = sparseValues[i];
+                int n = sparseCounts[i];
+                int j = i - 1;
+                for (; j >= 0 && sparseValues[j] > value; j--) {
+                    sparseValues[j + 1] = sparseValues[j];
+                    sparseCounts[j + 1] = sparseCounts[j];
+                }
+                sparseValues[j + 1] = value;
+                sparseCounts[j + 1] = n;
+            }
+        }
+    }
+
+    /**
+     * Growable linear probing table with one histogram per station, names point into the mapped file.
+     */
+    private static final class Table {
+        long[] nameAddresses;
+        int[] nameLengths;
+        int[] hashes;
+        long[] sums;
+        Histogram[] histograms;
+        int size;
+
+        Table(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            nameAddresses = new long[capacity];
+            nameLengths = new int[capacity];
+            hashes = new int[capacity];
+            sums = new long[capacity];
+            histograms = new Histogram[capacity];
+        }
+
+        private int slot(long nameAddress, int nameLength, int hash) {
+            int mask = nameAddresses.length - 1;
+            int slot = hash & mask;
+            long existing;
+            while ((existing = nameAddresses[slot]) != 0) {
+                if (hashes[slot] == hash && nameLengths[slot] == nameLength && nameEquals(existing, nameAddress, nameLength)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if ((size + 1) * 2 > nameAddresses.length) {
+                grow();
+                return slot(nameAddress, nameLength, hash);
+            }
+            size++;
+            nameAddresses[slot] = nameAddress;
+            nameLengths[slot] = nameLength;
+            hashes[slot] = hash;
+            histograms[slot] = new Histogram();
+            return slot;
+        }
+
+        void add(long nameAddress, int nameLength, int hash, int value) {
+            int slot = slot(nameAddress, nameLength, hash);
+            sums[slot] += value;
+            histograms[slot].add(value);
+        }
+
+        void mergeFrom(Table other) {
+            for (int otherSlot = 0; otherSlot < other.nameAddresses.length; otherSlot++) {
+                if (other.nameAddresses[otherSlot] == 0) {
+                    continue;
+                }
+                int slot = slot(other.nameAddresses[otherSlot], other.nameLengths[otherSlot], other.hashes[otherSlot]);
+                sums[slot] += other.sums[otherSlot];
+                histograms[slot].merge(other.histograms[otherSlot]);
+            }
+        }
+
+        String name(int slot) {
+            byte[] bytes = new byte[nameLengths[slot]];
+            UNSAFE.copyMemory(null, nameAddresses[slot], bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void grow() {
+            long[] oldNameAddresses = nameAddresses;
+            int[] oldNameLengths = nameLengths;
+            int[] oldHashes = hashes;
+            long[] oldSums = sums;
+            Histogram[] oldHistograms = histograms;
+            allocate(oldNameAddresses.length * 2);
+            int mask = nameAddresses.length - 1;
+            for (int oldSlot = 0; oldSlot < oldNameAddresses.length; oldSlot++) {
+                if (oldNameAddresses[oldSlot] == 0) {
+                    continue;
+                }
+                int slot = oldHashes[oldSlot] & mask;
+                while (nameAddresses[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                nameAddresses[slot] = oldNameAddresses[oldSlot];
+                nameLengths[slot] = oldNameLengths[oldSlot];
+                hashes[slot] = oldHashes[oldSlot];
+                sums[slot] = oldSums[oldSlot];
+                histograms[slot] = oldHistograms[oldSlot];
+            }
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dev.morling.onebrc.CalculateAverage_emersonmde_concurrent.LocalTable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Aggregates a file served over HTTP without downloading it first.
+ *
+ * The file is split into parts of remote.partSize bytes, fetched concurrently with range GETs on remote.connections
+ * virtual threads into a fixed pool of native buffers, and parsed by one platform thread per core as soon as each part
+ * has arrived, so download and parsing overlap and memory stays bounded by the pool. Parts are made line-aligned
+ * without any stitching between them: each one is fetched from one byte before its start to MAX_ROW bytes past its
+ * end, so the part can tell on its own which rows start inside it and always holds the last of them completely.
+ *
+ * Without arguments, fetches remote.url or, if unset, ./measurements.txt through an in-process stand-in server. Run
+ * with --serve [root] [port] to run the stand-in on its own: it serves the files under root (default .) with single
+ * byte range support, waiting remote.latency milliseconds before each response and sending each at no more than
+ * remote.bandwidth bytes per second (default 0, unlimited).
+ */
+public class CalculateAverage_emersonmde_remote {
+    private static final String FILE = "./measurements.txt";
+    private static final String URL = System.getProperty("remote.url");
+    private static final int CONNECTIONS = Integer.getInteger("remote.connections", 8);
+    private static final int PART_SIZE = Integer.getInteger("remote.partSize", 4 << 20);
+    private static final int PARSERS = Runtime.getRuntime().availableProcessors();
+    private static final int BUFFERS = Integer.getInteger("remote.buffers", CONNECTIONS + PARSERS);
+    private static final int RETRIES = Integer.getInteger("remote.retries", 2);
+    private static final long LATENCY = Long.getLong("remote.latency", 0);
+    private static final long BANDWIDTH = Long.getLong("remote.bandwidth", 0);
+
+    // Longest possible row: 100 bytes of name, ";-99.9" and the line feed
+    private static final int MAX_ROW = 128;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes \\d+-\\d+/(\\d+)");
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--serve")) {
+            HttpServer server = serve(Path.of(args.length > 1 ? args[1] : "."), args.length > 2 ? Integer.parseInt(args[2]) : 8081);
+            System.err.println("Serving on http://localhost:" + server.getAddress().getPort() + "/");
+            return;
+        }
+
+        HttpServer standIn = null;
+        URI uri;
+        if (URL != null) {
+            uri = URI.create(URL);
+        }
+        else {
+            standIn = serve(Path.of(FILE).toAbsolutePath().getParent(), 0);
+            uri = URI.create("http://localhost:" + standIn.getAddress().getPort() + "/" + Path.of(FILE).getFileName());
+        }
+        try (HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build()) {
+            TreeMap<String, String> results = new TreeMap<>();
+            aggregate(client, uri).forEach((name, min, max, sum, count) -> results.put(new String(name, StandardCharsets.UTF_8),
+                    round(min / 10.0) + "/" + round((sum / 10.0) / count) + "/" + round(max / 10.0)));
+            System.out.println(results);
+        }
+        finally {
+            if (standIn != null) {
+                standIn.stop(0);
+            }
+        }
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    /**
+     * Rows of one part that start inside it, as addresses into its pooled buffer.
+     */
+    private record Part(MemorySegment buffer, long start, long end) {
+    }
+
+    private static final Part DONE = new Part(null, 0, 0);
+
+    static LocalTable aggregate(HttpClient client, URI uri) throws IOException, InterruptedException {
+        long size = size(client, uri);
+        int parts = (int) ((size + PART_SIZE - 1) / PART_SIZE);
+        BlockingQueue<MemorySegment> pool = new ArrayBlockingQueue<>(BUFFERS);
+        BlockingQueue<Part> fetched = new LinkedBlockingQueue<>();
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        try (Arena arena = Arena.ofShared()) {
+            for (int i = 0; i < BUFFERS; i++) {
+                pool.add(arena.allocate(PART_SIZE + MAX_ROW + 1));
+            }
+
+            Thread[] fetchers = new Thread[Math.min(CONNECTIONS, Math.max(1, parts))];
+            for (int i = 0; i < fetchers.length; i++) {
+                fetchers[i] = Thread.ofVirtual().name("fetcher-" + i).start(() -> {
+                    try {
+                        int part;
+                        while (failure.get() == null && (part = next.getAndIncrement()) < parts) {
+                            MemorySegment buffer = pool.take();
+                            Part rows = fetch(client, uri, size, (long) part * PART_SIZE, Math.min(size, (long) (part + 1) * PART_SIZE), buffer);
+                            if (rows.start < rows.end) {
+                                fetched.add(rows);
+                            }
+                            else {
+                                pool.add(buffer);
+                            }
+                        }
+                    }
+                    catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+            }
+
+            LocalTable[] tables = new LocalTable[PARSERS];
+            Thread[] parsers = new Thread[PARSERS];
+            for (int i = 0; i < parsers.length; i++) {
+                LocalTable table = tables[i] = new LocalTable();
+                parsers[i] = new Thread(() -> {
+                    try {
+                        Part part;
+                        while ((part = fetched.take()) != DONE) {
+                            // Remote content is untrusted; after a failure parts are only recycled, so fetchers never
+                            // wait for a buffer that doesn't come back.
+                            try {
+                                if (failure.get() == null) {
+                                    CalculateAverage_emersonmde_concurrent.parseLoopChecked(part.start, part.end, table);
+                                }
+                            }
+                            catch (RuntimeException e) {
+                                failure.compareAndSet(null, e);
+                            }
+                            finally {
+                                pool.add(part.buffer);
+                            }
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                });
+                parsers[i].start();
+            }
+
+            for (Thread fetcher : fetchers) {
+                fetcher.join();
+            }
+            for (int i = 0; i < parsers.length; i++) {
+                fetched.add(DONE);
+            }
+            for (Thread parser : parsers) {
+                parser.join();
+            }
+            Throwable e = failure.get();
+            if (e != null) {
+                throw e instanceof IOException io ? io : new IOException("Aggregating " + uri + " failed", e);
+            }
+            for (int i = 1; i < tables.length; i++) {
+                tables[0].merge(tables[i]);
+            }
+            return tables[0];
+        }
+    }
+
+    /**
+     * Total length, from the Content-Range of a one byte request, as object stores may not answer HEAD the same way.
+     */
+    private static long size(HttpClient client, URI uri) throws IOException, InterruptedException {
+        HttpResponse<Void> response = client.send(HttpRequest.newBuilder(uri).header("Range", "bytes=0-0").build(),
+                HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 416) {
+            return 0;
+        }
+        if (response.statusCode() != 206) {
+            throw new IOException("Range requests not supported by " + uri + ": status " + response.statusCode());
+        }
+        Matcher matcher = CONTENT_RANGE.matcher(response.headers().firstValue("Content-Range").orElse(""));
+        if (!matcher.matches()) {
+            throw new IOException("Unexpected Content-Range from " + uri + ": " + response.headers().firstValue("Content-Range"));
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+
+    /**
+     * Fetches [start - 1, end + MAX_ROW) into the buffer and returns the rows starting in [start, end).
+     */
+    private static Part fetch(HttpClient client, URI uri, long size, long start, long end, MemorySegment buffer) throws IOException, InterruptedException {
+        long from = Math.max(0, start - 1);
+        long to = Math.min(size, end + MAX_ROW);
+        HttpRequest request = HttpRequest.newBuilder(uri).header("Range", "bytes=" + from + "-" + (to - 1)).build();
+        for (int attempt = 0;; attempt++) {
+            try {
+                HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                try (InputStream body = response.body()) {
+                    if (response.statusCode() != 206) {
+                        throw new IOException("Status " + response.statusCode() + " for range " + from + "-" + (to - 1) + " of " + uri);
+                    }
+                    long length = read(body, buffer);
+                    if (length != to - from) {
+                        throw new IOException("Got " + length + " of " + (to - from) + " bytes for range " + from + "-" + (to - 1) + " of " + uri);
+                    }
+                }
+                break;
+            }
+            catch (IOException e) {
+                if (attempt >= RETRIES) {
+                    throw e;
+                }
+            }
+        }
+
+        // A row starts at p if p is 0 or byte p - 1 is a line feed
+        long base = buffer.address();
+        long first = start == 0 ? base : rowStart(buffer, 0, to - from);
+        if (end == size && to > from && buffer.get(ValueLayout.JAVA_BYTE, to - from - 1) != '\n') {
+            // E.g. a truncated upload, whose last row the parser can't tell apart from garbage.
+            throw new IOException(uri + " doesn't end with a new line");
+        }
+        long last = end == size ? base + (to - from) : rowStart(buffer, end - 1 - from, to - from);
+        if (last < 0) {
+            throw new IOException("Row longer than " + MAX_ROW + " bytes at " + end + " of " + uri);
+        }
+        return new Part(buffer, first < 0 ? last : first, last);
+    }
+
+    private static long read(InputStream body, MemorySegment buffer) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        long length = 0;
+        int read;
+        while ((read = body.read(chunk)) >= 0) {
+            if (length + read > buffer.byteSize()) {
+                throw new IOException("Response longer than requested");
+            }
+            MemorySegment.copy(chunk, 0, buffer, ValueLayout.JAVA_BYTE, length, read);
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * Address after the first line feed in [from, to) of the buffer, or -1.
+     */
+    private static long rowStart(MemorySegment buffer, long from, long to) {
+        for (long i = from; i < to; i++) {
+            if (buffer.get(ValueLayout.JAVA_BYTE, i) == '\n') {
+                return buffer.address() + i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Starts the stand-in object store: GET of files under root, with single byte ranges.
+     */
+    static HttpServer serve(Path root, int port) throws IOException {
+        Path base = root.toAbsolutePath().normalize();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        // Platform threads: the server's response streams pin virtual threads, which would then keep the carriers
+        // from running the in-process fetchers that drain those very responses. Daemons, as stop() leaves them be.
+        server.setExecutor(Executors.newCachedThreadPool(Thread.ofPlatform().name("stand-in-", 0).daemon().factory()));
+        server.createContext("/", exchange -> {
+            try (exchange) {
+                Path file = base.resolve(exchange.getRequestURI().getPath().substring(1)).normalize();
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    exchange.sendResponseHeaders(405, -1);
+                }
+                else if (!file.startsWith(base) || !Files.isRegularFile(file)) {
+                    exchange.sendResponseHeaders(404, -1);
+                }
+                else {
+                    send(exchange, file);
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                // The client went away
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static void send(HttpExchange exchange, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long from = 0;
+            long to = size;
+            int status = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null) {
+                Matcher matcher = RANGE.matcher(range);
+                if (!matcher.matches() || matcher.group(1).isEmpty() && matcher.group(2).isEmpty()) {
+                    exchange.sendResponseHeaders(400, -1);
+                    return;
+                }
+                if (matcher.group(1).isEmpty()) {
+                    from = Math.max(0, size - Long.parseLong(matcher.group(2)));
+                }
+                else {
+                    from = Long.parseLong(matcher.group(1));
+                    if (!matcher.group(2).isEmpty()) {
+                        to = Math.min(size, Long.parseLong(matcher.group(2)) + 1);
+                    }
+                }
+                if (from >= size || from >= to) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + (to - 1) + "/" + size);
+            }
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            sleep(TimeUnit.MILLISECONDS.toNanos(LATENCY));
+            exchange.sendResponseHeaders(status, to - from);
+
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+            long started = System.nanoTime();
+            long sent = 0;
+            OutputStream body = exchange.getResponseBody();
+            while (from + sent < to) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), to - from - sent));
+                int read = channel.read(chunk, from + sent);
+                if (read < 0) {
+                    throw new IOException("File shrank: " + file);
+                }
+                body.write(chunk.array(), 0, read);
+                sent += read;
+                if (BANDWIDTH > 0) {
+                    sleep(started + sent * 1_000_000_000L / BANDWIDTH - System.nanoTime());
+                }
+            }
+        }
+    }
+
+    private static void sleep(long nanos) {
+        if (nanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
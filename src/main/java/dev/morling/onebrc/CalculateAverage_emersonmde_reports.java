@@ -0,0 +1,546 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Evaluates several reports in one scan of the file.
+ *
+ * Reports are given as arguments, the default is a single stats report:
+ *   stats              min/mean/max per station, the regular challenge output
+ *   above:T, below:T   rows per station with a temperature above/below T
+ *   regions:FILE       min/mean/max per region, FILE maps stations to regions with station;region lines
+ *   histogram:W        rows per temperature bucket of W degrees across all stations
+ *
+ * Rows are parsed and looked up once, no matter how many reports are requested. Everything the reports need is
+ * reduced to three per-row primitives: the per-station aggregate (always), branch-free threshold counters per
+ * station and one global counter per temperature value. Region rollups and histogram buckets are derived from those
+ * after the scan, so they cost nothing per row. The table class is chosen from the primitives the report set needs,
+ * which keeps the call in the parse loop monomorphic and lets the JIT inline exactly the work of that set.
+ *
+ * With more than one report, each report's output is preceded by a "== spec ==" line.
+ */
+public class CalculateAverage_emersonmde_reports {
+    private static final String FILE = "./measurements.txt";
+
+    private static final long SEMICOLONS = 0x3B3B3B3B3B3B3B3BL;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final int VALUE_OFFSET = 999;
+    private static final int VALUES = 2 * VALUE_OFFSET + 1;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        ReportSet reports = ReportSet.parse(args.length > 0 ? args : new String[]{ "stats" });
+
+        int numberOfChunks = Runtime.getRuntime().availableProcessors();
+        long[] chunks = getSegments(numberOfChunks);
+
+        Table result = IntStream.range(0, chunks.length - 1).mapToObj(chunkIndex -> {
+            Table table = reports.newTable();
+            parseLoop(chunks[chunkIndex], chunks[chunkIndex + 1], table);
+            return table;
+        }).parallel().reduce((left, right) -> {
+            left.mergeFrom(right);
+            return left;
+        }).orElseGet(reports::newTable);
+
+        StringBuilder output = new StringBuilder();
+        for (Report report : reports.reports) {
+            if (reports.reports.size() > 1) {
+                output.append("== ").append(report.spec).append(" ==\n");
+            }
+            report.print(result, output);
+        }
+        System.out.print(output);
+    }
+
+    /**
+     * The requested reports plus the per-row primitives they need.
+     */
+    private record ReportSet(List<Report> reports, int[] thresholdLimits, int[] thresholdSigns, boolean histogram) {
+
+        static ReportSet parse(String[] specs) throws IOException {
+            List<Report> reports = new ArrayList<>();
+            List<Integer> limits = new ArrayList<>();
+            List<Integer> signs = new ArrayList<>();
+            boolean histogram = false;
+            for (String spec : specs) {
+                int colon = spec.indexOf(':');
+                String kind = colon < 0 ? spec : spec.substring(0, colon);
+                String argument = colon < 0 ? null : spec.substring(colon + 1);
+                if (kind.equals("stats") && argument == null) {
+                    reports.add(new Stats(spec));
+                }
+                else if ((kind.equals("above") || kind.equals("below")) && argument != null) {
+                    // v > T and v < T are both expressed as sign * v > sign * T.
+                    int sign = kind.equals("above") ? 1 : -1;
+                    reports.add(new Threshold(spec, limits.size()));
+                    limits.add(sign * tenths(argument));
+                    signs.add(sign);
+                }
+                else if (kind.equals("regions") && argument != null) {
+                    Map<String, String> regions = new HashMap<>();
+                    for (String line : Files.readAllLines(Path.of(argument), StandardCharsets.UTF_8)) {
+                        int separator = line.indexOf(';');
+                        if (separator > 0) {
+                            regions.put(line.substring(0, separator), line.substring(separator + 1));
+                        }
+                    }
+                    reports.add(new Regions(spec, regions));
+                }
+                else if (kind.equals("histogram") && argument != null) {
+                    int width = tenths(argument);
+                    if (width < 1) {
+                        throw new IllegalArgumentException("Histogram bucket width must be at least 0.1: " + spec);
+                    }
+                    reports.add(new Histogram(spec, width));
+                    histogram = true;
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown report: " + spec);
+                }
+            }
+            return new ReportSet(reports, limits.stream().mapToInt(Integer::intValue).toArray(),
+                    signs.stream().mapToInt(Integer::intValue).toArray(), histogram);
+        }
+
+        private static int tenths(String degrees) {
+            return (int) Math.round(Double.parseDouble(degrees) * 10);
+        }
+
+        Table newTable() {
+            if (thresholdLimits.length == 0) {
+                return histogram ? new HistogramTable() : new Table(thresholdLimits, thresholdSigns);
+            }
+            return histogram ? new FullTable(thresholdLimits, thresholdSigns) : new ThresholdTable(thresholdLimits, thresholdSigns);
+        }
+    }
+
+    private abstract static class Report {
+        final String spec;
+
+        Report(String spec) {
+            this.spec = spec;
+        }
+
+        abstract void print(Table result, StringBuilder output);
+    }
+
+    private static final class Stats extends Report {
+
+        Stats(String spec) {
+            super(spec);
+        }
+
+        @Override
+        void print(Table result, StringBuilder output) {
+            TreeMap<String, String> stations = new TreeMap<>();
+            for (int slot = 0; slot < result.nameAddresses.length; slot++) {
+                if (result.nameAddresses[slot] != 0) {
+                    stations.put(result.name(slot), format(result.mins[slot], result.maxs[slot], result.sums[slot], result.counts[slot]));
+                }
+            }
+            output.append(stations).append('\n');
+        }
+    }
+
+    private static final class Threshold extends Report {
+        private final int index;
+
+        Threshold(String spec, int index) {
+            super(spec);
+            this.index = index;
+        }
+
+        @Override
+        void print(Table result, StringBuilder output) {
+            TreeMap<String, Long> stations = new TreeMap<>();
+            for (int slot = 0; slot < result.nameAddresses.length; slot++) {
+                if (result.nameAddresses[slot] != 0) {
+                    stations.put(result.name(slot), result.thresholdCounts[slot * result.thresholdLimits.length + index]);
+                }
+            }
+            output.append(stations).append('\n');
+        }
+    }
+
+    private static final class Regions extends Report {
+        private static final String UNMAPPED = "(unmapped)";
+
+        private final Map<String, String> regions;
+
+        Regions(String spec, Map<String, String> regions) {
+            super(spec);
+            this.regions = regions;
+        }
+
+        @Override
+        void print(Table result, StringBuilder output) {
+            // Region -> min, max, sum, count.
+            TreeMap<String, long[]> rollup = new TreeMap<>();
+            for (int slot = 0; slot < result.nameAddresses.length; slot++) {
+                if (result.nameAddresses[slot] == 0) {
+                    continue;
+                }
+                long[] region = rollup.computeIfAbsent(regions.getOrDefault(result.name(slot), UNMAPPED),
+                        r -> new long[]{ Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 0 });
+                region[0] = Math.min(region[0], result.mins[slot]);
+                region[1] = Math.max(region[1], result.maxs[slot]);
+                region[2] += result.sums[slot];
+                region[3] += result.counts[slot];
+            }
+            TreeMap<String, String> formatted = new TreeMap<>();
+            rollup.forEach((name, region) -> formatted.put(name, format(region[0], region[1], region[2], region[3])));
+            output.append(formatted).append('\n');
+        }
+    }
+
+    private static final class Histogram extends Report {
+        private final int width;
+
+        Histogram(String spec, int width) {
+            super(spec);
+            this.width = width;
+        }
+
+        @Override
+        void print(Table result, StringBuilder output) {
+            long[] buckets = new long[VALUES];
+            int first = Math.floorDiv(-VALUE_OFFSET, width);
+            for (int i = 0; i < VALUES; i++) {
+                buckets[Math.floorDiv(i - VALUE_OFFSET, width) - first] += result.histogram[i];
+            }
+            for (int bucket = 0; bucket < buckets.length; bucket++) {
+                if (buckets[bucket] != 0) {
+                    int low = (bucket + first) * width;
+                    output.append('[').append(low / 10.0).append(", ").append((low + width) / 10.0).append(") ")
+                            .append(buckets[bucket]).append('\n');
+                }
+            }
+        }
+    }
+
+    private static String format(long min, long max, long sum, long count) {
+        return round(min / 10.0) + "/" + round((sum / 10.0) / count) + "/" + round(max / 10.0);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    private static long[] getSegments(int numberOfChunks) throws IOException {
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
+            long[] chunks = new long[numberOfChunks + 1];
+            long mappedAddress = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            chunks[0] = mappedAddress;
+            long endAddress = mappedAddress + fileSize;
+            for (int i = 1; i < numberOfChunks; ++i) {
+                long chunkAddress = mappedAddress + i * segmentSize;
+                // Align to first row start.
+                while (chunkAddress < endAddress && UNSAFE.getByte(chunkAddress++) != '\n') {
+                    // nop
+                }
+                chunks[i] = Math.min(chunkAddress, endAddress);
+            }
+            chunks[numberOfChunks] = endAddress;
+            return chunks;
+        }
+    }
+
+    private static void parseLoop(long chunkStart, long chunkEnd, Table table) {
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // Scan for ';' delimiter 8 bytes at a time, falling back to single bytes near the end of the chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = (hash ^ (word & ((lowest >>> 7) - 1))) * HASH_MULTIPLIER;
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            scanPtr++;
+
+            // Parse number.
+            int number;
+            byte sign = UNSAFE.getByte(scanPtr++);
+            if (sign == '-') {
+                number = UNSAFE.getByte(scanPtr++) - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+                number = -number;
+            }
+            else {
+                number = sign - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+            }
+
+            table.add(nameAddress, nameLength, (int) (hash ^ (hash >>> 32)), number);
+
+            // Skip new line.
+            scanPtr++;
+        }
+    }
+
+    private static boolean nameEquals(long left, long right, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (UNSAFE.getLong(left + i) != UNSAFE.getLong(right + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (UNSAFE.getByte(left + i) != UNSAFE.getByte(right + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Growable linear probing table with the per-station aggregate, names point into the mapped file. Subclasses add
+     * the optional per-row primitives; thresholdCounts and histogram are always allocated as far as they are needed,
+     * so merging and printing do not depend on the subclass.
+     */
+    private static class Table {
+        final int[] thresholdLimits;
+        final int[] thresholdSigns;
+        final long[] histogram = new long[VALUES];
+
+        long[] nameAddresses;
+        int[] nameLengths;
+        int[] hashes;
+        int[] mins;
+        int[] maxs;
+        long[] counts;
+        long[] sums;
+        // thresholdLimits.length counters per slot.
+        long[] thresholdCounts;
+        int size;
+
+        Table(int[] thresholdLimits, int[] thresholdSigns) {
+            this.thresholdLimits = thresholdLimits;
+            this.thresholdSigns = thresholdSigns;
+            allocate(1 << 10);
+        }
+
+        private void allocate(int capacity) {
+            nameAddresses = new long[capacity];
+            nameLengths = new int[capacity];
+            hashes = new int[capacity];
+            mins = new int[capacity];
+            maxs = new int[capacity];
+            counts = new long[capacity];
+            sums = new long[capacity];
+            thresholdCounts = new long[capacity * thresholdLimits.length];
+        }
+
+        final int slot(long nameAddress, int nameLength, int hash) {
+            int mask = nameAddresses.length - 1;
+            int slot = hash & mask;
+            long existing;
+            while ((existing = nameAddresses[slot]) != 0) {
+                if (hashes[slot] == hash && nameLengths[slot] == nameLength && nameEquals(existing, nameAddress, nameLength)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if ((size + 1) * 2 > nameAddresses.length) {
+                grow();
+                return slot(nameAddress, nameLength, hash);
+            }
+            size++;
+            nameAddresses[slot] = nameAddress;
+            nameLengths[slot] = nameLength;
+            hashes[slot] = hash;
+            mins[slot] = Integer.MAX_VALUE;
+            maxs[slot] = Integer.MIN_VALUE;
+            return slot;
+        }
+
+        int add(long nameAddress, int nameLength, int hash, int value) {
+            int slot = slot(nameAddress, nameLength, hash);
+            mins[slot] = Math.min(mins[slot], value);
+            maxs[slot] = Math.max(maxs[slot], value);
+            counts[slot]++;
+            sums[slot] += value;
+            return slot;
+        }
+
+        final void countThresholds(int slot, int value) {
+            int base = slot * thresholdLimits.length;
+            for (int i = 0; i < thresholdLimits.length; i++) {
+                // Sign bit of limit - sign * value is set iff sign * value > limit.
+                thresholdCounts[base + i] += (thresholdLimits[i] - thresholdSigns[i] * value) >>> 31;
+            }
+        }
+
+        final void mergeFrom(Table other) {
+            int thresholds = thresholdLimits.length;
+            for (int otherSlot = 0; otherSlot < other.nameAddresses.length; otherSlot++) {
+                if (other.nameAddresses[otherSlot] == 0) {
+                    continue;
+                }
+                int slot = slot(other.nameAddresses[otherSlot], other.nameLengths[otherSlot], other.hashes[otherSlot]);
+                mins[slot] = Math.min(mins[slot], other.mins[otherSlot]);
+                maxs[slot] = Math.max(maxs[slot], other.maxs[otherSlot]);
+                counts[slot] += other.counts[otherSlot];
+                sums[slot] += other.sums[otherSlot];
+                for (int i = 0; i < thresholds; i++) {
+                    thresholdCounts[slot * thresholds + i] += other.thresholdCounts[otherSlot * thresholds + i];
+                }
+            }
+            for (int i = 0; i < VALUES; i++) {
+                histogram[i] += other.histogram[i];
+            }
+        }
+
+        final String name(int slot) {
+            byte[] bytes = new byte[nameLengths[slot]];
+            UNSAFE.copyMemory(null, nameAddresses[slot], bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void grow() {
+            int thresholds = thresholdLimits.length;
+            long[] oldNameAddresses = nameAddresses;
+            int[] oldNameLengths = nameLengths;
+            int[] oldHashes = hashes;
+            int[] oldMins = mins;
+            int[] oldMaxs = maxs;
+            long[] oldCounts = counts;
+            long[] oldSums = sums;
+            long[] oldThresholdCounts = thresholdCounts;
+            allocate(oldNameAddresses.length * 2);
+            int mask = nameAddresses.length - 1;
+            for (int oldSlot = 0; oldSlot < oldNameAddresses.length; oldSlot++) {
+                if (oldNameAddresses[oldSlot] == 0) {
+                    continue;
+                }
+                int slot = oldHashes[oldSlot] & mask;
+                while (nameAddresses[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                nameAddresses[slot] = oldNameAddresses[oldSlot];
+                nameLengths[slot] = oldNameLengths[oldSlot];
+                hashes[slot] = oldHashes[oldSlot];
+                mins[slot] = oldMins[oldSlot];
+                maxs[slot] = oldMaxs[oldSlot];
+                counts[slot] = oldCounts[oldSlot];
+                sums[slot] = oldSums[oldSlot];
+                System.arraycopy(oldThresholdCounts, oldSlot * thresholds, thresholdCounts, slot * thresholds, thresholds);
+            }
+        }
+    }
+
+    private static final class HistogramTable extends Table {
+        HistogramTable() {
+            super(new int[0], new int[0]);
+        }
+
+        @Override
+        int add(long nameAddress, int nameLength, int hash, int value) {
+            histogram[value + VALUE_OFFSET]++;
+            return super.add(nameAddress, nameLength, hash, value);
+        }
+    }
+
+    private static final class ThresholdTable extends Table {
+        ThresholdTable(int[] thresholdLimits, int[] thresholdSigns) {
+            super(thresholdLimits, thresholdSigns);
+        }
+
+        @Override
+        int add(long nameAddress, int nameLength, int hash, int value) {
+            int slot = super.add(nameAddress, nameLength, hash, value);
+            countThresholds(slot, value);
+            return slot;
+        }
+    }
+
+    private static final class FullTable extends Table {
+        FullTable(int[] thresholdLimits, int[] thresholdSigns) {
+            super(thresholdLimits, thresholdSigns);
+        }
+
+        @Override
+        int add(long nameAddress, int nameLength, int hash, int value) {
+            histogram[value + VALUE_OFFSET]++;
+            int slot = super.add(nameAddress, nameLength, hash, value);
+            countThresholds(slot, value);
+            return slot;
+        }
+    }
+}
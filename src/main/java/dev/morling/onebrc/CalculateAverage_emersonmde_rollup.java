@@ -0,0 +1,481 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Station, region and country level aggregates from one scan.
+ *
+ * The scan is the regular per-station aggregation. Afterwards each station is resolved to a dense station id through
+ * the mapping's own name index, which compares against the names in the mapped file so no String is created, and
+ * its min/max/sum/count are folded into flat arrays indexed by region id. Countries are folded from regions the same
+ * way. Sums and counts are merged as integers, so every level is exact, and the rollup only touches one entry per
+ * station.
+ *
+ * Usage: CalculateAverage_emersonmde_rollup MAPPING, where MAPPING has station;region;country lines. Stations that
+ * are not in the mapping are rolled up into "(unmapped)". Prints the regular per-station output followed by the
+ * regions (as country/region) and the countries, each after a "== level ==" line.
+ */
+public class CalculateAverage_emersonmde_rollup {
+    private static final String FILE = "./measurements.txt";
+    private static final String UNMAPPED = "(unmapped)";
+
+    private static final long SEMICOLONS = 0x3B3B3B3B3B3B3B3BL;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            throw new IllegalArgumentException("Usage: CalculateAverage_emersonmde_rollup <station;region;country mapping>");
+        }
+        Hierarchy hierarchy = Hierarchy.load(Path.of(args[0]));
+
+        int numberOfChunks = Runtime.getRuntime().availableProcessors();
+        long[] chunks = getSegments(numberOfChunks);
+
+        Table result = IntStream.range(0, chunks.length - 1).mapToObj(chunkIndex -> {
+            Table table = new Table(1 << 10);
+            parseLoop(chunks[chunkIndex], chunks[chunkIndex + 1], table);
+            return table;
+        }).parallel().reduce((left, right) -> {
+            left.mergeFrom(right);
+            return left;
+        }).orElseGet(() -> new Table(1 << 10));
+
+        // min, max, sum and count per region and per country, the last entry of each collects unmapped stations.
+        long[] regions = emptyStats(hierarchy.regionNames.length + 1);
+        for (int slot = 0; slot < result.nameAddresses.length; slot++) {
+            if (result.nameAddresses[slot] == 0) {
+                continue;
+            }
+            int station = hierarchy.stationId(result.nameAddresses[slot], result.nameLengths[slot], result.hashes[slot]);
+            int region = station < 0 ? hierarchy.regionNames.length : hierarchy.regionOfStation[station];
+            accumulate(regions, region, result.mins[slot], result.maxs[slot], result.sums[slot], result.counts[slot]);
+        }
+        long[] countries = emptyStats(hierarchy.countryNames.length + 1);
+        for (int region = 0; region <= hierarchy.regionNames.length; region++) {
+            int country = region == hierarchy.regionNames.length ? hierarchy.countryNames.length : hierarchy.countryOfRegion[region];
+            accumulate(countries, country, regions[region * 4], regions[region * 4 + 1], regions[region * 4 + 2], regions[region * 4 + 3]);
+        }
+
+        TreeMap<String, String> stationOutput = new TreeMap<>();
+        for (int slot = 0; slot < result.nameAddresses.length; slot++) {
+            if (result.nameAddresses[slot] != 0) {
+                stationOutput.put(result.name(slot), format(result.mins[slot], result.maxs[slot], result.sums[slot], result.counts[slot]));
+            }
+        }
+        TreeMap<String, String> regionOutput = new TreeMap<>();
+        for (int region = 0; region <= hierarchy.regionNames.length; region++) {
+            if (regions[region * 4 + 3] != 0) {
+                String name = region == hierarchy.regionNames.length ? UNMAPPED
+                        : hierarchy.countryNames[hierarchy.countryOfRegion[region]] + "/" + hierarchy.regionNames[region];
+                regionOutput.put(name, format(regions[region * 4], regions[region * 4 + 1], regions[region * 4 + 2], regions[region * 4 + 3]));
+            }
+        }
+        TreeMap<String, String> countryOutput = new TreeMap<>();
+        for (int country = 0; country <= hierarchy.countryNames.length; country++) {
+            if (countries[country * 4 + 3] != 0) {
+                String name = country == hierarchy.countryNames.length ? UNMAPPED : hierarchy.countryNames[country];
+                countryOutput.put(name, format(countries[country * 4], countries[country * 4 + 1], countries[country * 4 + 2], countries[country * 4 + 3]));
+            }
+        }
+        System.out.println("== stations ==\n" + stationOutput + "\n== regions ==\n" + regionOutput + "\n== countries ==\n" + countryOutput);
+    }
+
+    private static long[] emptyStats(int entries) {
+        long[] stats = new long[entries * 4];
+        for (int i = 0; i < entries; i++) {
+            stats[i * 4] = Integer.MAX_VALUE;
+            stats[i * 4 + 1] = Integer.MIN_VALUE;
+        }
+        return stats;
+    }
+
+    private static void accumulate(long[] stats, int entry, long min, long max, long sum, long count) {
+        int base = entry * 4;
+        stats[base] = Math.min(stats[base], min);
+        stats[base + 1] = Math.max(stats[base + 1], max);
+        stats[base + 2] += sum;
+        stats[base + 3] += count;
+    }
+
+    private static String format(long min, long max, long sum, long count) {
+        return round(min / 10.0) + "/" + round((sum / 10.0) / count) + "/" + round(max / 10.0);
+    }
+
+    /**
+     * The mapping with dense ids: stations 0..n-1, regions and countries likewise. Station names are kept in a single
+     * byte array with an open addressing index using the parse loop's hash, so stations of the scan can be resolved
+     * by address.
+     */
+    static final class Hierarchy {
+        final byte[] names;
+        final int[] nameOffsets;
+        final int[] nameHashes;
+        // Station id + 1 per slot, 0 for empty slots.
+        final int[] index;
+        final int[] regionOfStation;
+        final int[] countryOfRegion;
+        final String[] regionNames;
+        final String[] countryNames;
+
+        private Hierarchy(byte[] names, int[] nameOffsets, int[] regionOfStation, int[] countryOfRegion, String[] regionNames,
+                          String[] countryNames) {
+            this.names = names;
+            this.nameOffsets = nameOffsets;
+            this.regionOfStation = regionOfStation;
+            this.countryOfRegion = countryOfRegion;
+            this.regionNames = regionNames;
+            this.countryNames = countryNames;
+            int stations = regionOfStation.length;
+            nameHashes = new int[stations];
+            index = new int[Integer.highestOneBit(Math.max(stations, 1)) << 2];
+            int mask = index.length - 1;
+            for (int station = 0; station < stations; station++) {
+                int length = nameOffsets[station + 1] - nameOffsets[station];
+                int hash = hash(names, Unsafe.ARRAY_BYTE_BASE_OFFSET + nameOffsets[station], length);
+                nameHashes[station] = hash;
+                int slot = hash & mask;
+                while (index[slot] != 0) {
+                    if (matches(index[slot] - 1, names, Unsafe.ARRAY_BYTE_BASE_OFFSET + nameOffsets[station], length, hash)) {
+                        throw new IllegalArgumentException("Station mapped twice: "
+                                + new String(names, nameOffsets[station], length, StandardCharsets.UTF_8));
+                    }
+                    slot = (slot + 1) & mask;
+                }
+                index[slot] = station + 1;
+            }
+        }
+
+        static Hierarchy load(Path mapping) throws IOException {
+            List<byte[]> stationNames = new ArrayList<>();
+            List<Integer> stationRegions = new ArrayList<>();
+            Map<String, Integer> regionIds = new HashMap<>();
+            Map<String, Integer> countryIds = new HashMap<>();
+            List<Integer> regionCountries = new ArrayList<>();
+            for (String line : Files.readAllLines(mapping, StandardCharsets.UTF_8)) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] columns = line.split(";", -1);
+                if (columns.length != 3) {
+                    throw new IllegalArgumentException("Expected station;region;country: " + line);
+                }
+                int country = countryIds.computeIfAbsent(columns[2], c -> countryIds.size());
+                // Regions are only unique within their country.
+                int region = regionIds.computeIfAbsent(columns[2] + ";" + columns[1], r -> {
+                    regionCountries.add(country);
+                    return regionIds.size();
+                });
+                stationNames.add(columns[0].getBytes(StandardCharsets.UTF_8));
+                stationRegions.add(region);
+            }
+
+            int[] nameOffsets = new int[stationNames.size() + 1];
+            for (int i = 0; i < stationNames.size(); i++) {
+                nameOffsets[i + 1] = nameOffsets[i] + stationNames.get(i).length;
+            }
+            byte[] names = new byte[nameOffsets[stationNames.size()]];
+            for (int i = 0; i < stationNames.size(); i++) {
+                System.arraycopy(stationNames.get(i), 0, names, nameOffsets[i], stationNames.get(i).length);
+            }
+            String[] regionNames = new String[regionIds.size()];
+            regionIds.forEach((key, id) -> regionNames[id] = key.substring(key.indexOf(';') + 1));
+            String[] countryNames = new String[countryIds.size()];
+            countryIds.forEach((name, id) -> countryNames[id] = name);
+            return new Hierarchy(names, nameOffsets, stationRegions.stream().mapToInt(Integer::intValue).toArray(),
+                    regionCountries.stream().mapToInt(Integer::intValue).toArray(), regionNames, countryNames);
+        }
+
+        // Resolves a name in native memory, -1 if the station is not mapped.
+        int stationId(long address, int length, int hash) {
+            int mask = index.length - 1;
+            for (int slot = hash & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+                if (matches(index[slot] - 1, null, address, length, hash)) {
+                    return index[slot] - 1;
+                }
+            }
+            return -1;
+        }
+
+        private boolean matches(int station, Object base, long offset, int length, int hash) {
+            if (nameHashes[station] != hash || nameOffsets[station + 1] - nameOffsets[station] != length) {
+                return false;
+            }
+            long own = Unsafe.ARRAY_BYTE_BASE_OFFSET + nameOffsets[station];
+            for (int i = 0; i < length; i++) {
+                if (UNSAFE.getByte(names, own + i) != UNSAFE.getByte(base, offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Same hash as the parse loop computes for a name.
+         */
+        private static int hash(Object base, long offset, int length) {
+            long hash = 0;
+            int i = 0;
+            for (; i + Long.BYTES <= length; i += Long.BYTES) {
+                hash = (hash ^ UNSAFE.getLong(base, offset + i)) * HASH_MULTIPLIER;
+            }
+            long word = 0;
+            for (int shift = 0; i < length; i++, shift += 8) {
+                word |= (UNSAFE.getByte(base, offset + i) & 0xFFL) << shift;
+            }
+            hash = (hash ^ word) * HASH_MULTIPLIER;
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    private static long[] getSegments(int numberOfChunks) throws IOException {
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
+            long[] chunks = new long[numberOfChunks + 1];
+            long mappedAddress = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            chunks[0] = mappedAddress;
+            long endAddress = mappedAddress + fileSize;
+            for (int i = 1; i < numberOfChunks; ++i) {
+                long chunkAddress = mappedAddress + i * segmentSize;
+                // Align to first row start.
+                while (chunkAddress < endAddress && UNSAFE.getByte(chunkAddress++) != '\n') {
+                    // nop
+                }
+                chunks[i] = Math.min(chunkAddress, endAddress);
+            }
+            chunks[numberOfChunks] = endAddress;
+            return chunks;
+        }
+    }
+
+    private static void parseLoop(long chunkStart, long chunkEnd, Table table) {
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // Scan for ';' delimiter 8 bytes at a time, falling back to single bytes near the end of the chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = (hash ^ (word & ((lowest >>> 7) - 1))) * HASH_MULTIPLIER;
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            scanPtr++;
+
+            // Parse number.
+            int number;
+            byte sign = UNSAFE.getByte(scanPtr++);
+            if (sign == '-') {
+                number = UNSAFE.getByte(scanPtr++) - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+                number = -number;
+            }
+            else {
+                number = sign - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+            }
+
+            table.add(nameAddress, nameLength, (int) (hash ^ (hash >>> 32)), number);
+
+            // Skip new line.
+            scanPtr++;
+        }
+    }
+
+    private static boolean nameEquals(long left, long right, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (UNSAFE.getLong(left + i) != UNSAFE.getLong(right + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (UNSAFE.getByte(left + i) != UNSAFE.getByte(right + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Growable linear probing table, names point into the mapped file.
+     */
+    private static final class Table {
+        long[] nameAddresses;
+        int[] nameLengths;
+        int[] hashes;
+        int[] mins;
+        int[] maxs;
+        long[] counts;
+        long[] sums;
+        int size;
+
+        Table(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            nameAddresses = new long[capacity];
+            nameLengths = new int[capacity];
+            hashes = new int[capacity];
+            mins = new int[capacity];
+            maxs = new int[capacity];
+            counts = new long[capacity];
+            sums = new long[capacity];
+        }
+
+        private int slot(long nameAddress, int nameLength, int hash) {
+            int mask = nameAddresses.length - 1;
+            int slot = hash & mask;
+            long existing;
+            while ((existing = nameAddresses[slot]) != 0) {
+                if (hashes[slot] == hash && nameLengths[slot] == nameLength && nameEquals(existing, nameAddress, nameLength)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if ((size + 1) * 2 > nameAddresses.length) {
+                grow();
+                return slot(nameAddress, nameLength, hash);
+            }
+            size++;
+            nameAddresses[slot] = nameAddress;
+            nameLengths[slot] = nameLength;
+            hashes[slot] = hash;
+            mins[slot] = Integer.MAX_VALUE;
+            maxs[slot] = Integer.MIN_VALUE;
+            return slot;
+        }
+
+        void add(long nameAddress, int nameLength, int hash, int value) {
+            int slot = slot(nameAddress, nameLength, hash);
+            mins[slot] = Math.min(mins[slot], value);
+            maxs[slot] = Math.max(maxs[slot], value);
+            counts[slot]++;
+            sums[slot] += value;
+        }
+
+        void mergeFrom(Table other) {
+            for (int otherSlot = 0; otherSlot < other.nameAddresses.length; otherSlot++) {
+                if (other.nameAddresses[otherSlot] == 0) {
+                    continue;
+                }
+                int slot = slot(other.nameAddresses[otherSlot], other.nameLengths[otherSlot], other.hashes[otherSlot]);
+                mins[slot] = Math.min(mins[slot], other.mins[otherSlot]);
+                maxs[slot] = Math.max(maxs[slot], other.maxs[otherSlot]);
+                counts[slot] += other.counts[otherSlot];
+                sums[slot] += other.sums[otherSlot];
+            }
+        }
+
+        String name(int slot) {
+            byte[] bytes = new byte[nameLengths[slot]];
+            UNSAFE.copyMemory(null, nameAddresses[slot], bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void grow() {
+            long[] oldNameAddresses = nameAddresses;
+            int[] oldNameLengths = nameLengths;
+            int[] oldHashes = hashes;
+            int[] oldMins = mins;
+            int[] oldMaxs = maxs;
+            long[] oldCounts = counts;
+            long[] oldSums = sums;
+            allocate(oldNameAddresses.length * 2);
+            int mask = nameAddresses.length - 1;
+            for (int oldSlot = 0; oldSlot < oldNameAddresses.length; oldSlot++) {
+                if (oldNameAddresses[oldSlot] == 0) {
+                    continue;
+                }
+                int slot = oldHashes[oldSlot] & mask;
+                while (nameAddresses[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                nameAddresses[slot] = oldNameAddresses[oldSlot];
+                nameLengths[slot] = oldNameLengths[oldSlot];
+                hashes[slot] = oldHashes[oldSlot];
+                mins[slot] = oldMins[oldSlot];
+                maxs[slot] = oldMaxs[oldSlot];
+                counts[slot] = oldCounts[oldSlot];
+                sums[slot] = oldSums[oldSlot];
+            }
+        }
+    }
+}
@@ -0,0 +1,462 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Approximate answers from a random sample of the file.
+ *
+ * The file is cut into fixed-size blocks; block i covers the rows starting in [i * size, (i + 1) * size), so any
+ * block can be read on its own after aligning both ends to the next row start. A random subset of blocks is
+ * aggregated, keeping per station the moments of its per-block row counts and sums. Since blocks are sampled as
+ * a whole, counts are extrapolated with the cluster sampling estimator and means with the ratio estimator, both
+ * with 95% confidence intervals including the finite population correction. Min and max are the observed bounds.
+ * Stations without rows in the sample are missing from the output.
+ *
+ * With a target error, more blocks are sampled in rounds, doubling each time, until the widest confidence interval
+ * of a station mean is within the target or the whole file has been read.
+ *
+ * Configuration via system properties:
+ *   sample.fraction     fraction of blocks to read first (default 0.02)
+ *   sample.blockSize    block size in bytes (default 1 MB)
+ *   sample.targetError  refine until every mean is known within +/- this many degrees (default: no refinement)
+ *   sample.seed         seed for the block selection (default: random)
+ *
+ * Prints the number of sampled blocks, then every station as name=min/mean/max ±meanError rows=count±countError.
+ */
+public class CalculateAverage_emersonmde_sample {
+    private static final String FILE = "./measurements.txt";
+
+    private static final double FRACTION = Double.parseDouble(System.getProperty("sample.fraction", "0.02"));
+    private static final long BLOCK_SIZE = Long.getLong("sample.blockSize", 1 << 20);
+    private static final String TARGET_ERROR = System.getProperty("sample.targetError");
+    private static final String SEED = System.getProperty("sample.seed");
+    // Two-sided 95% quantile of the normal distribution.
+    private static final double Z = 1.959964;
+
+    private static final long SEMICOLONS = 0x3B3B3B3B3B3B3B3BL;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (!(FRACTION > 0 && FRACTION <= 1) || BLOCK_SIZE < 1) {
+            throw new IllegalArgumentException("sample.fraction must be in (0, 1] and sample.blockSize positive");
+        }
+        Blocks blocks = Blocks.map(Path.of(FILE), BLOCK_SIZE);
+        int total = blocks.count();
+
+        // The sample order is a random permutation; every round takes the next blocks of it.
+        Random random = SEED == null ? new Random() : new Random(Long.parseLong(SEED));
+        int[] order = IntStream.range(0, total).toArray();
+        for (int i = total - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+
+        int workers = Runtime.getRuntime().availableProcessors();
+        Table result = new Table(1 << 10);
+        int sampled = 0;
+        int target = Math.min(total, Math.max(2, (int) Math.ceil(FRACTION * total)));
+        while (true) {
+            int from = sampled;
+            int to = target;
+            Table round = IntStream.range(0, workers).parallel().mapToObj(worker -> {
+                Table table = new Table(1 << 10);
+                for (int i = from + worker; i < to; i += workers) {
+                    parseLoop(blocks.start(order[i]), blocks.end(order[i]), table);
+                    table.endBlock();
+                }
+                return table;
+            }).reduce((left, right) -> {
+                left.mergeFrom(right);
+                return left;
+            }).orElseThrow();
+            result.mergeFrom(round);
+            sampled = to;
+
+            if (TARGET_ERROR == null || sampled == total || result.widestMeanError(sampled, total) <= Double.parseDouble(TARGET_ERROR)) {
+                break;
+            }
+            target = Math.min(total, sampled * 2);
+        }
+
+        TreeMap<String, String> output = new TreeMap<>();
+        for (int slot = 0; slot < result.nameAddresses.length; slot++) {
+            if (result.nameAddresses[slot] == 0) {
+                continue;
+            }
+            double scale = (double) total / sampled;
+            output.put(result.name(slot), round(result.mins[slot] / 10.0) + "/"
+                    + round((result.sums[slot] / 10.0) / result.counts[slot]) + "/"
+                    + round(result.maxs[slot] / 10.0)
+                    + String.format(" ±%.2f rows=%d±%d", result.meanError(slot, sampled, total),
+                            Math.round(result.counts[slot] * scale), Math.round(result.countError(slot, sampled, total))));
+        }
+        System.out.println(String.format("sampled %d of %d blocks (%.1f%%)", sampled, total, 100.0 * sampled / total));
+        System.out.println(output);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    /**
+     * The mapped file cut into fixed-size blocks, each aligned to row starts at both ends.
+     */
+    static final class Blocks {
+        final long address;
+        final long size;
+        final long blockSize;
+
+        private Blocks(long address, long size, long blockSize) {
+            this.address = address;
+            this.size = size;
+            this.blockSize = blockSize;
+        }
+
+        static Blocks map(Path file, long blockSize) throws IOException {
+            try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = fileChannel.size();
+                // Only the pages of sampled blocks are ever touched.
+                long address = fileChannel.map(MapMode.READ_ONLY, 0, size, Arena.global()).address();
+                return new Blocks(address, size, blockSize);
+            }
+        }
+
+        int count() {
+            return (int) Math.max(1, (size + blockSize - 1) / blockSize);
+        }
+
+        long start(int block) {
+            return rowStart(block * blockSize);
+        }
+
+        long end(int block) {
+            return rowStart((block + 1) * blockSize);
+        }
+
+        // Address of the first row starting at or after the offset.
+        private long rowStart(long offset) {
+            if (offset <= 0) {
+                return address;
+            }
+            if (offset >= size) {
+                return address + size;
+            }
+            long position = address + offset - 1;
+            long end = address + size;
+            while (position < end && UNSAFE.getByte(position) != '\n') {
+                position++;
+            }
+            return Math.min(position + 1, end);
+        }
+    }
+
+    private static void parseLoop(long chunkStart, long chunkEnd, Table table) {
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // Scan for ';' delimiter 8 bytes at a time, falling back to single bytes near the end of the chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = (hash ^ (word & ((lowest >>> 7) - 1))) * HASH_MULTIPLIER;
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            scanPtr++;
+
+            // Parse number.
+            int number;
+            byte sign = UNSAFE.getByte(scanPtr++);
+            if (sign == '-') {
+                number = UNSAFE.getByte(scanPtr++) - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+                number = -number;
+            }
+            else {
+                number = sign - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+            }
+
+            table.add(nameAddress, nameLength, (int) (hash ^ (hash >>> 32)), number);
+
+            // Skip new line.
+            scanPtr++;
+        }
+    }
+
+    private static boolean nameEquals(long left, long right, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (UNSAFE.getLong(left + i) != UNSAFE.getLong(right + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (UNSAFE.getByte(left + i) != UNSAFE.getByte(right + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Growable linear probing table, names point into the mapped file. Rows are counted per block first; at the end
+     * of each block the block's count c and sum s of every station it touched are folded into sums of c, s, c^2, s^2
+     * and s*c, which is all the estimators need.
+     */
+    private static final class Table {
+        long[] nameAddresses;
+        int[] nameLengths;
+        int[] hashes;
+        int[] mins;
+        int[] maxs;
+        long[] counts;
+        long[] sums;
+        double[] countSquares;
+        double[] sumSquares;
+        double[] products;
+        long[] blockCounts;
+        long[] blockSums;
+        int[] touched;
+        int touchedSize;
+        int size;
+
+        Table(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            nameAddresses = new long[capacity];
+            nameLengths = new int[capacity];
+            hashes = new int[capacity];
+            mins = new int[capacity];
+            maxs = new int[capacity];
+            counts = new long[capacity];
+            sums = new long[capacity];
+            countSquares = new double[capacity];
+            sumSquares = new double[capacity];
+            products = new double[capacity];
+            blockCounts = new long[capacity];
+            blockSums = new long[capacity];
+            touched = new int[capacity];
+        }
+
+        private int slot(long nameAddress, int nameLength, int hash) {
+            int mask = nameAddresses.length - 1;
+            int slot = hash & mask;
+            long existing;
+            while ((existing = nameAddresses[slot]) != 0) {
+                if (hashes[slot] == hash && nameLengths[slot] == nameLength && nameEquals(existing, nameAddress, nameLength)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if ((size + 1) * 2 > nameAddresses.length) {
+                grow();
+                return slot(nameAddress, nameLength, hash);
+            }
+            size++;
+            nameAddresses[slot] = nameAddress;
+            nameLengths[slot] = nameLength;
+            hashes[slot] = hash;
+            mins[slot] = Integer.MAX_VALUE;
+            maxs[slot] = Integer.MIN_VALUE;
+            return slot;
+        }
+
+        void add(long nameAddress, int nameLength, int hash, int value) {
+            int slot = slot(nameAddress, nameLength, hash);
+            mins[slot] = Math.min(mins[slot], value);
+            maxs[slot] = Math.max(maxs[slot], value);
+            if (blockCounts[slot]++ == 0) {
+                touched[touchedSize++] = slot;
+            }
+            blockSums[slot] += value;
+        }
+
+        void endBlock() {
+            for (int i = 0; i < touchedSize; i++) {
+                int slot = touched[i];
+                long count = blockCounts[slot];
+                long sum = blockSums[slot];
+                counts[slot] += count;
+                sums[slot] += sum;
+                countSquares[slot] += (double) count * count;
+                sumSquares[slot] += (double) sum * sum;
+                products[slot] += (double) sum * count;
+                blockCounts[slot] = 0;
+                blockSums[slot] = 0;
+            }
+            touchedSize = 0;
+        }
+
+        void mergeFrom(Table other) {
+            for (int otherSlot = 0; otherSlot < other.nameAddresses.length; otherSlot++) {
+                if (other.nameAddresses[otherSlot] == 0) {
+                    continue;
+                }
+                int slot = slot(other.nameAddresses[otherSlot], other.nameLengths[otherSlot], other.hashes[otherSlot]);
+                mins[slot] = Math.min(mins[slot], other.mins[otherSlot]);
+                maxs[slot] = Math.max(maxs[slot], other.maxs[otherSlot]);
+                counts[slot] += other.counts[otherSlot];
+                sums[slot] += other.sums[otherSlot];
+                countSquares[slot] += other.countSquares[otherSlot];
+                sumSquares[slot] += other.sumSquares[otherSlot];
+                products[slot] += other.products[otherSlot];
+            }
+        }
+
+        /**
+         * Half-width of the 95% interval of the station's row count over all blocks, from n of N sampled blocks.
+         */
+        double countError(int slot, int n, int total) {
+            if (n == total) {
+                return 0;
+            }
+            double variance = (countSquares[slot] - (double) counts[slot] * counts[slot] / n) / (n - 1);
+            return Z * total * Math.sqrt((1 - (double) n / total) * Math.max(variance, 0) / n);
+        }
+
+        /**
+         * Half-width of the 95% interval of the station's mean in degrees, from the ratio estimator's variance.
+         */
+        double meanError(int slot, int n, int total) {
+            if (n == total) {
+                return 0;
+            }
+            double ratio = (double) sums[slot] / counts[slot];
+            double residuals = (sumSquares[slot] - 2 * ratio * products[slot] + ratio * ratio * countSquares[slot]) / (n - 1);
+            double meanCount = (double) counts[slot] / n;
+            return Z * Math.sqrt((1 - (double) n / total) * Math.max(residuals, 0) / n) / meanCount / 10.0;
+        }
+
+        double widestMeanError(int n, int total) {
+            double widest = 0;
+            for (int slot = 0; slot < nameAddresses.length; slot++) {
+                if (nameAddresses[slot] != 0) {
+                    widest = Math.max(widest, meanError(slot, n, total));
+                }
+            }
+            return widest;
+        }
+
+        String name(int slot) {
+            byte[] bytes = new byte[nameLengths[slot]];
+            UNSAFE.copyMemory(null, nameAddresses[slot], bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void grow() {
+            long[] oldNameAddresses = nameAddresses;
+            int[] oldNameLengths = nameLengths;
+            int[] oldHashes = hashes;
+            int[] oldMins = mins;
+            int[] oldMaxs = maxs;
+            long[] oldCounts = counts;
+            long[] oldSums = sums;
+            double[] oldCountSquares = countSquares;
+            double[] oldSumSquares = sumSquares;
+            double[] oldProducts = products;
+            long[] oldBlockCounts = blockCounts;
+            long[] oldBlockSums = blockSums;
+            allocate(oldNameAddresses.length * 2);
+            touchedSize = 0;
+            int mask = nameAddresses.length - 1;
+            for (int oldSlot = 0; oldSlot < oldNameAddresses.length; oldSlot++) {
+                if (oldNameAddresses[oldSlot] == 0) {
+                    continue;
+                }
+                int slot = oldHashes[oldSlot] & mask;
+                while (nameAddresses[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                nameAddresses[slot] = oldNameAddresses[oldSlot];
+                nameLengths[slot] = oldNameLengths[oldSlot];
+                hashes[slot] = oldHashes[oldSlot];
+                mins[slot] = oldMins[oldSlot];
+                maxs[slot] = oldMaxs[oldSlot];
+                counts[slot] = oldCounts[oldSlot];
+                sums[slot] = oldSums[oldSlot];
+                countSquares[slot] = oldCountSquares[oldSlot];
+                sumSquares[slot] = oldSumSquares[oldSlot];
+                products[slot] = oldProducts[oldSlot];
+                blockCounts[slot] = oldBlockCounts[oldSlot];
+                blockSums[slot] = oldBlockSums[oldSlot];
+                // Slots moved, so the stations of the current block are collected again.
+                if (blockCounts[slot] != 0) {
+                    touched[touchedSize++] = slot;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Station names from untrusted feeds can be crafted to collide under a fixed, public hash function, turning a linear
+ * probing table into a linear scan. This entry hashes names with a per-run random key: every 8 byte word is mixed in
+ * with a folded 64x64->128 bit multiply of (word ^ k0) and (hash ^ k1), so collisions can't be precomputed offline.
+ *
+ * Tables also watch their probe lengths. A probe sequence longer than seeded.maxProbe (default 64) makes the table
+ * pick a new key and rehash all of its names from the mapped file. After a few reseeds at the same size it grows
+ * instead, which covers genuinely overloaded tables.
+ *
+ * Run with --bench [rows] to compare against the fixed multiply hash on random and on crafted names.
+ */
+public class CalculateAverage_emersonmde_seeded {
+    private static final String FILE = "./measurements.txt";
+    private static final int MAX_PROBE = Integer.getInteger("seeded.maxProbe", 64);
+    private static final int MAX_RESEEDS = 4;
+
+    private static final long SEMICOLONS = 0x3B3B3B3B3B3B3B3BL;
+    private static final SecureRandom SEEDS = new SecureRandom();
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--bench")) {
+            Benchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000);
+            return;
+        }
+
+        int numberOfChunks = Runtime.getRuntime().availableProcessors();
+        long[] chunks = getSegments(numberOfChunks);
+
+        Table result = IntStream.range(0, chunks.length - 1).mapToObj(chunkIndex -> {
+            Table table = new Table(1 << 10, SeededHasher.random());
+            parseLoop(chunks[chunkIndex], chunks[chunkIndex + 1], table);
+            return table;
+        }).parallel().reduce((left, right) -> {
+            left.mergeFrom(right);
+            return left;
+        }).orElseGet(() -> new Table(1 << 10, SeededHasher.random()));
+
+        TreeMap<String, String> output = new TreeMap<>();
+        for (int slot = 0; slot < result.nameAddresses.length; slot++) {
+            if (result.nameAddresses[slot] != 0) {
+                output.put(result.name(slot), result.format(slot));
+            }
+        }
+        System.out.println(output);
+    }
+
+    private static long[] getSegments(int numberOfChunks) throws IOException {
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
+            long[] chunks = new long[numberOfChunks + 1];
+            long mappedAddress = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            chunks[0] = mappedAddress;
+            long endAddress = mappedAddress + fileSize;
+            for (int i = 1; i < numberOfChunks; ++i) {
+                long chunkAddress = mappedAddress + i * segmentSize;
+                // Align to first row start.
+                while (chunkAddress < endAddress && UNSAFE.getByte(chunkAddress++) != '\n') {
+                    // nop
+                }
+                chunks[i] = Math.min(chunkAddress, endAddress);
+            }
+            chunks[numberOfChunks] = endAddress;
+            return chunks;
+        }
+    }
+
+    /**
+     * Mixes a name into a hash one 8 byte word at a time, the last word holds the remaining 0-7 bytes.
+     */
+    abstract static class Hasher {
+        abstract long step(long hash, long word);
+
+        abstract int finish(long hash, int length);
+
+        // A replacement with a fresh key, or null if this function can't be reseeded.
+        Hasher reseed() {
+            return null;
+        }
+
+        int hash(long address, int length) {
+            long hash = 0;
+            int i = 0;
+            for (; i + Long.BYTES <= length; i += Long.BYTES) {
+                hash = step(hash, UNSAFE.getLong(address + i));
+            }
+            long word = 0;
+            for (int shift = 0; i < length; i++, shift += 8) {
+                word |= (UNSAFE.getByte(address + i) & 0xFFL) << shift;
+            }
+            return finish(step(hash, word), length);
+        }
+    }
+
+    /**
+     * Keyed folded multiply, the same construction wyhash uses for its inner loop.
+     */
+    static final class SeededHasher extends Hasher {
+        final long k0;
+        final long k1;
+        final long k2;
+
+        SeededHasher(long k0, long k1, long k2) {
+            this.k0 = k0;
+            this.k1 = k1;
+            this.k2 = k2;
+        }
+
+        static SeededHasher random() {
+            return new SeededHasher(SEEDS.nextLong(), SEEDS.nextLong(), SEEDS.nextLong() | 1);
+        }
+
+        @Override
+        long step(long hash, long word) {
+            long a = word ^ k0;
+            long b = hash ^ k1;
+            return Math.multiplyHigh(a, b) ^ (a * b);
+        }
+
+        @Override
+        int finish(long hash, int length) {
+            long a = hash ^ length;
+            long folded = Math.multiplyHigh(a, k2) ^ (a * k2);
+            return (int) (folded ^ (folded >>> 32));
+        }
+
+        @Override
+        Hasher reseed() {
+            return random();
+        }
+    }
+
+    /**
+     * The unkeyed multiply-xor hash the other emersonmde entries use, for comparison only.
+     */
+    static final class FixedHasher extends Hasher {
+        private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+        @Override
+        long step(long hash, long word) {
+            return (hash ^ word) * HASH_MULTIPLIER;
+        }
+
+        @Override
+        int finish(long hash, int length) {
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+
+    static void parseLoop(long chunkStart, long chunkEnd, Table table) {
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            Hasher hasher = table.hasher;
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // Scan for ';' delimiter 8 bytes at a time, falling back to single bytes near the end of the chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = hasher.step(hash, word & ((lowest >>> 7) - 1));
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = hasher.step(hash, word);
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = hasher.step(hash, word);
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            scanPtr++;
+
+            // Parse number.
+            int number;
+            byte sign = UNSAFE.getByte(scanPtr++);
+            if (sign == '-') {
+                number = UNSAFE.getByte(scanPtr++) - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+                number = -number;
+            }
+            else {
+                number = sign - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+            }
+
+            table.add(nameAddress, nameLength, hasher.finish(hash, nameLength), number);
+
+            // Skip new line.
+            scanPtr++;
+        }
+    }
+
+    private static boolean nameEquals(long left, long right, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (UNSAFE.getLong(left + i) != UNSAFE.getLong(right + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (UNSAFE.getByte(left + i) != UNSAFE.getByte(right + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Growable linear probing table that reseeds its hash function when probe sequences get suspiciously long.
+     */
+    static final class Table {
+        Hasher hasher;
+        long[] nameAddresses;
+        int[] nameLengths;
+        int[] hashes;
+        int[] mins;
+        int[] maxs;
+        long[] sums;
+        long[] counts;
+        int size;
+        int reseeds;
+        int longestProbe;
+
+        Table(int capacity, Hasher hasher) {
+            this.hasher = hasher;
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            nameAddresses = new long[capacity];
+            nameLengths = new int[capacity];
+            hashes = new int[capacity];
+            mins = new int[capacity];
+            maxs = new int[capacity];
+            sums = new long[capacity];
+            counts = new long[capacity];
+        }
+
+        private int slot(long nameAddress, int nameLength, int hash) {
+            while (true) {
+                int mask = nameAddresses.length - 1;
+                int slot = hash & mask;
+                int probes = 0;
+                long existing;
+                while ((existing = nameAddresses[slot]) != 0) {
+                    if (hashes[slot] == hash && nameLengths[slot] == nameLength && nameEquals(existing, nameAddress, nameLength)) {
+                        return slot;
+                    }
+                    slot = (slot + 1) & mask;
+                    probes++;
+                }
+                longestProbe = Math.max(longestProbe, probes);
+                if (probes > MAX_PROBE && rehash()) {
+                    // The caller's hash was computed with the previous key.
+                    hash = hasher.hash(nameAddress, nameLength);
+                    continue;
+                }
+                if ((size + 1) * 2 > nameAddresses.length) {
+                    rebuild(nameAddresses.length * 2);
+                    continue;
+                }
+                size++;
+                nameAddresses[slot] = nameAddress;
+                nameLengths[slot] = nameLength;
+                hashes[slot] = hash;
+                mins[slot] = Integer.MAX_VALUE;
+                maxs[slot] = Integer.MIN_VALUE;
+                return slot;
+            }
+        }
+
+        // Switch to a fresh key, or grow once reseeding didn't help a few times in a row.
+        private boolean rehash() {
+            Hasher reseeded = hasher.reseed();
+            if (reseeded == null) {
+                return false;
+            }
+            hasher = reseeded;
+            if (++reseeds > MAX_RESEEDS) {
+                reseeds = 0;
+                rebuild(nameAddresses.length * 2);
+            }
+            else {
+                rebuild(nameAddresses.length);
+            }
+            return true;
+        }
+
+        void add(long nameAddress, int nameLength, int hash, int value) {
+            int slot = slot(nameAddress, nameLength, hash);
+            mins[slot] = Math.min(mins[slot], value);
+            maxs[slot] = Math.max(maxs[slot], value);
+            sums[slot] += value;
+            counts[slot]++;
+        }
+
+        // Tables don't share keys, so names are hashed again with this table's hasher.
+        void mergeFrom(Table other) {
+            for (int otherSlot = 0; otherSlot < other.nameAddresses.length; otherSlot++) {
+                long nameAddress = other.nameAddresses[otherSlot];
+                if (nameAddress == 0) {
+                    continue;
+                }
+                int nameLength = other.nameLengths[otherSlot];
+                int slot = slot(nameAddress, nameLength, hasher.hash(nameAddress, nameLength));
+                mins[slot] = Math.min(mins[slot], other.mins[otherSlot]);
+                maxs[slot] = Math.max(maxs[slot], other.maxs[otherSlot]);
+                sums[slot] += other.sums[otherSlot];
+                counts[slot] += other.counts[otherSlot];
+            }
+        }
+
+        String name(int slot) {
+            byte[] bytes = new byte[nameLengths[slot]];
+            UNSAFE.copyMemory(null, nameAddresses[slot], bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        String format(int slot) {
+            return round(mins[slot] / 10.0) + "/" + round((sums[slot] / 10.0) / counts[slot]) + "/" + round(maxs[slot] / 10.0);
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 10.0) / 10.0;
+        }
+
+        private void rebuild(int capacity) {
+            long[] oldNameAddresses = nameAddresses;
+            int[] oldNameLengths = nameLengths;
+            int[] oldMins = mins;
+            int[] oldMaxs = maxs;
+            long[] oldSums = sums;
+            long[] oldCounts = counts;
+            allocate(capacity);
+            int mask = capacity - 1;
+            for (int oldSlot = 0; oldSlot < oldNameAddresses.length; oldSlot++) {
+                long nameAddress = oldNameAddresses[oldSlot];
+                if (nameAddress == 0) {
+                    continue;
+                }
+                int hash = hasher.hash(nameAddress, oldNameLengths[oldSlot]);
+                int slot = hash & mask;
+                while (nameAddresses[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                nameAddresses[slot] = nameAddress;
+                nameLengths[slot] = oldNameLengths[oldSlot];
+                hashes[slot] = hash;
+                mins[slot] = oldMins[oldSlot];
+                maxs[slot] = oldMaxs[oldSlot];
+                sums[slot] = oldSums[oldSlot];
+                counts[slot] = oldCounts[oldSlot];
+            }
+        }
+    }
+
+    /**
+     * Single-threaded parse and aggregate throughput with the fixed and the seeded hash. Random names show the
+     * normal-case overhead of the keyed hash, crafted names (all colliding in the low 12 bits of the fixed hash) show
+     * what it protects against. Reports the best of three runs after one warm-up run.
+     */
+    static final class Benchmark {
+
+        static void run(int rows) {
+            System.out.printf("rows=%,d, max probe=%d%n", rows, MAX_PROBE);
+            System.out.printf("%-24s %10s %14s %10s %14s%n", "names", "fixed ms", "fixed probe", "seeded ms", "seeded probe");
+            measure(rows, "413 random", CalculateAverage_emersonmde_concurrent.Benchmark.names(413));
+            measure(rows, "10,000 random", CalculateAverage_emersonmde_concurrent.Benchmark.names(10_000));
+            measure(rows, "100,000 random", CalculateAverage_emersonmde_concurrent.Benchmark.names(100_000));
+            measure(rows, "4,000 crafted", craftedNames(4_000, 0xFFF));
+        }
+
+        private static void measure(int rows, String label, byte[][] names) {
+            try (var arena = Arena.ofConfined()) {
+                MemorySegment data = CalculateAverage_emersonmde_concurrent.Benchmark.generate(arena, rows, names);
+                Table[] fixed = new Table[1];
+                Table[] seeded = new Table[1];
+                long fixedMillis = best(() -> {
+                    fixed[0] = new Table(1 << 10, new FixedHasher());
+                    parseLoop(data.address(), data.address() + data.byteSize(), fixed[0]);
+                });
+                long seededMillis = best(() -> {
+                    seeded[0] = new Table(1 << 10, SeededHasher.random());
+                    parseLoop(data.address(), data.address() + data.byteSize(), seeded[0]);
+                });
+                System.out.printf("%-24s %10d %14d %10d %14d%n", label, fixedMillis, fixed[0].longestProbe, seededMillis, seeded[0].longestProbe);
+            }
+        }
+
+        private static long best(Runnable run) {
+            run.run();
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < 3; i++) {
+                long start = System.nanoTime();
+                run.run();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            return best / 1_000_000;
+        }
+
+        // Brute-force short names whose fixed hash agrees in the masked low bits, like an attacker would.
+        private static byte[][] craftedNames(int count, int mask) {
+            FixedHasher hasher = new FixedHasher();
+            List<byte[]> names = new ArrayList<>(count);
+            try (var arena = Arena.ofConfined()) {
+                MemorySegment buffer = arena.allocate(Long.BYTES);
+                for (long candidate = 0; names.size() < count; candidate++) {
+                    byte[] name = ("x" + Long.toString(candidate, 36)).getBytes(StandardCharsets.UTF_8);
+                    MemorySegment.copy(MemorySegment.ofArray(name), 0, buffer, 0, name.length);
+                    if ((hasher.hash(buffer.address(), name.length) & mask) == 0) {
+                        names.add(name);
+                    }
+                }
+            }
+            return names.toArray(byte[][]::new);
+        }
+    }
+}
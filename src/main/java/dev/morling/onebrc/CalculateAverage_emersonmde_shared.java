@@ -0,0 +1,609 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import dev.morling.onebrc.CalculateAverage_emersonmde_live.LiveStore;
+import dev.morling.onebrc.CalculateAverage_emersonmde_live.Snapshot;
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes station aggregates into a memory-mapped file that other processes look up in place.
+ *
+ * The file holds two areas of fixed layout, each a key index sorted by name bytes plus packed stats. The publisher
+ * always writes the area readers are not directed to, then bumps the generation counter in the header with a release
+ * store: its low bit selects the current area, so a new table appears atomically. Each area also has a seqlock
+ * sequence, odd while it is being written, so a reader that was too slow to finish before the publisher came back
+ * around to its area notices and retries. A lookup is a binary search over the mapped index with no copying and no
+ * deserialisation. If a table outgrows the areas, the publisher atomically replaces the file with a larger one and
+ * marks the old one as moved, and readers remap.
+ *
+ * Layout, native byte order:
+ * <pre>
+ * header (64 bytes): long MAGIC, int LAYOUT_VERSION, int state (0 current, 1 moved), long generation,
+ *                    int capacity, int nameCapacity, long areaSize
+ * area (x2):         long sequence, long published (epoch millis), int stations, int nameBytes, long rows,
+ *                    capacity x (int nameOffset, int nameLength), sorted by name bytes, unsigned,
+ *                    capacity x (long sum, long count, short min, short max, int unused),
+ *                    nameCapacity bytes of names
+ * </pre>
+ *
+ * Without arguments, aggregates ./measurements.txt, publishes the result and prints it as read back from the file.
+ * Other modes:
+ * <ul>
+ * <li>--live: publishes the live store fed by the ingestion server every shared.interval milliseconds (default 100)</li>
+ * <li>--get name...: looks stations up</li>
+ * <li>--dump: prints the current table</li>
+ * <li>--bench [seconds] [readers]: lookups per second, with and without a publisher republishing every millisecond</li>
+ * </ul>
+ * The file is shared.file (default ${java.io.tmpdir}/onebrc-emersonmde.shm), readable by its owner only.
+ */
+public class CalculateAverage_emersonmde_shared {
+    private static final String FILE = "./measurements.txt";
+    private static final Path SHARED = Path.of(System.getProperty("shared.file",
+            Path.of(System.getProperty("java.io.tmpdir"), "onebrc-emersonmde.shm").toString()));
+    private static final long INTERVAL = Long.getLong("shared.interval", 100);
+    private static final int CAPACITY = Integer.getInteger("live.capacity", 1 << 15);
+    private static final int REACTORS = Integer.getInteger("ingest.reactors", Runtime.getRuntime().availableProcessors());
+
+    private static final long MAGIC = 0x314D48534352424FL;
+    private static final int LAYOUT_VERSION = 1;
+    private static final int CURRENT = 0;
+    private static final int MOVED = 1;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int STATE = 12;
+    private static final int GENERATION = 16;
+    private static final int AREA_CAPACITY = 24;
+    private static final int NAME_CAPACITY = 28;
+    private static final int AREA_SIZE = 32;
+
+    private static final int SEQUENCE = 0;
+    private static final int PUBLISHED = 8;
+    private static final int STATIONS = 16;
+    private static final int NAME_BYTES = 20;
+    private static final int ROWS = 24;
+    private static final int AREA_HEADER_SIZE = 32;
+    private static final int KEY_SIZE = 8;
+    private static final int STATS_SIZE = 24;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "";
+        switch (mode) {
+            case "--live" -> live();
+            case "--get" -> {
+                try (Reader reader = Reader.open(SHARED)) {
+                    long[] stats = new long[4];
+                    for (int i = 1; i < args.length; i++) {
+                        System.out.println(reader.lookup(args[i].getBytes(StandardCharsets.UTF_8), stats)
+                                ? args[i] + "=" + format(stats[0], stats[1], stats[2], stats[3])
+                                : args[i] + " not found");
+                    }
+                }
+            }
+            case "--dump" -> {
+                try (Reader reader = Reader.open(SHARED)) {
+                    System.out.println(reader.format());
+                }
+            }
+            case "--bench" -> Benchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 3,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 1);
+            default -> {
+                Snapshot snapshot = aggregate(Path.of(FILE)).snapshot();
+                Publisher.create(SHARED, snapshot).close();
+                try (Reader reader = Reader.open(SHARED)) {
+                    System.out.println(reader.format());
+                }
+            }
+        }
+    }
+
+    private static LiveStore aggregate(Path file) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        try (var fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long address = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            long[] chunks = CalculateAverage_emersonmde_concurrent.getSegments(address, fileSize, threads);
+            LiveStore store = new LiveStore(CAPACITY, CalculateAverage_emersonmde_live.stripesFor(threads));
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < workers.length; i++) {
+                int index = i;
+                workers[i] = new Thread(() -> CalculateAverage_emersonmde_concurrent.parseLoop(chunks[index], chunks[index + 1], store.writer(index)));
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            return store;
+        }
+    }
+
+    private static void live() throws IOException, InterruptedException {
+        LiveStore store = new LiveStore(CAPACITY, CalculateAverage_emersonmde_live.stripesFor(REACTORS));
+        CalculateAverage_emersonmde_ingest.Server ingest = new CalculateAverage_emersonmde_ingest.Server(
+                reactor -> CalculateAverage_emersonmde_ingest.Lines.parsing(store.writer(reactor)),
+                () -> rows(store.snapshot()));
+        AtomicReference<Publisher> publisher = new AtomicReference<>(Publisher.create(SHARED, store.snapshot()));
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread publishing = Thread.ofPlatform().name("shared-publisher").start(() -> {
+            long published = -1;
+            while (running.get()) {
+                Snapshot snapshot = store.snapshot();
+                long rows = rows(snapshot);
+                // Appends only ever add rows, so an unchanged count means an unchanged table.
+                if (rows != published) {
+                    try {
+                        publisher.set(publisher.get().publish(snapshot));
+                    }
+                    catch (IOException e) {
+                        System.err.println("Publishing failed: " + e);
+                    }
+                    published = rows;
+                }
+                try {
+                    Thread.sleep(INTERVAL);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            ingest.stop();
+            running.set(false);
+            try {
+                publishing.join();
+                publisher.get().publish(store.snapshot()).close();
+            }
+            catch (IOException | InterruptedException e) {
+                System.err.println("Final publish failed: " + e);
+            }
+        }));
+        ingest.start();
+        System.err.println("Publishing to " + SHARED);
+        ingest.reportLoop();
+    }
+
+    private static long rows(Snapshot snapshot) {
+        long rows = 0;
+        for (int i = 0; i < snapshot.size; i++) {
+            rows += snapshot.counts[i];
+        }
+        return rows;
+    }
+
+    private static String format(long min, long max, long sum, long count) {
+        return round(min / 10.0) + "/" + round((sum / 10.0) / count) + "/" + round(max / 10.0);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    private static long areaSize(int capacity, int nameCapacity) {
+        return AREA_HEADER_SIZE + (long) capacity * (KEY_SIZE + STATS_SIZE) + ((nameCapacity + 7L) & ~7L);
+    }
+
+    /**
+     * The single writer of a shared file.
+     */
+    static final class Publisher implements AutoCloseable {
+        private final Path path;
+        private final Arena arena;
+        private final long header;
+        private final int capacity;
+        private final int nameCapacity;
+        private final long areaSize;
+
+        private Publisher(Path path, Arena arena, long header, int capacity, int nameCapacity) {
+            this.path = path;
+            this.arena = arena;
+            this.header = header;
+            this.capacity = capacity;
+            this.nameCapacity = nameCapacity;
+            this.areaSize = areaSize(capacity, nameCapacity);
+        }
+
+        /**
+         * Replaces whatever is at path with a file sized for twice the given table and holding it as the first
+         * generation, written aside and moved into place so readers never map a partial header or an empty table.
+         */
+        static Publisher create(Path path, Snapshot snapshot) throws IOException {
+            int nameBytes = 0;
+            for (int i = 0; i < snapshot.size; i++) {
+                nameBytes += snapshot.names[i].length;
+            }
+            int capacity = Math.max(1024, snapshot.size * 2);
+            int nameCapacity = Math.max(capacity * 16, nameBytes * 2);
+            long areaSize = areaSize(capacity, nameCapacity);
+            // A fresh name, created exclusively: a fixed one in a shared directory could be planted as a symlink to
+            // any file the publisher may write.
+            Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName() + ".", ".tmp");
+            Arena arena = Arena.ofShared();
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    LinkOption.NOFOLLOW_LINKS)) {
+                MemorySegment mapped = channel.map(MapMode.READ_WRITE, 0, HEADER_SIZE + 2 * areaSize, arena);
+                long header = mapped.address();
+                UNSAFE.putLong(header, MAGIC);
+                UNSAFE.putInt(header + 8, LAYOUT_VERSION);
+                UNSAFE.putInt(header + STATE, CURRENT);
+                UNSAFE.putLong(header + GENERATION, 0);
+                UNSAFE.putInt(header + AREA_CAPACITY, capacity);
+                UNSAFE.putInt(header + NAME_CAPACITY, nameCapacity);
+                UNSAFE.putLong(header + AREA_SIZE, areaSize);
+                Publisher publisher = new Publisher(path, arena, header, capacity, nameCapacity).publish(snapshot);
+                mapped.force();
+                Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                return publisher;
+            }
+            catch (IOException | RuntimeException e) {
+                arena.close();
+                Files.deleteIfExists(temporary);
+                throw e;
+            }
+        }
+
+        /**
+         * Writes the table into the area readers are not directed to, then directs them there. Returns the publisher
+         * to use from now on: this one, or a larger one that replaced its file.
+         */
+        Publisher publish(Snapshot snapshot) throws IOException {
+            int nameBytes = 0;
+            for (int i = 0; i < snapshot.size; i++) {
+                nameBytes += snapshot.names[i].length;
+            }
+            if (snapshot.size > capacity || nameBytes > nameCapacity) {
+                // The larger file already holds the table, so readers that remap find it right away.
+                Publisher larger = create(path, snapshot);
+                UNSAFE.putIntVolatile(null, header + STATE, MOVED);
+                close();
+                return larger;
+            }
+
+            Integer[] order = new Integer[snapshot.size];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (left, right) -> Arrays.compareUnsigned(snapshot.names[left], snapshot.names[right]));
+
+            long generation = UNSAFE.getLong(header + GENERATION) + 1;
+            long area = header + HEADER_SIZE + (generation & 1) * areaSize;
+            long keys = area + AREA_HEADER_SIZE;
+            long stats = keys + (long) capacity * KEY_SIZE;
+            long names = stats + (long) capacity * STATS_SIZE;
+
+            long sequence = UNSAFE.getLong(area + SEQUENCE);
+            UNSAFE.putOrderedLong(null, area + SEQUENCE, sequence + 1);
+            UNSAFE.storeFence();
+
+            long rows = 0;
+            int nameOffset = 0;
+            for (int i = 0; i < order.length; i++) {
+                int station = order[i];
+                byte[] name = snapshot.names[station];
+                UNSAFE.putInt(keys + (long) i * KEY_SIZE, nameOffset);
+                UNSAFE.putInt(keys + (long) i * KEY_SIZE + 4, name.length);
+                UNSAFE.copyMemory(name, Unsafe.ARRAY_BYTE_BASE_OFFSET, null, names + nameOffset, name.length);
+                nameOffset += name.length;
+                long entry = stats + (long) i * STATS_SIZE;
+                UNSAFE.putLong(entry, snapshot.sums[station]);
+                UNSAFE.putLong(entry + 8, snapshot.counts[station]);
+                UNSAFE.putShort(entry + 16, (short) snapshot.mins[station]);
+                UNSAFE.putShort(entry + 18, (short) snapshot.maxs[station]);
+                rows += snapshot.counts[station];
+            }
+            UNSAFE.putLong(area + PUBLISHED, System.currentTimeMillis());
+            UNSAFE.putInt(area + STATIONS, order.length);
+            UNSAFE.putInt(area + NAME_BYTES, nameOffset);
+            UNSAFE.putLong(area + ROWS, rows);
+
+            UNSAFE.putOrderedLong(null, area + SEQUENCE, sequence + 2);
+            UNSAFE.putOrderedLong(null, header + GENERATION, generation);
+            return this;
+        }
+
+        @Override
+        public void close() {
+            arena.close();
+        }
+    }
+
+    /**
+     * Looks stations up in a shared file. Not thread-safe: open one per thread, they share the page cache.
+     */
+    static final class Reader implements AutoCloseable {
+        private final Path path;
+        private Arena arena;
+        private long header;
+        private int capacity;
+        private int nameCapacity;
+        private long areaSize;
+
+        private Reader(Path path) {
+            this.path = path;
+        }
+
+        static Reader open(Path path) throws IOException {
+            Reader reader = new Reader(path);
+            reader.map();
+            return reader;
+        }
+
+        private void map() throws IOException {
+            Arena arena = Arena.ofShared();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (channel.size() < HEADER_SIZE) {
+                    throw new IOException("Not a shared aggregate file: " + path);
+                }
+                long header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE, arena).address();
+                if (UNSAFE.getLong(header) != MAGIC || UNSAFE.getInt(header + 8) != LAYOUT_VERSION) {
+                    throw new IOException("Not a shared aggregate file of layout version " + LAYOUT_VERSION + ": " + path);
+                }
+                int capacity = UNSAFE.getInt(header + AREA_CAPACITY);
+                int nameCapacity = UNSAFE.getInt(header + NAME_CAPACITY);
+                long areaSize = UNSAFE.getLong(header + AREA_SIZE);
+                if (areaSize != areaSize(capacity, nameCapacity) || channel.size() < HEADER_SIZE + 2 * areaSize) {
+                    throw new IOException("Truncated shared aggregate file: " + path);
+                }
+                this.header = channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE + 2 * areaSize, arena).address();
+                this.capacity = capacity;
+                this.nameCapacity = nameCapacity;
+                this.areaSize = areaSize;
+            }
+            catch (IOException | RuntimeException e) {
+                arena.close();
+                throw e;
+            }
+            if (this.arena != null) {
+                this.arena.close();
+            }
+            this.arena = arena;
+        }
+
+        private long area() throws IOException {
+            if (UNSAFE.getIntVolatile(null, header + STATE) == MOVED) {
+                map();
+            }
+            return header + HEADER_SIZE + (UNSAFE.getLongVolatile(null, header + GENERATION) & 1) * areaSize;
+        }
+
+        long generation() {
+            return UNSAFE.getLongVolatile(null, header + GENERATION);
+        }
+
+        /**
+         * Copies min, max, sum and count of the station into stats, or returns false if it has no rows.
+         */
+        boolean lookup(byte[] name, long[] stats) throws IOException {
+            while (true) {
+                long area = area();
+                long sequence = UNSAFE.getLongVolatile(null, area + SEQUENCE);
+                if ((sequence & 1) != 0) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                int found = search(area, name);
+                if (found >= 0) {
+                    long entry = area + AREA_HEADER_SIZE + (long) capacity * KEY_SIZE + (long) found * STATS_SIZE;
+                    stats[0] = UNSAFE.getShort(entry + 16);
+                    stats[1] = UNSAFE.getShort(entry + 18);
+                    stats[2] = UNSAFE.getLong(entry);
+                    stats[3] = UNSAFE.getLong(entry + 8);
+                }
+                UNSAFE.loadFence();
+                if (UNSAFE.getLong(area + SEQUENCE) == sequence) {
+                    return found >= 0;
+                }
+            }
+        }
+
+        /**
+         * Index of the name in the area, -1 if absent, or -2 if a concurrent write left the index inconsistent. Every
+         * offset is bounds-checked first, as it may be read while the publisher rewrites it.
+         */
+        private int search(long area, byte[] name) {
+            int stations = UNSAFE.getInt(area + STATIONS);
+            if (stations < 0 || stations > capacity) {
+                return -2;
+            }
+            long keys = area + AREA_HEADER_SIZE;
+            long names = keys + (long) capacity * (KEY_SIZE + STATS_SIZE);
+            int low = 0;
+            int high = stations - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int offset = UNSAFE.getInt(keys + (long) middle * KEY_SIZE);
+                int length = UNSAFE.getInt(keys + (long) middle * KEY_SIZE + 4);
+                if (offset < 0 || length < 0 || offset > nameCapacity - length) {
+                    return -2;
+                }
+                int comparison = compare(names + offset, length, name);
+                if (comparison < 0) {
+                    low = middle + 1;
+                }
+                else if (comparison > 0) {
+                    high = middle - 1;
+                }
+                else {
+                    return middle;
+                }
+            }
+            return -1;
+        }
+
+        private static int compare(long address, int length, byte[] name) {
+            int common = Math.min(length, name.length);
+            for (int i = 0; i < common; i++) {
+                int difference = (UNSAFE.getByte(address + i) & 0xFF) - (name[i] & 0xFF);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return length - name.length;
+        }
+
+        /**
+         * The whole table in the baseline output format.
+         */
+        String format() throws IOException {
+            while (true) {
+                long area = area();
+                long sequence = UNSAFE.getLongVolatile(null, area + SEQUENCE);
+                if ((sequence & 1) != 0) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                TreeMap<String, String> result = new TreeMap<>();
+                int stations = UNSAFE.getInt(area + STATIONS);
+                long keys = area + AREA_HEADER_SIZE;
+                long stats = keys + (long) capacity * KEY_SIZE;
+                long names = stats + (long) capacity * STATS_SIZE;
+                boolean consistent = stations >= 0 && stations <= capacity;
+                for (int i = 0; consistent && i < stations; i++) {
+                    int offset = UNSAFE.getInt(keys + (long) i * KEY_SIZE);
+                    int length = UNSAFE.getInt(keys + (long) i * KEY_SIZE + 4);
+                    if (offset < 0 || length < 0 || offset > nameCapacity - length) {
+                        consistent = false;
+                        break;
+                    }
+                    byte[] name = new byte[length];
+                    UNSAFE.copyMemory(null, names + offset, name, Unsafe.ARRAY_BYTE_BASE_OFFSET, length);
+                    long entry = stats + (long) i * STATS_SIZE;
+                    result.put(new String(name, StandardCharsets.UTF_8),
+                            CalculateAverage_emersonmde_shared.format(UNSAFE.getShort(entry + 16), UNSAFE.getShort(entry + 18), UNSAFE.getLong(entry),
+                                    UNSAFE.getLong(entry + 8)));
+                }
+                UNSAFE.loadFence();
+                if (consistent && UNSAFE.getLong(area + SEQUENCE) == sequence) {
+                    return result.toString();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            arena.close();
+        }
+    }
+
+    /**
+     * Reader threads look up random stations of a synthetic table, first alone, then while a publisher republishes
+     * the table, with one changed station, every millisecond.
+     */
+    static final class Benchmark {
+
+        static void run(int seconds, int readers) throws Exception {
+            Path path = Files.createTempFile("onebrc-emersonmde-bench", ".shm");
+            try {
+                byte[][] names = CalculateAverage_emersonmde_concurrent.Benchmark.names(10_000);
+                LiveStore store = new LiveStore(1 << 15, 1);
+                LiveStore.Writer writer = store.writer(0);
+                for (byte[] name : names) {
+                    writer.add(store.claim(name), CalculateAverage_emersonmde_live.hash(name) % 1000);
+                }
+                System.out.printf("stations=%,d, readers=%d, %d s per run, cores=%d%n", names.length, readers, seconds, Runtime.getRuntime().availableProcessors());
+                Publisher publisher = Publisher.create(path, store.snapshot());
+                System.out.printf("%-22s %,16.0f%n", "lookups/s, idle", measure(path, names, seconds, readers, null));
+                Publisher publishing = publisher;
+                System.out.printf("%-22s %,16.0f%n", "lookups/s, publishing", measure(path, names, seconds, readers, () -> {
+                    writer.add(store.claim(names[0]), 1);
+                    publishing.publish(store.snapshot());
+                }));
+                publisher.close();
+            }
+            finally {
+                Files.deleteIfExists(path);
+            }
+        }
+
+        private interface Republish {
+            void run() throws IOException;
+        }
+
+        private static double measure(Path path, byte[][] names, int seconds, int readers, Republish republish) throws Exception {
+            AtomicBoolean running = new AtomicBoolean(true);
+            LongAdder lookups = new LongAdder();
+            Thread[] threads = new Thread[readers];
+            for (int t = 0; t < readers; t++) {
+                long seed = t;
+                threads[t] = new Thread(() -> {
+                    SplittableRandom random = new SplittableRandom(seed);
+                    long[] stats = new long[4];
+                    try (Reader reader = Reader.open(path)) {
+                        while (running.get()) {
+                            for (int i = 0; i < 1024; i++) {
+                                if (!reader.lookup(names[random.nextInt(names.length)], stats)) {
+                                    throw new IllegalStateException("Station missing");
+                                }
+                            }
+                            lookups.add(1024);
+                        }
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            long end = start + seconds * 1_000_000_000L;
+            while (System.nanoTime() < end) {
+                if (republish != null) {
+                    republish.run();
+                }
+                Thread.sleep(1);
+            }
+            running.set(false);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            return lookups.sum() / ((System.nanoTime() - start) / 1e9);
+        }
+    }
+}
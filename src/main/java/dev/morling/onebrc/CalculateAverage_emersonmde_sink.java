@@ -0,0 +1,168 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregates ./measurements.txt through the public MeasurementSink API, one producer per chunk, with the names
+ * passed as ranges of the mapped file.
+ *
+ * Run with --bench [seconds] [producers] [keys] to measure appends per second by station id batch, by byte[] name
+ * and by native segment name.
+ */
+public class CalculateAverage_emersonmde_sink {
+    private static final String FILE = "./measurements.txt";
+    private static final int STATIONS = Integer.getInteger("sink.stations", 10_000);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--bench")) {
+            Benchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 3,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 2,
+                    args.length > 3 ? Integer.parseInt(args[3]) : 10_000);
+            return;
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        MeasurementSink sink = new MeasurementSink(STATIONS, threads);
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            MemorySegment file = fileChannel.map(MapMode.READ_ONLY, 0, fileChannel.size(), Arena.global());
+            long[] chunks = CalculateAverage_emersonmde_concurrent.getSegments(file.address(), file.byteSize(), threads);
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < workers.length; i++) {
+                int index = i;
+                workers[i] = new Thread(() -> {
+                    try (MeasurementSink.Producer producer = sink.producer()) {
+                        CalculateAverage_emersonmde_concurrent.parseLoop(chunks[index], chunks[index + 1], new CalculateAverage_emersonmde_concurrent.Sink() {
+                            @Override
+                            void add(long nameAddress, int nameLength, int hash, int value) {
+                                producer.add(file, nameAddress - file.address(), nameLength, (short) value);
+                            }
+                        });
+                    }
+                });
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        }
+        System.out.println(sink.snapshot().format());
+    }
+
+    /**
+     * Producers append pre-generated random measurements for a fixed time, per way of naming the station.
+     */
+    static final class Benchmark {
+        private static final int BATCH = 1 << 16;
+
+        private enum Mode {
+            IDS,
+            NAMES,
+            SEGMENTS
+        }
+
+        static void run(int seconds, int producers, int keys) throws InterruptedException {
+            System.out.printf("producers=%d, keys=%,d, %d s per mode, cores=%d%n", producers, keys, seconds, Runtime.getRuntime().availableProcessors());
+            System.out.printf("%-10s %16s%n", "mode", "appends/s");
+            byte[][] names = CalculateAverage_emersonmde_concurrent.Benchmark.names(keys);
+            for (Mode mode : Mode.values()) {
+                measure(mode, 1, producers, keys, names);
+                System.out.printf("%-10s %,16.0f%n", mode.name().toLowerCase(), measure(mode, seconds, producers, keys, names));
+            }
+        }
+
+        private static double measure(Mode mode, int seconds, int producers, int keys, byte[][] names) throws InterruptedException {
+            MeasurementSink sink = new MeasurementSink(keys, producers);
+            int[] ids = new int[keys];
+            for (int i = 0; i < keys; i++) {
+                ids[i] = sink.stationId(names[i]);
+            }
+            AtomicBoolean running = new AtomicBoolean(true);
+            LongAdder appends = new LongAdder();
+            Thread[] threads = new Thread[producers];
+            try (Arena arena = Arena.ofShared()) {
+                // All names back to back in native memory, for the segment mode.
+                long[] offsets = new long[keys + 1];
+                for (int i = 0; i < keys; i++) {
+                    offsets[i + 1] = offsets[i] + names[i].length;
+                }
+                MemorySegment text = arena.allocate(offsets[keys]);
+                for (int i = 0; i < keys; i++) {
+                    MemorySegment.copy(MemorySegment.ofArray(names[i]), 0, text, offsets[i], names[i].length);
+                }
+
+                for (int t = 0; t < producers; t++) {
+                    long seed = t;
+                    threads[t] = new Thread(() -> {
+                        SplittableRandom random = new SplittableRandom(seed);
+                        int[] stations = new int[BATCH];
+                        short[] values = new short[BATCH];
+                        byte[][] batchNames = new byte[BATCH][];
+                        for (int i = 0; i < BATCH; i++) {
+                            stations[i] = random.nextInt(keys);
+                            values[i] = (short) random.nextInt(-999, 1000);
+                            batchNames[i] = names[stations[i]];
+                        }
+                        int[] batchIds = new int[BATCH];
+                        for (int i = 0; i < BATCH; i++) {
+                            batchIds[i] = ids[stations[i]];
+                        }
+                        try (MeasurementSink.Producer producer = sink.producer()) {
+                            while (running.get()) {
+                                switch (mode) {
+                                    case IDS -> producer.addAll(batchIds, values, 0, BATCH);
+                                    case NAMES -> producer.addAll(batchNames, values, 0, BATCH);
+                                    case SEGMENTS -> {
+                                        for (int i = 0; i < BATCH; i++) {
+                                            int station = stations[i];
+                                            producer.add(text, offsets[station], names[station].length, values[i]);
+                                        }
+                                    }
+                                }
+                                appends.add(BATCH);
+                            }
+                        }
+                    });
+                }
+                long start = System.nanoTime();
+                for (Thread thread : threads) {
+                    thread.start();
+                }
+                Thread.sleep(seconds * 1000L);
+                running.set(false);
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                if (sink.snapshot().rows() != appends.sum()) {
+                    throw new IllegalStateException("Lost appends: " + sink.snapshot().rows() + " of " + appends.sum());
+                }
+                return appends.sum() / elapsed;
+            }
+        }
+    }
+}
@@ -0,0 +1,587 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Fixed-memory summary for inputs with more distinct stations than fit into any exact table.
+ *
+ * No per-station table is kept. Every worker feeds its rows into three sketches whose size does not depend on the
+ * input: a HyperLogLog for the number of distinct stations, a count-min sketch for per-station row counts and a
+ * space-saving summary of the hottest stations, which also tracks min/mean/max for the stations it currently holds.
+ * All three merge, so workers run independently and are combined at the end.
+ *
+ * Usage: CalculateAverage_emersonmde_sketch [station...], prints the summary plus count-min estimates for the given
+ * stations.
+ *
+ * Configuration via system properties:
+ *   sketch.top       number of hottest stations to print (default 10)
+ *   sketch.counters  space-saving counters per worker, bounds the count error by rows / counters (default 1024)
+ */
+public class CalculateAverage_emersonmde_sketch {
+    private static final String FILE = "./measurements.txt";
+
+    private static final int TOP = Integer.getInteger("sketch.top", 10);
+    private static final int COUNTERS = Integer.getInteger("sketch.counters", 1024);
+
+    private static final long SEMICOLONS = 0x3B3B3B3B3B3B3B3BL;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (TOP > COUNTERS) {
+            throw new IllegalArgumentException("sketch.top must not exceed sketch.counters");
+        }
+        int numberOfChunks = Runtime.getRuntime().availableProcessors();
+        long[] chunks = getSegments(numberOfChunks);
+
+        Sketch result = IntStream.range(0, chunks.length - 1).mapToObj(chunkIndex -> {
+            Sketch sketch = new Sketch(COUNTERS);
+            parseLoop(chunks[chunkIndex], chunks[chunkIndex + 1], sketch);
+            return sketch;
+        }).parallel().reduce((left, right) -> {
+            left.mergeFrom(right);
+            return left;
+        }).orElseGet(() -> new Sketch(COUNTERS));
+
+        StringBuilder output = new StringBuilder();
+        output.append("rows: ").append(result.rows).append('\n');
+        output.append("distinct stations: ~").append(Math.round(result.distinct.estimate()))
+                .append(" (standard error ").append(String.format("%.2f%%", 100 * HyperLogLog.STANDARD_ERROR)).append(")\n");
+        output.append("hottest stations:\n");
+        TopK top = result.top;
+        int[] order = top.byCountDescending();
+        for (int i = 0; i < Math.min(TOP, order.length); i++) {
+            int counter = order[i];
+            output.append("  ").append(top.name(counter))
+                    .append(" rows=").append(top.counts[counter])
+                    .append(top.errors[counter] == 0 ? "" : " (overcount <= " + top.errors[counter] + ")")
+                    .append(" count-min=").append(result.frequency.estimate(top.hashes[counter]))
+                    .append(' ').append(round(top.mins[counter] / 10.0))
+                    .append('/').append(round((top.sums[counter] / 10.0) / top.observed[counter]))
+                    .append('/').append(round(top.maxs[counter] / 10.0));
+            if (top.observed[counter] != top.counts[counter]) {
+                output.append(" over the last ").append(top.observed[counter]).append(" rows");
+            }
+            output.append('\n');
+        }
+        if (args.length > 0) {
+            output.append("count-min estimates (overcount <= ")
+                    .append(Math.round(CountMin.EPSILON * result.rows)).append(" with 98% probability):\n");
+            for (String station : args) {
+                output.append("  ").append(station).append(" rows=").append(result.frequency.estimate(hash(station))).append('\n');
+            }
+        }
+        System.out.print(output);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    private static long[] getSegments(int numberOfChunks) throws IOException {
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
+            long[] chunks = new long[numberOfChunks + 1];
+            long mappedAddress = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            chunks[0] = mappedAddress;
+            long endAddress = mappedAddress + fileSize;
+            for (int i = 1; i < numberOfChunks; ++i) {
+                long chunkAddress = mappedAddress + i * segmentSize;
+                // Align to first row start.
+                while (chunkAddress < endAddress && UNSAFE.getByte(chunkAddress++) != '\n') {
+                    // nop
+                }
+                chunks[i] = Math.min(chunkAddress, endAddress);
+            }
+            chunks[numberOfChunks] = endAddress;
+            return chunks;
+        }
+    }
+
+    private static void parseLoop(long chunkStart, long chunkEnd, Sketch sketch) {
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // Scan for ';' delimiter 8 bytes at a time, falling back to single bytes near the end of the chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = (hash ^ (word & ((lowest >>> 7) - 1))) * HASH_MULTIPLIER;
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            scanPtr++;
+
+            // Parse number.
+            int number;
+            byte sign = UNSAFE.getByte(scanPtr++);
+            if (sign == '-') {
+                number = UNSAFE.getByte(scanPtr++) - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+                number = -number;
+            }
+            else {
+                number = sign - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+            }
+
+            sketch.add(nameAddress, nameLength, mix(hash ^ nameLength), number);
+
+            // Skip new line.
+            scanPtr++;
+        }
+    }
+
+    /**
+     * Same hash as the parse loop computes for a name, for station names given on the command line.
+     */
+    private static long hash(String station) {
+        byte[] bytes = station.getBytes(StandardCharsets.UTF_8);
+        long hash = 0;
+        int i = 0;
+        for (; i + Long.BYTES <= bytes.length; i += Long.BYTES) {
+            hash = (hash ^ UNSAFE.getLong(bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET + i)) * HASH_MULTIPLIER;
+        }
+        long word = 0;
+        for (int shift = 0; i < bytes.length; i++, shift += 8) {
+            word |= (bytes[i] & 0xFFL) << shift;
+        }
+        hash = (hash ^ word) * HASH_MULTIPLIER;
+        return mix(hash ^ bytes.length);
+    }
+
+    // Finalizer of MurmurHash3, the sketches need all 64 bits to be well distributed.
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static boolean nameEquals(long left, long right, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (UNSAFE.getLong(left + i) != UNSAFE.getLong(right + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (UNSAFE.getByte(left + i) != UNSAFE.getByte(right + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The sketches of one worker.
+     */
+    private static final class Sketch {
+        final HyperLogLog distinct = new HyperLogLog();
+        final CountMin frequency = new CountMin();
+        final TopK top;
+        long rows;
+
+        Sketch(int counters) {
+            top = new TopK(counters);
+        }
+
+        void add(long nameAddress, int nameLength, long hash, int value) {
+            rows++;
+            distinct.add(hash);
+            frequency.add(hash);
+            top.add(nameAddress, nameLength, hash, value);
+        }
+
+        void mergeFrom(Sketch other) {
+            rows += other.rows;
+            distinct.mergeFrom(other.distinct);
+            frequency.mergeFrom(other.frequency);
+            top.mergeFrom(other.top);
+        }
+    }
+
+    /**
+     * HyperLogLog with 2^14 one-byte registers (16 KB).
+     */
+    static final class HyperLogLog {
+        static final int PRECISION = 14;
+        static final int REGISTERS = 1 << PRECISION;
+        static final double STANDARD_ERROR = 1.04 / Math.sqrt(REGISTERS);
+
+        final byte[] registers = new byte[REGISTERS];
+
+        void add(long hash) {
+            int index = (int) (hash >>> (Long.SIZE - PRECISION));
+            // Guard bit so the rank stays in range even if the remaining bits are all zero.
+            byte rank = (byte) (Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+            if (rank > registers[index]) {
+                registers[index] = rank;
+            }
+        }
+
+        void mergeFrom(HyperLogLog other) {
+            for (int i = 0; i < REGISTERS; i++) {
+                if (other.registers[i] > registers[i]) {
+                    registers[i] = other.registers[i];
+                }
+            }
+        }
+
+        double estimate() {
+            double sum = 0;
+            int zeros = 0;
+            for (byte register : registers) {
+                sum += 1.0 / (1L << register);
+                if (register == 0) {
+                    zeros++;
+                }
+            }
+            double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+            double estimate = alpha * REGISTERS * REGISTERS / sum;
+            // Linear counting is more accurate while many registers are still empty.
+            if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+                return REGISTERS * Math.log((double) REGISTERS / zeros);
+            }
+            return estimate;
+        }
+    }
+
+    /**
+     * Count-min sketch with 4 rows of 2^15 counters (1 MB). Estimates never undercount and overcount by at most
+     * EPSILON * rows with probability 1 - e^-4.
+     */
+    static final class CountMin {
+        static final int DEPTH = 4;
+        static final int WIDTH_BITS = 15;
+        static final int WIDTH = 1 << WIDTH_BITS;
+        static final double EPSILON = Math.E / WIDTH;
+
+        final long[] counters = new long[DEPTH * WIDTH];
+
+        void add(long hash) {
+            // Row indexes derived from two halves of the hash (Kirsch-Mitzenmacher).
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int row = 0; row < DEPTH; row++) {
+                counters[row * WIDTH + ((h1 + row * h2) & (WIDTH - 1))]++;
+            }
+        }
+
+        long estimate(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                estimate = Math.min(estimate, counters[row * WIDTH + ((h1 + row * h2) & (WIDTH - 1))]);
+            }
+            return estimate;
+        }
+
+        void mergeFrom(CountMin other) {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] += other.counters[i];
+            }
+        }
+    }
+
+    /**
+     * Space-saving summary: a fixed number of counters, an unknown station replaces the one with the smallest count
+     * and inherits that count as its error. Counters sit in a min-heap by count and are found through a linear
+     * probing index by hash. Names are addresses into the mapped file.
+     *
+     * Min/max/sum are only known for the rows seen since a station got its counter, observed counts those rows.
+     */
+    static final class TopK {
+        final int capacity;
+        final long[] nameAddresses;
+        final int[] nameLengths;
+        final long[] hashes;
+        final long[] counts;
+        final long[] errors;
+        final long[] observed;
+        final int[] mins;
+        final int[] maxs;
+        final long[] sums;
+        int size;
+
+        // Min-heap of counter ids by count, and each counter's position in it.
+        final int[] heap;
+        final int[] heapPositions;
+
+        // Counter id + 1 per slot, 0 for empty slots.
+        final int[] index;
+
+        TopK(int capacity) {
+            this.capacity = capacity;
+            nameAddresses = new long[capacity];
+            nameLengths = new int[capacity];
+            hashes = new long[capacity];
+            counts = new long[capacity];
+            errors = new long[capacity];
+            observed = new long[capacity];
+            mins = new int[capacity];
+            maxs = new int[capacity];
+            sums = new long[capacity];
+            heap = new int[capacity];
+            heapPositions = new int[capacity];
+            index = new int[Integer.highestOneBit(capacity) << 2];
+        }
+
+        void add(long nameAddress, int nameLength, long hash, int value) {
+            int counter = find(nameAddress, nameLength, hash);
+            if (counter >= 0) {
+                counts[counter]++;
+                observed[counter]++;
+                mins[counter] = Math.min(mins[counter], value);
+                maxs[counter] = Math.max(maxs[counter], value);
+                sums[counter] += value;
+                siftDown(heapPositions[counter]);
+                return;
+            }
+            if (size < capacity) {
+                counter = size++;
+                heap[counter] = counter;
+                heapPositions[counter] = counter;
+                set(counter, nameAddress, nameLength, hash, 1, 0, 1, value, value, value);
+                siftUp(counter);
+            }
+            else {
+                counter = heap[0];
+                unindex(counter);
+                set(counter, nameAddress, nameLength, hash, counts[counter] + 1, counts[counter], 1, value, value, value);
+                siftDown(0);
+            }
+            index(counter);
+        }
+
+        /**
+         * Mergeable summaries: a station missing from one side may have had up to that side's minimum count there,
+         * so it is credited with it as error. The largest counters of the union are kept.
+         */
+        void mergeFrom(TopK other) {
+            long ownMinimum = size == capacity ? counts[heap[0]] : 0;
+            long otherMinimum = other.size == other.capacity ? other.counts[other.heap[0]] : 0;
+
+            TopK union = new TopK(size + other.size);
+            for (int counter = 0; counter < size; counter++) {
+                int otherCounter = other.find(nameAddresses[counter], nameLengths[counter], hashes[counter]);
+                if (otherCounter < 0) {
+                    union.append(this, counter, otherMinimum, otherMinimum);
+                }
+                else {
+                    union.append(this, counter, other.counts[otherCounter], other.errors[otherCounter]);
+                    int merged = union.size - 1;
+                    union.observed[merged] += other.observed[otherCounter];
+                    union.mins[merged] = Math.min(union.mins[merged], other.mins[otherCounter]);
+                    union.maxs[merged] = Math.max(union.maxs[merged], other.maxs[otherCounter]);
+                    union.sums[merged] += other.sums[otherCounter];
+                }
+            }
+            for (int otherCounter = 0; otherCounter < other.size; otherCounter++) {
+                if (find(other.nameAddresses[otherCounter], other.nameLengths[otherCounter], other.hashes[otherCounter]) < 0) {
+                    union.append(other, otherCounter, ownMinimum, ownMinimum);
+                }
+            }
+
+            Arrays.fill(index, 0);
+            size = 0;
+            int[] order = union.byCountDescending();
+            for (int i = 0; i < Math.min(capacity, order.length); i++) {
+                int from = order[i];
+                int counter = size++;
+                set(counter, union.nameAddresses[from], union.nameLengths[from], union.hashes[from], union.counts[from],
+                        union.errors[from], union.observed[from], union.mins[from], union.maxs[from], union.sums[from]);
+                heap[counter] = counter;
+                heapPositions[counter] = counter;
+                index(counter);
+            }
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        private void append(TopK source, int from, long extraCount, long extraError) {
+            int counter = size++;
+            set(counter, source.nameAddresses[from], source.nameLengths[from], source.hashes[from], source.counts[from] + extraCount,
+                    source.errors[from] + extraError, source.observed[from], source.mins[from], source.maxs[from], source.sums[from]);
+            index(counter);
+        }
+
+        int[] byCountDescending() {
+            return IntStream.range(0, size).boxed()
+                    .sorted((left, right) -> Long.compare(counts[right], counts[left]))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+        }
+
+        String name(int counter) {
+            byte[] bytes = new byte[nameLengths[counter]];
+            UNSAFE.copyMemory(null, nameAddresses[counter], bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void set(int counter, long nameAddress, int nameLength, long hash, long count, long error, long observedCount,
+                         int min, int max, long sum) {
+            nameAddresses[counter] = nameAddress;
+            nameLengths[counter] = nameLength;
+            hashes[counter] = hash;
+            counts[counter] = count;
+            errors[counter] = error;
+            observed[counter] = observedCount;
+            mins[counter] = min;
+            maxs[counter] = max;
+            sums[counter] = sum;
+        }
+
+        private int find(long nameAddress, int nameLength, long hash) {
+            int mask = index.length - 1;
+            for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+                int counter = index[slot] - 1;
+                if (counter < 0) {
+                    return -1;
+                }
+                if (hashes[counter] == hash && nameLengths[counter] == nameLength
+                        && nameEquals(nameAddresses[counter], nameAddress, nameLength)) {
+                    return counter;
+                }
+            }
+        }
+
+        private void index(int counter) {
+            int mask = index.length - 1;
+            int slot = (int) hashes[counter] & mask;
+            while (index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = counter + 1;
+        }
+
+        // Backward shift deletion, keeps probe sequences intact without tombstones.
+        private void unindex(int counter) {
+            int mask = index.length - 1;
+            int slot = (int) hashes[counter] & mask;
+            while (index[slot] != counter + 1) {
+                slot = (slot + 1) & mask;
+            }
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                if (index[next] == 0) {
+                    break;
+                }
+                int home = (int) hashes[index[next] - 1] & mask;
+                // Move the entry back unless its home lies cyclically in (slot, next].
+                if (((next - home) & mask) >= ((next - slot) & mask)) {
+                    index[slot] = index[next];
+                    slot = next;
+                }
+            }
+            index[slot] = 0;
+        }
+
+        private void siftDown(int position) {
+            int counter = heap[position];
+            long count = counts[counter];
+            while (true) {
+                int child = 2 * position + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+                    child++;
+                }
+                if (counts[heap[child]] >= count) {
+                    break;
+                }
+                heap[position] = heap[child];
+                heapPositions[heap[position]] = position;
+                position = child;
+            }
+            heap[position] = counter;
+            heapPositions[counter] = position;
+        }
+
+        private void siftUp(int position) {
+            int counter = heap[position];
+            long count = counts[counter];
+            while (position > 0) {
+                int parent = (position - 1) / 2;
+                if (counts[heap[parent]] <= count) {
+                    break;
+                }
+                heap[position] = heap[parent];
+                heapPositions[heap[position]] = position;
+                position = parent;
+            }
+            heap[position] = counter;
+            heapPositions[counter] = position;
+        }
+    }
+}
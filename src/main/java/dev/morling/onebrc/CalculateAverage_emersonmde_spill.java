@@ -0,0 +1,530 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Unsafe;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+/**
+ * Memory-bounded variant for key spaces that do not fit into the heap.
+ *
+ * Every worker aggregates into a fixed-capacity open addressing table whose size is derived from a byte budget.
+ * Once the table is full, its entries are sorted by key and spilled into a run file. When all segments are done,
+ * the runs are memory-mapped and combined with a streaming k-way merge that prints the final, sorted result, so
+ * heap usage stays the same no matter how many distinct stations the input contains.
+ *
+ * Configuration via system properties:
+ *   spill.budget  table budget per worker in bytes (default: half of the max heap, split across workers)
+ *   spill.dir     directory for run files (default java.io.tmpdir)
+ */
+public class CalculateAverage_emersonmde_spill {
+    private static final String FILE = "./measurements.txt";
+    private static final Path SPILL_DIR = Path.of(System.getProperty("spill.dir", System.getProperty("java.io.tmpdir")));
+
+    // Two slots (load factor 0.5), sort order, name address, name length, hash, min, max, count and sum.
+    private static final int BYTES_PER_ENTRY = 2 * Integer.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES
+            + 2 * Short.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int MIN_ENTRIES = 16;
+
+    // Run record: name length, name, min, max, count, sum.
+    private static final int RECORD_OVERHEAD = Short.BYTES + 2 * Short.BYTES + 2 * Long.BYTES;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+    // Upper bound for the number of runs mapped at the same time, more runs are merged in several passes.
+    private static final int MAX_FAN_IN = 256;
+
+    private static final long SEMICOLONS = 0x3B3B3B3B3B3B3B3BL;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int numberOfChunks = Runtime.getRuntime().availableProcessors();
+        long budget = Long.getLong("spill.budget", Runtime.getRuntime().maxMemory() / 2 / numberOfChunks);
+        int maxEntries = (int) Math.max(MIN_ENTRIES, Math.min(1 << 29, budget / BYTES_PER_ENTRY));
+
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ); var arena = Arena.ofShared()) {
+            long[] chunks = getSegments(fileChannel, arena, numberOfChunks);
+
+            // Every worker leaves behind a list of sorted runs, the last one holding whatever was left in its table.
+            List<Path> runs = IntStream.range(0, chunks.length - 1).mapToObj(chunkIndex -> {
+                Table table = new Table(maxEntries);
+                parseLoop(chunks[chunkIndex], chunks[chunkIndex + 1], table);
+                table.spill();
+                return table.runs;
+            }).parallel().flatMap(List::stream).toList();
+
+            try {
+                merge(runs);
+            }
+            finally {
+                for (Path run : runs) {
+                    Files.deleteIfExists(run);
+                }
+            }
+        }
+    }
+
+    private static long[] getSegments(FileChannel fileChannel, Arena arena, int numberOfChunks) throws IOException {
+        long fileSize = fileChannel.size();
+        long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
+        long[] chunks = new long[numberOfChunks + 1];
+        long mappedAddress = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, arena).address();
+        chunks[0] = mappedAddress;
+        long endAddress = mappedAddress + fileSize;
+        for (int i = 1; i < numberOfChunks; ++i) {
+            long chunkAddress = mappedAddress + i * segmentSize;
+            // Align to first row start.
+            while (chunkAddress < endAddress && UNSAFE.getByte(chunkAddress++) != '\n') {
+                // nop
+            }
+            chunks[i] = Math.min(chunkAddress, endAddress);
+        }
+        chunks[numberOfChunks] = endAddress;
+        return chunks;
+    }
+
+    private static void parseLoop(long chunkStart, long chunkEnd, Table table) {
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // Scan for ';' delimiter 8 bytes at a time, falling back to single bytes near the end of the chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = (hash ^ (word & ((lowest >>> 7) - 1))) * HASH_MULTIPLIER;
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            scanPtr++;
+
+            // Parse number.
+            int number;
+            byte sign = UNSAFE.getByte(scanPtr++);
+            if (sign == '-') {
+                number = UNSAFE.getByte(scanPtr++) - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+                number = -number;
+            }
+            else {
+                number = sign - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+            }
+
+            table.add(nameAddress, nameLength, (int) (hash ^ (hash >>> 32)), number);
+
+            // Skip new line.
+            scanPtr++;
+        }
+    }
+
+    // Lexicographic comparison of unsigned bytes, which matches the code point order of the UTF-8 encoded names.
+    private static int compareNames(long left, int leftLength, long right, int rightLength) {
+        int length = Math.min(leftLength, rightLength);
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            long l = UNSAFE.getLong(left + i);
+            long r = UNSAFE.getLong(right + i);
+            if (l != r) {
+                return Long.compareUnsigned(Long.reverseBytes(l), Long.reverseBytes(r));
+            }
+        }
+        for (; i < length; i++) {
+            int l = UNSAFE.getByte(left + i) & 0xFF;
+            int r = UNSAFE.getByte(right + i) & 0xFF;
+            if (l != r) {
+                return l - r;
+            }
+        }
+        return leftLength - rightLength;
+    }
+
+    /**
+     * Fixed-capacity linear probing table. Names are not copied, entries point into the mapped input file instead.
+     */
+    private static final class Table {
+        final int capacity;
+        final int mask;
+        final int[] slots;
+        final int[] order;
+        final long[] nameAddresses;
+        final int[] nameLengths;
+        final int[] hashes;
+        final short[] mins;
+        final short[] maxs;
+        final int[] counts;
+        final long[] sums;
+        final List<Path> runs = new ArrayList<>();
+        int size;
+
+        Table(int capacity) {
+            this.capacity = capacity;
+            this.slots = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+            this.mask = slots.length - 1;
+            this.order = new int[capacity];
+            this.nameAddresses = new long[capacity];
+            this.nameLengths = new int[capacity];
+            this.hashes = new int[capacity];
+            this.mins = new short[capacity];
+            this.maxs = new short[capacity];
+            this.counts = new int[capacity];
+            this.sums = new long[capacity];
+        }
+
+        void add(long nameAddress, int nameLength, int hash, int number) {
+            int slot = hash & mask;
+            while (true) {
+                int entry = slots[slot] - 1;
+                if (entry < 0) {
+                    if (size == capacity) {
+                        spill();
+                        slot = hash & mask;
+                        continue;
+                    }
+                    entry = size++;
+                    slots[slot] = entry + 1;
+                    nameAddresses[entry] = nameAddress;
+                    nameLengths[entry] = nameLength;
+                    hashes[entry] = hash;
+                    mins[entry] = (short) number;
+                    maxs[entry] = (short) number;
+                    counts[entry] = 1;
+                    sums[entry] = number;
+                    return;
+                }
+                if (hashes[entry] == hash && compareNames(nameAddresses[entry], nameLengths[entry], nameAddress, nameLength) == 0) {
+                    mins[entry] = (short) Math.min(mins[entry], number);
+                    maxs[entry] = (short) Math.max(maxs[entry], number);
+                    counts[entry]++;
+                    sums[entry] += number;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        // Sort the current entries by name, write them to a new run file and start over with an empty table.
+        void spill() {
+            if (size == 0) {
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            sort(order, 0, size);
+
+            try (var writer = new RunWriter()) {
+                runs.add(writer.run);
+                for (int i = 0; i < size; i++) {
+                    int entry = order[i];
+                    writer.append(nameAddresses[entry], nameLengths[entry], mins[entry], maxs[entry], counts[entry], sums[entry]);
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            Arrays.fill(slots, 0);
+            size = 0;
+        }
+
+        private int compare(int left, int right) {
+            return compareNames(nameAddresses[left], nameLengths[left], nameAddresses[right], nameLengths[right]);
+        }
+
+        // Quicksort over entry indices, names within a table are unique so there are no ties to worry about.
+        private void sort(int[] a, int from, int to) {
+            while (to - from > 16) {
+                int pivot = a[(from + to) >>> 1];
+                int i = from;
+                int j = to - 1;
+                while (i <= j) {
+                    while (compare(a[i], pivot) < 0) {
+                        i++;
+                    }
+                    while (compare(a[j], pivot) > 0) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int tmp = a[i];
+                        a[i++] = a[j];
+                        a[j--] = tmp;
+                    }
+                }
+                // Recurse into the smaller half, loop on the larger one.
+                if (j + 1 - from < to - i) {
+                    sort(a, from, j + 1);
+                    from = i;
+                }
+                else {
+                    sort(a, i, to);
+                    to = j + 1;
+                }
+            }
+            for (int i = from + 1; i < to; i++) {
+                int value = a[i];
+                int j = i - 1;
+                for (; j >= from && compare(a[j], value) > 0; j--) {
+                    a[j + 1] = a[j];
+                }
+                a[j + 1] = value;
+            }
+        }
+    }
+
+    /**
+     * Buffered writer for a new run file, names are copied straight from native memory.
+     */
+    private static final class RunWriter implements AutoCloseable {
+        final Path run;
+        final Arena arena = Arena.ofConfined();
+        final MemorySegment buffer = arena.allocate(WRITE_BUFFER_SIZE);
+        final long bufferAddress = buffer.address();
+        final FileChannel channel;
+        long position;
+
+        RunWriter() throws IOException {
+            run = Files.createTempFile(SPILL_DIR, "1brc-run-", ".bin");
+            channel = FileChannel.open(run, StandardOpenOption.WRITE);
+        }
+
+        void append(long nameAddress, int nameLength, int min, int max, long count, long sum) throws IOException {
+            if (position + RECORD_OVERHEAD + nameLength > WRITE_BUFFER_SIZE) {
+                flush();
+            }
+            UNSAFE.putShort(bufferAddress + position, (short) nameLength);
+            UNSAFE.copyMemory(nameAddress, bufferAddress + position + Short.BYTES, nameLength);
+            position += Short.BYTES + nameLength;
+            UNSAFE.putShort(bufferAddress + position, (short) min);
+            UNSAFE.putShort(bufferAddress + position + 2, (short) max);
+            UNSAFE.putLong(bufferAddress + position + 4, count);
+            UNSAFE.putLong(bufferAddress + position + 12, sum);
+            position += 20;
+        }
+
+        private void flush() throws IOException {
+            var byteBuffer = buffer.asSlice(0, position).asByteBuffer();
+            while (byteBuffer.hasRemaining()) {
+                channel.write(byteBuffer);
+            }
+            position = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (arena; channel) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Read position within a memory-mapped run file.
+     */
+    private static final class RunCursor {
+        final MemorySegment run;
+        long position;
+        MemorySegment name;
+        short min;
+        short max;
+        long count;
+        long sum;
+
+        RunCursor(MemorySegment run) {
+            this.run = run;
+        }
+
+        boolean next() {
+            if (position >= run.byteSize()) {
+                return false;
+            }
+            int nameLength = run.get(ValueLayout.JAVA_SHORT_UNALIGNED, position) & 0xFFFF;
+            name = run.asSlice(position + Short.BYTES, nameLength);
+            position += Short.BYTES + nameLength;
+            min = run.get(ValueLayout.JAVA_SHORT_UNALIGNED, position);
+            max = run.get(ValueLayout.JAVA_SHORT_UNALIGNED, position + 2);
+            count = run.get(ValueLayout.JAVA_LONG_UNALIGNED, position + 4);
+            sum = run.get(ValueLayout.JAVA_LONG_UNALIGNED, position + 12);
+            position += 20;
+            return true;
+        }
+    }
+
+    @FunctionalInterface
+    private interface MergeSink {
+        void accept(MemorySegment name, int min, int max, long count, long sum) throws IOException;
+    }
+
+    private static int compareNames(MemorySegment left, MemorySegment right) {
+        long mismatch = left.mismatch(right);
+        if (mismatch == -1) {
+            return 0;
+        }
+        if (mismatch == left.byteSize() || mismatch == right.byteSize()) {
+            return Long.compare(left.byteSize(), right.byteSize());
+        }
+        return (left.get(ValueLayout.JAVA_BYTE, mismatch) & 0xFF) - (right.get(ValueLayout.JAVA_BYTE, mismatch) & 0xFF);
+    }
+
+    // Reduce the number of runs to at most MAX_FAN_IN by merging them into intermediate runs, then stream the final
+    // merge to stdout.
+    private static void merge(List<Path> runs) throws IOException {
+        List<Path> intermediates = new ArrayList<>();
+        try {
+            while (runs.size() > MAX_FAN_IN) {
+                List<Path> merged = new ArrayList<>();
+                for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                    List<Path> group = runs.subList(i, Math.min(runs.size(), i + MAX_FAN_IN));
+                    try (var writer = new RunWriter()) {
+                        intermediates.add(writer.run);
+                        merged.add(writer.run);
+                        merge(group, (name, min, max, count, sum) -> writer.append(name.address(), (int) name.byteSize(), min, max, count, sum));
+                    }
+                    // Free up disk space early, the group is no longer needed.
+                    for (Path run : group) {
+                        Files.deleteIfExists(run);
+                    }
+                }
+                runs = merged;
+            }
+
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false, StandardCharsets.UTF_8);
+            out.print('{');
+            merge(runs, new MergeSink() {
+                boolean first = true;
+
+                @Override
+                public void accept(MemorySegment name, int min, int max, long count, long sum) {
+                    if (!first) {
+                        out.print(", ");
+                    }
+                    first = false;
+                    out.print(new String(name.toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8));
+                    out.print('=');
+                    out.print(round(min / 10.0) + "/" + round((sum / 10.0) / count) + "/" + round(max / 10.0));
+                }
+            });
+            out.println('}');
+            out.flush();
+        }
+        finally {
+            for (Path run : intermediates) {
+                Files.deleteIfExists(run);
+            }
+        }
+    }
+
+    // Streaming k-way merge, equal names coming from different runs are combined before they are handed to the sink.
+    private static void merge(List<Path> runs, MergeSink sink) throws IOException {
+        try (var arena = Arena.ofConfined()) {
+            PriorityQueue<RunCursor> queue = new PriorityQueue<>(Math.max(1, runs.size()), (l, r) -> compareNames(l.name, r.name));
+            for (Path run : runs) {
+                try (var channel = FileChannel.open(run, StandardOpenOption.READ)) {
+                    RunCursor cursor = new RunCursor(channel.map(MapMode.READ_ONLY, 0, channel.size(), arena));
+                    if (cursor.next()) {
+                        queue.add(cursor);
+                    }
+                }
+            }
+
+            while (!queue.isEmpty()) {
+                RunCursor cursor = queue.poll();
+                MemorySegment name = cursor.name;
+                int min = cursor.min;
+                int max = cursor.max;
+                long count = cursor.count;
+                long sum = cursor.sum;
+                if (cursor.next()) {
+                    queue.add(cursor);
+                }
+                while (!queue.isEmpty() && compareNames(queue.peek().name, name) == 0) {
+                    cursor = queue.poll();
+                    min = Math.min(min, cursor.min);
+                    max = Math.max(max, cursor.max);
+                    count += cursor.count;
+                    sum += cursor.sum;
+                    if (cursor.next()) {
+                        queue.add(cursor);
+                    }
+                }
+                sink.accept(name, min, max, count, sum);
+            }
+        }
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Prints only the top N stations per metric instead of all of them.
+ *
+ * After the regular aggregation, the slot range of the final table is split across threads, each keeping one
+ * bounded min-heap of (score, slot) pairs per metric in primitive arrays. The per-range heaps are merged, so
+ * selecting costs O(stations * log N) without sorting the table, and names are only decoded for stations that made
+ * it into a heap. Ties are broken by name in byte order, compared in place.
+ *
+ * Usage: CalculateAverage_emersonmde_topn [metric...], metrics are max (hottest), min (coldest), mean (highest mean)
+ * and count (most rows), by default all four. -Dtopn.n sets N (default 20). Each metric is printed as a
+ * "== metric ==" line followed by one name=min/mean/max rows=count line per station, best first.
+ */
+public class CalculateAverage_emersonmde_topn {
+    private static final String FILE = "./measurements.txt";
+
+    private static final int N = Integer.getInteger("topn.n", 20);
+
+    private static final long SEMICOLONS = 0x3B3B3B3B3B3B3B3BL;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Metric[] metrics = args.length == 0 ? Metric.values()
+                : Arrays.stream(args).map(arg -> Metric.valueOf(arg.toUpperCase())).toArray(Metric[]::new);
+        if (N < 1) {
+            throw new IllegalArgumentException("topn.n must be positive");
+        }
+
+        int numberOfChunks = Runtime.getRuntime().availableProcessors();
+        long[] chunks = getSegments(numberOfChunks);
+
+        Table result = IntStream.range(0, chunks.length - 1).mapToObj(chunkIndex -> {
+            Table table = new Table(1 << 10);
+            parseLoop(chunks[chunkIndex], chunks[chunkIndex + 1], table);
+            return table;
+        }).parallel().reduce((left, right) -> {
+            left.mergeFrom(right);
+            return left;
+        }).orElseGet(() -> new Table(1 << 10));
+
+        int capacity = result.nameAddresses.length;
+        int ranges = Math.min(numberOfChunks, Math.max(1, capacity / 4096));
+        BoundedHeap[] heaps = IntStream.range(0, ranges).parallel().mapToObj(range -> {
+            BoundedHeap[] rangeHeaps = new BoundedHeap[metrics.length];
+            for (int m = 0; m < metrics.length; m++) {
+                rangeHeaps[m] = new BoundedHeap(result, N);
+            }
+            int end = (int) ((long) capacity * (range + 1) / ranges);
+            for (int slot = (int) ((long) capacity * range / ranges); slot < end; slot++) {
+                if (result.nameAddresses[slot] == 0) {
+                    continue;
+                }
+                for (int m = 0; m < metrics.length; m++) {
+                    rangeHeaps[m].offer(metrics[m].score(result, slot), slot);
+                }
+            }
+            return rangeHeaps;
+        }).reduce((left, right) -> {
+            for (int m = 0; m < metrics.length; m++) {
+                left[m].mergeFrom(right[m]);
+            }
+            return left;
+        }).orElseThrow();
+
+        StringBuilder output = new StringBuilder();
+        for (int m = 0; m < metrics.length; m++) {
+            output.append("== ").append(metrics[m].name().toLowerCase()).append(" ==\n");
+            for (int slot : heaps[m].bestFirst()) {
+                output.append(result.name(slot)).append('=')
+                        .append(round(result.mins[slot] / 10.0)).append('/')
+                        .append(round((result.sums[slot] / 10.0) / result.counts[slot])).append('/')
+                        .append(round(result.maxs[slot] / 10.0))
+                        .append(" rows=").append(result.counts[slot]).append('\n');
+            }
+        }
+        System.out.print(output);
+    }
+
+    /**
+     * Ranking criteria, a higher score ranks first.
+     */
+    private enum Metric {
+        MAX {
+            @Override
+            long score(Table table, int slot) {
+                return table.maxs[slot];
+            }
+        },
+        MIN {
+            @Override
+            long score(Table table, int slot) {
+                return -table.mins[slot];
+            }
+        },
+        MEAN {
+            @Override
+            long score(Table table, int slot) {
+                // Order preserving mapping of the double onto a long.
+                long bits = Double.doubleToLongBits((double) table.sums[slot] / table.counts[slot]);
+                return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+            }
+        },
+        COUNT {
+            @Override
+            long score(Table table, int slot) {
+                return table.counts[slot];
+            }
+        };
+
+        abstract long score(Table table, int slot);
+    }
+
+    /**
+     * Keeps the N best (score, slot) pairs in a min-heap, so the root is the one to evict next.
+     */
+    private static final class BoundedHeap {
+        final Table table;
+        final long[] scores;
+        final int[] slots;
+        int size;
+
+        BoundedHeap(Table table, int capacity) {
+            this.table = table;
+            this.scores = new long[capacity];
+            this.slots = new int[capacity];
+        }
+
+        void offer(long score, int slot) {
+            if (size < scores.length) {
+                int position = size++;
+                while (position > 0) {
+                    int parent = (position - 1) >>> 1;
+                    if (!better(scores[parent], slots[parent], score, slot)) {
+                        break;
+                    }
+                    scores[position] = scores[parent];
+                    slots[position] = slots[parent];
+                    position = parent;
+                }
+                scores[position] = score;
+                slots[position] = slot;
+            }
+            else if (better(score, slot, scores[0], slots[0])) {
+                siftDown(score, slot);
+            }
+        }
+
+        void mergeFrom(BoundedHeap other) {
+            for (int i = 0; i < other.size; i++) {
+                offer(other.scores[i], other.slots[i]);
+            }
+        }
+
+        // Empties the heap.
+        int[] bestFirst() {
+            int[] result = new int[size];
+            while (size > 0) {
+                result[size - 1] = slots[0];
+                size--;
+                if (size > 0) {
+                    siftDown(scores[size], slots[size]);
+                }
+            }
+            return result;
+        }
+
+        // Places the pair at the root and restores the heap order.
+        private void siftDown(long score, int slot) {
+            int position = 0;
+            while (true) {
+                int child = 2 * position + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && better(scores[child], slots[child], scores[child + 1], slots[child + 1])) {
+                    child++;
+                }
+                if (!better(score, slot, scores[child], slots[child])) {
+                    break;
+                }
+                scores[position] = scores[child];
+                slots[position] = slots[child];
+                position = child;
+            }
+            scores[position] = score;
+            slots[position] = slot;
+        }
+
+        private boolean better(long leftScore, int leftSlot, long rightScore, int rightSlot) {
+            if (leftScore != rightScore) {
+                return leftScore > rightScore;
+            }
+            return table.compareNames(leftSlot, rightSlot) < 0;
+        }
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    private static long[] getSegments(int numberOfChunks) throws IOException {
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
+            long[] chunks = new long[numberOfChunks + 1];
+            long mappedAddress = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            chunks[0] = mappedAddress;
+            long endAddress = mappedAddress + fileSize;
+            for (int i = 1; i < numberOfChunks; ++i) {
+                long chunkAddress = mappedAddress + i * segmentSize;
+                // Align to first row start.
+                while (chunkAddress < endAddress && UNSAFE.getByte(chunkAddress++) != '\n') {
+                    // nop
+                }
+                chunks[i] = Math.min(chunkAddress, endAddress);
+            }
+            chunks[numberOfChunks] = endAddress;
+            return chunks;
+        }
+    }
+
+    private static void parseLoop(long chunkStart, long chunkEnd, Table table) {
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // Scan for ';' delimiter 8 bytes at a time, falling back to single bytes near the end of the chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = (hash ^ (word & ((lowest >>> 7) - 1))) * HASH_MULTIPLIER;
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            scanPtr++;
+
+            // Parse number.
+            int number;
+            byte sign = UNSAFE.getByte(scanPtr++);
+            if (sign == '-') {
+                number = UNSAFE.getByte(scanPtr++) - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+                number = -number;
+            }
+            else {
+                number = sign - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+            }
+
+            table.add(nameAddress, nameLength, (int) (hash ^ (hash >>> 32)), number);
+
+            // Skip new line.
+            scanPtr++;
+        }
+    }
+
+    private static boolean nameEquals(long left, long right, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (UNSAFE.getLong(left + i) != UNSAFE.getLong(right + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (UNSAFE.getByte(left + i) != UNSAFE.getByte(right + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Growable linear probing table, names point into the mapped file.
+     */
+    private static final class Table {
+        long[] nameAddresses;
+        int[] nameLengths;
+        int[] hashes;
+        int[] mins;
+        int[] maxs;
+        long[] counts;
+        long[] sums;
+        int size;
+
+        Table(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            nameAddresses = new long[capacity];
+            nameLengths = new int[capacity];
+            hashes = new int[capacity];
+            mins = new int[capacity];
+            maxs = new int[capacity];
+            counts = new long[capacity];
+            sums = new long[capacity];
+        }
+
+        private int slot(long nameAddress, int nameLength, int hash) {
+            int mask = nameAddresses.length - 1;
+            int slot = hash & mask;
+            long existing;
+            while ((existing = nameAddresses[slot]) != 0) {
+                if (hashes[slot] == hash && nameLengths[slot] == nameLength && nameEquals(existing, nameAddress, nameLength)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if ((size + 1) * 2 > nameAddresses.length) {
+                grow();
+                return slot(nameAddress, nameLength, hash);
+            }
+            size++;
+            nameAddresses[slot] = nameAddress;
+            nameLengths[slot] = nameLength;
+            hashes[slot] = hash;
+            mins[slot] = Integer.MAX_VALUE;
+            maxs[slot] = Integer.MIN_VALUE;
+            return slot;
+        }
+
+        void add(long nameAddress, int nameLength, int hash, int value) {
+            int slot = slot(nameAddress, nameLength, hash);
+            mins[slot] = Math.min(mins[slot], value);
+            maxs[slot] = Math.max(maxs[slot], value);
+            counts[slot]++;
+            sums[slot] += value;
+        }
+
+        void mergeFrom(Table other) {
+            for (int otherSlot = 0; otherSlot < other.nameAddresses.length; otherSlot++) {
+                if (other.nameAddresses[otherSlot] == 0) {
+                    continue;
+                }
+                int slot = slot(other.nameAddresses[otherSlot], other.nameLengths[otherSlot], other.hashes[otherSlot]);
+                mins[slot] = Math.min(mins[slot], other.mins[otherSlot]);
+                maxs[slot] = Math.max(maxs[slot], other.maxs[otherSlot]);
+                counts[slot] += other.counts[otherSlot];
+                sums[slot] += other.sums[otherSlot];
+            }
+        }
+
+        // Unsigned byte order, like comparing the UTF-8 names.
+        int compareNames(int left, int right) {
+            long leftAddress = nameAddresses[left];
+            long rightAddress = nameAddresses[right];
+            int length = Math.min(nameLengths[left], nameLengths[right]);
+            for (int i = 0; i < length; i++) {
+                int difference = (UNSAFE.getByte(leftAddress + i) & 0xFF) - (UNSAFE.getByte(rightAddress + i) & 0xFF);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return nameLengths[left] - nameLengths[right];
+        }
+
+        String name(int slot) {
+            byte[] bytes = new byte[nameLengths[slot]];
+            UNSAFE.copyMemory(null, nameAddresses[slot], bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void grow() {
+            long[] oldNameAddresses = nameAddresses;
+            int[] oldNameLengths = nameLengths;
+            int[] oldHashes = hashes;
+            int[] oldMins = mins;
+            int[] oldMaxs = maxs;
+            long[] oldCounts = counts;
+            long[] oldSums = sums;
+            allocate(oldNameAddresses.length * 2);
+            int mask = nameAddresses.length - 1;
+            for (int oldSlot = 0; oldSlot < oldNameAddresses.length; oldSlot++) {
+                if (oldNameAddresses[oldSlot] == 0) {
+                    continue;
+                }
+                int slot = oldHashes[oldSlot] & mask;
+                while (nameAddresses[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                nameAddresses[slot] = oldNameAddresses[oldSlot];
+                nameLengths[slot] = oldNameLengths[oldSlot];
+                hashes[slot] = oldHashes[oldSlot];
+                mins[slot] = oldMins[oldSlot];
+                maxs[slot] = oldMaxs[oldSlot];
+                counts[slot] = oldCounts[oldSlot];
+                sums[slot] = oldSums[oldSlot];
+            }
+        }
+    }
+}
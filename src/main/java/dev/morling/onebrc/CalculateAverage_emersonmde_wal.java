@@ -0,0 +1,519 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import dev.morling.onebrc.CalculateAverage_emersonmde_concurrent.Sink;
+import dev.morling.onebrc.CalculateAverage_emersonmde_ingest.Lines;
+import dev.morling.onebrc.CalculateAverage_emersonmde_live.LiveStore;
+import dev.morling.onebrc.CalculateAverage_emersonmde_live.Snapshot;
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable live ingestion: every run of lines is appended to a write-ahead log before it is aggregated.
+ *
+ * Reactors copy each run of complete lines, as one record, into a shared in-memory buffer. A flusher thread swaps
+ * that buffer for an empty one every commit interval, writes it to the current log segment and forces it once for
+ * everything appended in the meantime, so no producer ever waits for a disk sync. A crash loses at most the rows of
+ * the last interval. A record is its length, its CRC32C and the raw lines, so the batch parser replays it in place
+ * from a mapping of the segment; replay stops at the first torn or corrupt record at the tail.
+ *
+ * The batch parser trusts its input and reads past a line without ';'. Live, the guard behind every connection buffer
+ * bounds that, but a mapped segment has none, so only well-formed lines (name;-?d?d.d) are logged and aggregated;
+ * others are dropped before the append, and replay treats a record that isn't well formed as corrupt. Both paths
+ * therefore parse exactly the same bytes.
+ *
+ * Checkpoints bound the log. Reactors hold the read side of a StampedLock from append to aggregation of a run, so a
+ * checkpoint briefly takes the write side, starts a new segment and snapshots the store, which then covers exactly
+ * the closed segments. The snapshot is written to a temporary file, forced and atomically renamed over the previous
+ * checkpoint, after which the closed segments are deleted. Recovery merges the checkpoint into an empty store and
+ * replays the remaining segments with one worker per stripe.
+ *
+ * Usage:
+ *   --serve     recovers, then ingests like the ingestion server; prints the aggregate on shutdown after a final
+ *               checkpoint
+ *   --recover   recovers and prints the aggregate
+ *
+ * Configuration via system properties, next to the ingest.* ones:
+ *   wal.dir                  directory of segments and checkpoint (default ./wal)
+ *   wal.interval             group commit interval in milliseconds (default 10)
+ *   wal.bufferSize           bytes per commit buffer, a full buffer is written out early (default 8 MB)
+ *   wal.checkpointBytes      log bytes after which a checkpoint is taken (default 256 MB)
+ *   wal.checkpointInterval   milliseconds after which a checkpoint is taken (default 60000)
+ */
+public class CalculateAverage_emersonmde_wal {
+    private static final Path DIRECTORY = Path.of(System.getProperty("wal.dir", "./wal"));
+    private static final long INTERVAL_MILLIS = Long.getLong("wal.interval", 10);
+    private static final int BUFFER_SIZE = Integer.getInteger("wal.bufferSize", 8 << 20);
+    private static final long CHECKPOINT_BYTES = Long.getLong("wal.checkpointBytes", 256L << 20);
+    private static final long CHECKPOINT_MILLIS = Long.getLong("wal.checkpointInterval", 60_000);
+    private static final int CAPACITY = Integer.getInteger("live.capacity", 1 << 15);
+    private static final int REACTORS = Integer.getInteger("ingest.reactors", Runtime.getRuntime().availableProcessors());
+
+    private static final int HEADER = 2 * Integer.BYTES;
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final long CHECKPOINT_MAGIC = 0x314B504C41574D45L;
+    private static final String CHECKPOINT = "checkpoint.bin";
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || !(args[0].equals("--serve") || args[0].equals("--recover"))) {
+            System.err.println("Usage: --serve | --recover");
+            System.exit(1);
+        }
+
+        LiveStore store = new LiveStore(CAPACITY, CalculateAverage_emersonmde_live.stripesFor(REACTORS));
+        long nextSegment = recover(DIRECTORY, store);
+        if (args[0].equals("--recover")) {
+            System.out.println(store.snapshot().format());
+            return;
+        }
+
+        WriteAheadLog log = new WriteAheadLog(DIRECTORY, store, nextSegment);
+        CalculateAverage_emersonmde_ingest.Server server = new CalculateAverage_emersonmde_ingest.Server(log::logging,
+                () -> rows(store.snapshot()));
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            try {
+                log.close();
+            }
+            catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            System.out.println(store.snapshot().format());
+        }));
+        server.reportLoop();
+    }
+
+    private static long rows(Snapshot snapshot) {
+        long rows = 0;
+        for (int i = 0; i < snapshot.size; i++) {
+            rows += snapshot.counts[i];
+        }
+        return rows;
+    }
+
+    private static Path segment(Path directory, long number) {
+        return directory.resolve(String.format("segment-%016d.log", number));
+    }
+
+    private static List<Long> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith("segment-") && name.endsWith(".log"))
+                    .map(name -> Long.parseLong(name, "segment-".length(), name.length() - ".log".length(), 10))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    /**
+     * Restores the checkpoint and replays all later segments into the empty store, returns the next segment number.
+     */
+    static long recover(Path directory, LiveStore store) throws IOException, InterruptedException {
+        Files.createDirectories(directory);
+        long start = System.nanoTime();
+        long firstSegment = 0;
+        Path checkpoint = directory.resolve(CHECKPOINT);
+        if (Files.exists(checkpoint)) {
+            firstSegment = restore(checkpoint, store);
+        }
+
+        long bytes = 0;
+        long nextSegment = firstSegment;
+        for (long number : segments(directory)) {
+            Path file = segment(directory, number);
+            if (number < firstSegment) {
+                // Covered by the checkpoint, left over from a crash right after it was written.
+                Files.delete(file);
+                continue;
+            }
+            bytes += replay(file, store);
+            nextSegment = number + 1;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("Recovered %,d rows: checkpoint up to segment %d, replayed %,d log bytes in %.2f s (%,.0f MB/s)%n",
+                rows(store.snapshot()), firstSegment, bytes, seconds, bytes / seconds / 1e6);
+        return nextSegment;
+    }
+
+    private static long restore(Path checkpoint, LiveStore store) throws IOException {
+        try (Arena arena = Arena.ofConfined();
+                FileChannel channel = FileChannel.open(checkpoint, StandardOpenOption.READ)) {
+            MemorySegment mapping = channel.map(MapMode.READ_ONLY, 0, channel.size(), arena);
+            ByteBuffer buffer = mapping.asByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getLong() != CHECKPOINT_MAGIC) {
+                throw new IOException("Not a checkpoint: " + checkpoint);
+            }
+            long firstSegment = buffer.getLong();
+            int stations = buffer.getInt();
+            LiveStore.Writer writer = store.writer(0);
+            for (int i = 0; i < stations; i++) {
+                int nameLength = buffer.getShort() & 0xFFFF;
+                long nameAddress = mapping.address() + buffer.position();
+                buffer.position(buffer.position() + nameLength);
+                writer.merge(nameAddress, nameLength, buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+            }
+            return firstSegment;
+        }
+    }
+
+    /**
+     * End of the longest prefix of whole lines that the batch parser reads without leaving [start, end): a non-empty
+     * name, ';', an optional '-', one or two digits, '.', one digit and '\n'.
+     */
+    static long wellFormed(long start, long end) {
+        long line = start;
+        while (line < end) {
+            long position = line;
+            byte b = 0;
+            while (position < end && (b = UNSAFE.getByte(position)) != ';' && b != '\n') {
+                position++;
+            }
+            if (position == line || b != ';' || position == end) {
+                return line;
+            }
+            position++;
+            if (position < end && UNSAFE.getByte(position) == '-') {
+                position++;
+            }
+            int digits = 0;
+            while (digits < 3 && position < end && isDigit(UNSAFE.getByte(position))) {
+                position++;
+                digits++;
+            }
+            if (digits == 0 || digits > 2 || position + 3 > end || UNSAFE.getByte(position) != '.'
+                    || !isDigit(UNSAFE.getByte(position + 1)) || UNSAFE.getByte(position + 2) != '\n') {
+                return line;
+            }
+            line = position + 3;
+        }
+        return line;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    // Replays the valid prefix of a segment and cuts off anything after it, returns the valid length.
+    private static long replay(Path file, LiveStore store) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            // Unmapped by the GC: CRC32C does not accept buffers of closeable shared arenas.
+            MemorySegment mapping = channel.map(MapMode.READ_ONLY, 0, size, Arena.ofAuto());
+
+            // Record boundaries first, verifying every record, so the parsing can be split across workers.
+            List<long[]> records = new ArrayList<>();
+            CRC32C crc = new CRC32C();
+            long position = 0;
+            while (position + HEADER <= size) {
+                int length = mapping.get(INT, position);
+                int checksum = mapping.get(INT, position + Integer.BYTES);
+                if (length <= 0 || position + HEADER + length > size) {
+                    break;
+                }
+                crc.reset();
+                crc.update(mapping.asSlice(position + HEADER, length).asByteBuffer());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                long record = mapping.address() + position + HEADER;
+                if (wellFormed(record, record + length) != record + length) {
+                    // Not written by this version, whose parser would read past it.
+                    break;
+                }
+                records.add(new long[]{ record, length });
+                position += HEADER + length;
+            }
+            if (position < size) {
+                System.err.printf("Truncating %s at %,d of %,d bytes%n", file.getFileName(), position, size);
+            }
+
+            Thread[] workers = new Thread[store.stripes];
+            for (int i = 0; i < workers.length; i++) {
+                int index = i;
+                workers[i] = new Thread(() -> {
+                    Sink writer = store.writer(index);
+                    for (int r = index; r < records.size(); r += workers.length) {
+                        long[] record = records.get(r);
+                        CalculateAverage_emersonmde_concurrent.parseLoop(record[0], record[0] + record[1], writer);
+                    }
+                });
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            if (position < size) {
+                channel.truncate(position);
+            }
+            return position;
+        }
+    }
+
+    /**
+     * The log: commit buffers, the current segment and the flusher thread that commits and checkpoints.
+     */
+    static final class WriteAheadLog {
+        private final Path directory;
+        private final LiveStore store;
+        // Read side held from append to aggregation of a run, write side by checkpoints.
+        private final StampedLock phase = new StampedLock();
+        // Lock order: appendLock, then channelLock.
+        private final ReentrantLock appendLock = new ReentrantLock();
+        private final ReentrantLock channelLock = new ReentrantLock();
+        private final CRC32C crc = new CRC32C();
+        private final Thread flusher;
+        private ByteBuffer active;
+        private ByteBuffer standby;
+        private FileChannel channel;
+        private long segment;
+        private long segmentBytes;
+        private long lastCheckpoint = System.nanoTime();
+        private volatile boolean closed;
+
+        WriteAheadLog(Path directory, LiveStore store, long segment) throws IOException {
+            this.directory = directory;
+            this.store = store;
+            this.segment = segment;
+            this.active = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            this.standby = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            this.channel = open(segment);
+            this.flusher = new Thread(this::flushLoop, "wal-flusher");
+            flusher.start();
+        }
+
+        private FileChannel open(long number) throws IOException {
+            return FileChannel.open(segment(directory, number), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * The lines consumer of a reactor: logs each run, then aggregates it into the reactor's stripe.
+         */
+        Lines logging(int reactor) {
+            Sink writer = store.writer(reactor);
+            return (start, end) -> {
+                long stamp = phase.readLock();
+                try {
+                    long position = start;
+                    while (position < end) {
+                        long valid = wellFormed(position, end);
+                        if (valid > position) {
+                            append(position, (int) (valid - position));
+                            CalculateAverage_emersonmde_concurrent.parseLoop(position, valid, writer);
+                        }
+                        if (valid == end) {
+                            break;
+                        }
+                        // Runs end with a new line, so this stops within the run.
+                        position = valid;
+                        while (UNSAFE.getByte(position++) != '\n') {
+                            // nop
+                        }
+                        System.err.println("Dropping malformed line of " + (position - valid) + " bytes");
+                    }
+                }
+                finally {
+                    phase.unlockRead(stamp);
+                }
+            };
+        }
+
+        private void append(long address, int length) {
+            if (HEADER + length > BUFFER_SIZE) {
+                throw new IllegalArgumentException("Run of " + length + " bytes exceeds wal.bufferSize");
+            }
+            appendLock.lock();
+            try {
+                if (active.remaining() < HEADER + length) {
+                    // Full before the interval elapsed, written here; the next commit forces it.
+                    channelLock.lock();
+                    try {
+                        write(active);
+                    }
+                    finally {
+                        channelLock.unlock();
+                    }
+                }
+                int position = active.position();
+                // The segment of a buffer starts at its position.
+                long target = MemorySegment.ofBuffer(active).address() + HEADER;
+                UNSAFE.copyMemory(address, target, length);
+                crc.reset();
+                crc.update(active.slice(position + HEADER, length));
+                active.putInt(length).putInt((int) crc.getValue()).position(position + HEADER + length);
+            }
+            finally {
+                appendLock.unlock();
+            }
+        }
+
+        // Caller holds channelLock.
+        private void write(ByteBuffer buffer) {
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    segmentBytes += channel.write(buffer);
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Write-ahead log failed", e);
+            }
+            buffer.clear();
+        }
+
+        private void flushLoop() {
+            try {
+                while (!closed) {
+                    Thread.sleep(INTERVAL_MILLIS);
+                    commit();
+                    if (segmentBytes >= CHECKPOINT_BYTES || System.nanoTime() - lastCheckpoint >= CHECKPOINT_MILLIS * 1_000_000) {
+                        checkpoint();
+                    }
+                }
+            }
+            catch (InterruptedException | IOException e) {
+                throw new RuntimeException("Write-ahead log failed", e);
+            }
+        }
+
+        // Swaps the buffers so producers continue while the full one is written, then forces the segment.
+        private void commit() throws IOException {
+            ByteBuffer full;
+            FileChannel target;
+            appendLock.lock();
+            try {
+                full = active;
+                active = standby;
+                standby = full;
+                // Taken before appends resume, so a producer writing out the new buffer early queues behind this one.
+                channelLock.lock();
+            }
+            finally {
+                appendLock.unlock();
+            }
+            try {
+                write(full);
+                target = channel;
+            }
+            finally {
+                channelLock.unlock();
+            }
+            target.force(false);
+        }
+
+        private void checkpoint() throws IOException {
+            FileChannel closedSegment;
+            Snapshot snapshot;
+            long stamp = phase.writeLock();
+            try {
+                appendLock.lock();
+                channelLock.lock();
+                try {
+                    write(active);
+                    closedSegment = channel;
+                    channel = open(++segment);
+                    segmentBytes = 0;
+                }
+                finally {
+                    channelLock.unlock();
+                    appendLock.unlock();
+                }
+                snapshot = store.snapshot();
+            }
+            finally {
+                phase.unlockWrite(stamp);
+            }
+            closedSegment.force(false);
+            closedSegment.close();
+
+            Path temporary = directory.resolve(CHECKPOINT + ".tmp");
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putLong(CHECKPOINT_MAGIC).putLong(segment).putInt(snapshot.size);
+                for (int i = 0; i < snapshot.size; i++) {
+                    byte[] name = snapshot.names[i];
+                    if (buffer.remaining() < Short.BYTES + name.length + 4 * Long.BYTES) {
+                        out.write(buffer.flip());
+                        buffer.clear();
+                    }
+                    buffer.putShort((short) name.length).put(name)
+                            .putLong(snapshot.mins[i]).putLong(snapshot.maxs[i]).putLong(snapshot.sums[i]).putLong(snapshot.counts[i]);
+                }
+                out.write(buffer.flip());
+                out.force(true);
+            }
+            Files.move(temporary, directory.resolve(CHECKPOINT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                // Makes the rename durable before the segments it covers go away.
+                directoryChannel.force(true);
+            }
+            for (long number : segments(directory)) {
+                if (number < segment) {
+                    Files.delete(segment(directory, number));
+                }
+            }
+            lastCheckpoint = System.nanoTime();
+        }
+
+        /**
+         * Stops the flusher and takes a final checkpoint, so the next start only restores it. Reactors must be stopped.
+         */
+        void close() throws IOException, InterruptedException {
+            closed = true;
+            // Not interrupted: an interrupt during channel I/O would close the segment.
+            flusher.join();
+            commit();
+            checkpoint();
+            // Nothing was appended to the segment the checkpoint started.
+            channel.close();
+            Files.delete(segment(directory, segment));
+        }
+    }
+}
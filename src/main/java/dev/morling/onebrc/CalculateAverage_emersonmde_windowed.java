@@ -0,0 +1,510 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import sun.misc.Unsafe;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Tumbling window aggregation for rows of the form station;epochSeconds;temperature, as written by
+ * create_measurements.sh with --timestamps.
+ *
+ * Stations get dense ids from a name table, and aggregates are kept in a second primitive table keyed by the packed
+ * (stationId, windowIndex) long. Rows are aggregated once at the greatest common divisor of all requested window
+ * sizes; every requested size is then rolled up from those exact aggregates after the scan. Since timestamps of a
+ * station mostly move forward, each station remembers the key and slot of its last window, which skips the second
+ * lookup for nearly all rows.
+ *
+ * Configuration via system properties:
+ *   windowed.sizes  comma separated window sizes with s, m, h or d suffix (default 1h,1d)
+ *
+ * For every size a "== size ==" line is printed, followed by "station windowStart min/mean/max" lines sorted by
+ * station, then window. Windows are aligned to the epoch, their indexes (timestamp / size) must fit into an int.
+ */
+public class CalculateAverage_emersonmde_windowed {
+    private static final String FILE = "./measurements.txt";
+
+    private static final long SEMICOLONS = 0x3B3B3B3B3B3B3B3BL;
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private static final Unsafe UNSAFE = initUnsafe();
+
+    private static Unsafe initUnsafe() {
+        try {
+            Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return (Unsafe) theUnsafe.get(Unsafe.class);
+        }
+        catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String[] sizeSpecs = System.getProperty("windowed.sizes", "1h,1d").split(",");
+        long[] sizes = Arrays.stream(sizeSpecs).mapToLong(CalculateAverage_emersonmde_windowed::seconds).toArray();
+        long baseSize = Arrays.stream(sizes).reduce(CalculateAverage_emersonmde_windowed::gcd).orElseThrow();
+
+        int numberOfChunks = Runtime.getRuntime().availableProcessors();
+        long[] chunks = getSegments(numberOfChunks);
+
+        Aggregation result = IntStream.range(0, chunks.length - 1).mapToObj(chunkIndex -> {
+            Aggregation aggregation = new Aggregation();
+            parseLoop(chunks[chunkIndex], chunks[chunkIndex + 1], aggregation, baseSize);
+            return aggregation;
+        }).parallel().reduce((left, right) -> {
+            left.mergeFrom(right);
+            return left;
+        }).orElseGet(Aggregation::new);
+
+        Stations stations = result.stations;
+        String[] names = new String[stations.size];
+        for (int id = 0; id < stations.size; id++) {
+            names[id] = stations.name(id);
+        }
+        // Station ids in output order, and each id's rank in it.
+        int[] byName = IntStream.range(0, stations.size).boxed()
+                .sorted((left, right) -> names[left].compareTo(names[right]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        int[] ranks = new int[stations.size];
+        for (int rank = 0; rank < byName.length; rank++) {
+            ranks[byName[rank]] = rank;
+        }
+
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < sizes.length; i++) {
+            Windows windows = result.windows.rollUp(sizes[i] / baseSize);
+            // Sort keys ordering by station name, then window; the window's sign bit is flipped to sort it unsigned.
+            long[] order = new long[windows.size];
+            int entries = 0;
+            for (int slot = 0; slot < windows.keys.length; slot++) {
+                long key = windows.keys[slot];
+                if (key != Windows.EMPTY) {
+                    order[entries++] = ((long) ranks[stationId(key)] << 32) | ((windowIndex(key) ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+                }
+            }
+            Arrays.sort(order);
+
+            output.append("== ").append(sizeSpecs[i]).append(" ==\n");
+            // Every window start recurs for each station, so it is formatted only once.
+            HashMap<Integer, String> windowStarts = new HashMap<>();
+            long size = sizes[i];
+            for (long sortKey : order) {
+                int station = byName[(int) (sortKey >>> 32)];
+                int window = (int) sortKey ^ Integer.MIN_VALUE;
+                int slot = windows.find(key(station, window));
+                output.append(names[station]).append(' ')
+                        .append(windowStarts.computeIfAbsent(window, w -> Instant.ofEpochSecond(w * size).toString())).append(' ')
+                        .append(round(windows.mins[slot] / 10.0)).append('/')
+                        .append(round((windows.sums[slot] / 10.0) / windows.counts[slot])).append('/')
+                        .append(round(windows.maxs[slot] / 10.0)).append('\n');
+            }
+        }
+        System.out.print(output);
+    }
+
+    private static long seconds(String size) {
+        long unit = switch (size.charAt(size.length() - 1)) {
+            case 's' -> 1;
+            case 'm' -> 60;
+            case 'h' -> 60 * 60;
+            case 'd' -> 24 * 60 * 60;
+            default -> throw new IllegalArgumentException("Window size needs an s, m, h or d suffix: " + size);
+        };
+        long seconds = Long.parseLong(size.substring(0, size.length() - 1)) * unit;
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("Window size must be positive: " + size);
+        }
+        return seconds;
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    static long key(int stationId, int windowIndex) {
+        return ((long) stationId << 32) | (windowIndex & 0xFFFFFFFFL);
+    }
+
+    static int stationId(long key) {
+        return (int) (key >>> 32);
+    }
+
+    static int windowIndex(long key) {
+        return (int) key;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10.0) / 10.0;
+    }
+
+    private static long[] getSegments(int numberOfChunks) throws IOException {
+        try (var fileChannel = FileChannel.open(Path.of(FILE), StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            long segmentSize = (fileSize + numberOfChunks - 1) / numberOfChunks;
+            long[] chunks = new long[numberOfChunks + 1];
+            long mappedAddress = fileChannel.map(MapMode.READ_ONLY, 0, fileSize, Arena.global()).address();
+            chunks[0] = mappedAddress;
+            long endAddress = mappedAddress + fileSize;
+            for (int i = 1; i < numberOfChunks; ++i) {
+                long chunkAddress = mappedAddress + i * segmentSize;
+                // Align to first row start.
+                while (chunkAddress < endAddress && UNSAFE.getByte(chunkAddress++) != '\n') {
+                    // nop
+                }
+                chunks[i] = Math.min(chunkAddress, endAddress);
+            }
+            chunks[numberOfChunks] = endAddress;
+            return chunks;
+        }
+    }
+
+    private static void parseLoop(long chunkStart, long chunkEnd, Aggregation aggregation, long windowSize) {
+        Stations stations = aggregation.stations;
+        Windows windows = aggregation.windows;
+        long scanPtr = chunkStart;
+        byte b;
+        while (scanPtr < chunkEnd) {
+            long nameAddress = scanPtr;
+            long hash = 0;
+
+            // Scan for ';' delimiter 8 bytes at a time, falling back to single bytes near the end of the chunk.
+            while (true) {
+                if (scanPtr + Long.BYTES <= chunkEnd) {
+                    long word = UNSAFE.getLong(scanPtr);
+                    long match = word ^ SEMICOLONS;
+                    long mask = (match - 0x0101010101010101L) & ~match & 0x8080808080808080L;
+                    if (mask != 0) {
+                        long lowest = Long.lowestOneBit(mask);
+                        hash = (hash ^ (word & ((lowest >>> 7) - 1))) * HASH_MULTIPLIER;
+                        scanPtr += Long.numberOfTrailingZeros(lowest) >>> 3;
+                        break;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    scanPtr += Long.BYTES;
+                }
+                else {
+                    long word = 0;
+                    for (int shift = 0; (b = UNSAFE.getByte(scanPtr)) != ';'; shift += 8, scanPtr++) {
+                        word |= (b & 0xFFL) << shift;
+                    }
+                    hash = (hash ^ word) * HASH_MULTIPLIER;
+                    break;
+                }
+            }
+            int nameLength = (int) (scanPtr - nameAddress);
+            scanPtr++;
+
+            // Parse timestamp.
+            long timestamp = 0;
+            boolean negative = UNSAFE.getByte(scanPtr) == '-';
+            if (negative) {
+                scanPtr++;
+            }
+            while ((b = UNSAFE.getByte(scanPtr++)) != ';') {
+                timestamp = timestamp * 10 + (b - '0');
+            }
+            int window = (int) Math.floorDiv(negative ? -timestamp : timestamp, windowSize);
+
+            // Parse number.
+            int number;
+            byte sign = UNSAFE.getByte(scanPtr++);
+            if (sign == '-') {
+                number = UNSAFE.getByte(scanPtr++) - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+                number = -number;
+            }
+            else {
+                number = sign - '0';
+                if ((b = UNSAFE.getByte(scanPtr++)) != '.') {
+                    number = number * 10 + (b - '0');
+                    scanPtr++;
+                }
+                number = number * 10 + (UNSAFE.getByte(scanPtr++) - '0');
+            }
+
+            int station = stations.id(nameAddress, nameLength, (int) (hash ^ (hash >>> 32)));
+            long key = key(station, window);
+            int slot;
+            if (stations.lastKeys[station] == key && stations.lastGeneration[station] == windows.generation) {
+                slot = stations.lastSlots[station];
+            }
+            else {
+                slot = windows.slot(key);
+                stations.lastKeys[station] = key;
+                stations.lastSlots[station] = slot;
+                stations.lastGeneration[station] = windows.generation;
+            }
+            windows.add(slot, number);
+
+            // Skip new line.
+            scanPtr++;
+        }
+    }
+
+    private static boolean nameEquals(long left, long right, int length) {
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            if (UNSAFE.getLong(left + i) != UNSAFE.getLong(right + i)) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (UNSAFE.getByte(left + i) != UNSAFE.getByte(right + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The station and window tables of one worker.
+     */
+    private static final class Aggregation {
+        final Stations stations = new Stations(1 << 10);
+        final Windows windows = new Windows(1 << 12);
+
+        void mergeFrom(Aggregation other) {
+            int[] ids = new int[other.stations.size];
+            for (int id = 0; id < other.stations.size; id++) {
+                ids[id] = stations.id(other.stations.nameAddresses[id], other.stations.nameLengths[id], other.stations.hashes[id]);
+            }
+            Windows from = other.windows;
+            for (int otherSlot = 0; otherSlot < from.keys.length; otherSlot++) {
+                long otherKey = from.keys[otherSlot];
+                if (otherKey != Windows.EMPTY) {
+                    windows.merge(windows.slot(key(ids[stationId(otherKey)], windowIndex(otherKey))), from, otherSlot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Station names to dense ids, names point into the mapped file. Also holds the per-station cache of the last
+     * window slot, valid while the window table's generation is unchanged.
+     */
+    private static final class Stations {
+        // Linear probing index, id + 1 per slot.
+        int[] index;
+        long[] nameAddresses;
+        int[] nameLengths;
+        int[] hashes;
+        long[] lastKeys;
+        int[] lastSlots;
+        int[] lastGeneration;
+        int size;
+
+        Stations(int capacity) {
+            index = new int[capacity * 2];
+            nameAddresses = new long[capacity];
+            nameLengths = new int[capacity];
+            hashes = new int[capacity];
+            lastKeys = new long[capacity];
+            lastSlots = new int[capacity];
+            lastGeneration = new int[capacity];
+        }
+
+        int id(long nameAddress, int nameLength, int hash) {
+            int mask = index.length - 1;
+            int slot = hash & mask;
+            int entry;
+            while ((entry = index[slot]) != 0) {
+                int id = entry - 1;
+                if (hashes[id] == hash && nameLengths[id] == nameLength && nameEquals(nameAddresses[id], nameAddress, nameLength)) {
+                    return id;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (size == nameAddresses.length) {
+                grow();
+                return id(nameAddress, nameLength, hash);
+            }
+            int id = size++;
+            nameAddresses[id] = nameAddress;
+            nameLengths[id] = nameLength;
+            hashes[id] = hash;
+            // No window slot cached yet.
+            lastGeneration[id] = -1;
+            index[slot] = id + 1;
+            return id;
+        }
+
+        String name(int id) {
+            byte[] bytes = new byte[nameLengths[id]];
+            UNSAFE.copyMemory(null, nameAddresses[id], bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void grow() {
+            int capacity = nameAddresses.length * 2;
+            nameAddresses = Arrays.copyOf(nameAddresses, capacity);
+            nameLengths = Arrays.copyOf(nameLengths, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            lastKeys = Arrays.copyOf(lastKeys, capacity);
+            lastSlots = Arrays.copyOf(lastSlots, capacity);
+            lastGeneration = Arrays.copyOf(lastGeneration, capacity);
+            index = new int[capacity * 2];
+            int mask = index.length - 1;
+            for (int id = 0; id < size; id++) {
+                int slot = hashes[id] & mask;
+                while (index[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                index[slot] = id + 1;
+            }
+        }
+    }
+
+    /**
+     * Aggregates keyed by packed (stationId, windowIndex), in a linear probing table. The generation changes
+     * whenever slots move.
+     */
+    private static final class Windows {
+        // Station id -1 never occurs.
+        static final long EMPTY = -1L;
+
+        long[] keys;
+        int[] mins;
+        int[] maxs;
+        long[] counts;
+        long[] sums;
+        int size;
+        int generation;
+
+        Windows(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            mins = new int[capacity];
+            maxs = new int[capacity];
+            counts = new long[capacity];
+            sums = new long[capacity];
+        }
+
+        private static int home(long key, int mask) {
+            return (int) ((key * HASH_MULTIPLIER) >>> 32) & mask;
+        }
+
+        int slot(long key) {
+            int mask = keys.length - 1;
+            int slot = home(key, mask);
+            long existing;
+            while ((existing = keys[slot]) != EMPTY) {
+                if (existing == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                return slot(key);
+            }
+            size++;
+            keys[slot] = key;
+            mins[slot] = Integer.MAX_VALUE;
+            maxs[slot] = Integer.MIN_VALUE;
+            return slot;
+        }
+
+        // Slot of an existing key.
+        int find(long key) {
+            int mask = keys.length - 1;
+            int slot = home(key, mask);
+            while (keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        void add(int slot, int value) {
+            mins[slot] = Math.min(mins[slot], value);
+            maxs[slot] = Math.max(maxs[slot], value);
+            counts[slot]++;
+            sums[slot] += value;
+        }
+
+        void merge(int slot, Windows other, int otherSlot) {
+            mins[slot] = Math.min(mins[slot], other.mins[otherSlot]);
+            maxs[slot] = Math.max(maxs[slot], other.maxs[otherSlot]);
+            counts[slot] += other.counts[otherSlot];
+            sums[slot] += other.sums[otherSlot];
+        }
+
+        /**
+         * Combines every factor consecutive windows into one.
+         */
+        Windows rollUp(long factor) {
+            if (factor == 1) {
+                return this;
+            }
+            Windows rolled = new Windows(Integer.highestOneBit(Math.max(size, 1)) << 2);
+            for (int slot = 0; slot < keys.length; slot++) {
+                long key = keys[slot];
+                if (key != EMPTY) {
+                    int window = (int) Math.floorDiv(windowIndex(key), factor);
+                    rolled.merge(rolled.slot(key(stationId(key), window)), this, slot);
+                }
+            }
+            return rolled;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldMins = mins;
+            int[] oldMaxs = maxs;
+            long[] oldCounts = counts;
+            long[] oldSums = sums;
+            allocate(oldKeys.length * 2);
+            generation++;
+            int mask = keys.length - 1;
+            for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+                long key = oldKeys[oldSlot];
+                if (key == EMPTY) {
+                    continue;
+                }
+                int slot = home(key, mask);
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                mins[slot] = oldMins[oldSlot];
+                maxs[slot] = oldMaxs[oldSlot];
+                counts[slot] = oldCounts[oldSlot];
+                sums[slot] = oldSums[oldSlot];
+            }
+        }
+    }
+}
@@ -24,6 +24,7 @@ import java.util.concurrent.ThreadLocalRandom;
 public class CreateMeasurements {
 
     private static final Path MEASUREMENT_FILE = Path.of("./measurements.txt");
+    private static final long TIMESTAMP_SPAN_SECONDS = 30L * 24 * 60 * 60;
 
     private record WeatherStation(String id, double meanTemperature) {
         double measurement() {
@@ -35,10 +36,14 @@ public class CreateMeasurements {
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("--timestamps"))) {
+            System.out.println("Usage: create_measurements.sh <number of records to create> [--timestamps]");
             System.exit(1);
         }
+        // Rows of the form station;epochSeconds;temperature, ascending over the 30 days before now.
+        boolean timestamps = args.length == 2;
+        long lastTimestamp = System.currentTimeMillis() / 1000;
+        long firstTimestamp = lastTimestamp - TIMESTAMP_SPAN_SECONDS;
 
         int size = 0;
         try {
@@ -496,6 +501,9 @@ public class CreateMeasurements {
                 }
                 WeatherStation station = stations.get(ThreadLocalRandom.current().nextInt(stations.size()));
                 bw.write(station.id());
+                if (timestamps) {
+                    bw.write(";" + (firstTimestamp + (long) ((double) i / size * TIMESTAMP_SPAN_SECONDS)));
+                }
                 bw.write(";" + station.measurement());
                 bw.write('\n');
             }
@@ -0,0 +1,229 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import dev.morling.onebrc.CalculateAverage_emersonmde_live.LiveStore;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process entry point for measurements, for services that would otherwise write text files to be scanned.
+ *
+ * Measurements go through producers, each owning one stripe of a live store: the fixed-capacity station index and
+ * fixed-point min/max/sum/count aggregates of the batch engines, guarded per stripe by a seqlock. Appending takes no
+ * lock and no atomic read-modify-write, and snapshots never stop producers. Stations can be passed by name, as bytes
+ * or as a memory segment, or by an id resolved once up front, which skips hashing and probing entirely; each also in
+ * batches, segment names as offsets and lengths into one segment.
+ *
+ * <pre>{@code
+ * MeasurementSink sink = new MeasurementSink(10_000, 4);
+ * int hamburg = sink.stationId("Hamburg");
+ * try (MeasurementSink.Producer producer = sink.producer()) {
+ *     producer.add(hamburg, (short) 123);
+ *     producer.add("Istanbul".getBytes(StandardCharsets.UTF_8), (short) -45);
+ * }
+ * AggregateSnapshot snapshot = sink.snapshot();
+ * }</pre>
+ */
+public final class MeasurementSink {
+    private final LiveStore store;
+    private final ArrayBlockingQueue<Integer> freeStripes;
+    private final AtomicLong snapshots = new AtomicLong();
+
+    /**
+     * @param stations most stations that will ever be added
+     * @param producers most producers open at the same time
+     */
+    public MeasurementSink(int stations, int producers) {
+        if (stations < 1 || stations > 1 << 29 || producers < 1) {
+            throw new IllegalArgumentException("Need 1 to 2^29 stations and at least one producer");
+        }
+        // Load factor of at most a half.
+        this.store = new LiveStore(Integer.highestOneBit(stations * 2 - 1) << 1, CalculateAverage_emersonmde_live.stripesFor(producers));
+        this.freeStripes = new ArrayBlockingQueue<>(store.stripes);
+        for (int stripe = 0; stripe < store.stripes; stripe++) {
+            freeStripes.add(stripe);
+        }
+    }
+
+    public int stationId(String name) {
+        return stationId(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public int stationId(byte[] name) {
+        return store.claim(name);
+    }
+
+    public int stationId(MemorySegment name) {
+        if (name.isNative()) {
+            return store.claim(checkAccessible(name).address(), Math.toIntExact(name.byteSize()));
+        }
+        return store.claim(name.toArray(ValueLayout.JAVA_BYTE));
+    }
+
+    /**
+     * Native names are read through their address, which skips the checks of segment accessors, so they are made up
+     * front. A shared arena must not be closed while a call that was given one of its segments is running.
+     */
+    private static MemorySegment checkAccessible(MemorySegment segment) {
+        if (!segment.scope().isAlive()) {
+            throw new IllegalStateException("Already closed");
+        }
+        if (!segment.isAccessibleBy(Thread.currentThread())) {
+            throw new WrongThreadException("Segment is confined to another thread");
+        }
+        return segment;
+    }
+
+    public String stationName(int stationId) {
+        byte[] name = store.name(checkStationId(stationId));
+        if (name == null) {
+            throw new IllegalArgumentException("Unknown station id " + stationId);
+        }
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Ids are slots of the store, so an id in range may still be one that was never issued.
+     */
+    private int checkStationId(int stationId) {
+        if (!store.isClaimed(Objects.checkIndex(stationId, store.capacity))) {
+            throw new IllegalArgumentException("Unknown station id " + stationId);
+        }
+        return stationId;
+    }
+
+    /**
+     * A producer for the calling thread; close it to make its stripe available to another one.
+     *
+     * @throws IllegalStateException if as many producers as configured are open already
+     */
+    public Producer producer() {
+        Integer stripe = freeStripes.poll();
+        if (stripe == null) {
+            throw new IllegalStateException("All " + store.stripes + " producers are in use");
+        }
+        return new Producer(stripe);
+    }
+
+    /**
+     * Merges all stripes of every station, while producers keep going.
+     */
+    public AggregateSnapshot snapshot() {
+        return AggregateSnapshot.of(snapshots.incrementAndGet(), store.snapshot());
+    }
+
+    /**
+     * Appends measurements to one stripe. Not thread-safe: use one producer per thread. A closed one throws
+     * IllegalStateException, its stripe may already belong to another producer.
+     */
+    public final class Producer implements AutoCloseable {
+        private final int stripe;
+        private final LiveStore.Writer writer;
+        private boolean closed;
+
+        private Producer(int stripe) {
+            this.stripe = stripe;
+            this.writer = store.writer(stripe);
+        }
+
+        public void add(int stationId, short tenths) {
+            checkOpen();
+            writer.add(checkStationId(stationId), tenths);
+        }
+
+        public void add(byte[] name, short tenths) {
+            checkOpen();
+            writer.add(store.claim(name), tenths);
+        }
+
+        public void add(MemorySegment name, short tenths) {
+            checkOpen();
+            writer.add(stationId(name), tenths);
+        }
+
+        /**
+         * The name is the given range of the segment, e.g. of a received buffer; native segments are not copied.
+         */
+        public void add(MemorySegment names, long offset, int length, short tenths) {
+            checkOpen();
+            Objects.checkFromIndexSize(offset, length, names.byteSize());
+            writer.add(claim(names, offset, length), tenths);
+        }
+
+        public void addAll(int[] stationIds, short[] tenths, int from, int to) {
+            checkOpen();
+            Objects.checkFromToIndex(from, to, Math.min(stationIds.length, tenths.length));
+            // All or nothing, so a rejected batch can be fixed and resent.
+            for (int i = from; i < to; i++) {
+                checkStationId(stationIds[i]);
+            }
+            for (int i = from; i < to; i++) {
+                writer.add(stationIds[i], tenths[i]);
+            }
+        }
+
+        public void addAll(byte[][] names, short[] tenths, int from, int to) {
+            checkOpen();
+            Objects.checkFromToIndex(from, to, Math.min(names.length, tenths.length));
+            for (int i = from; i < to; i++) {
+                writer.add(store.claim(names[i]), tenths[i]);
+            }
+        }
+
+        /**
+         * Name i is the range offsets[i], lengths[i] of the segment, e.g. of a received buffer holding many rows;
+         * native segments are not copied.
+         */
+        public void addAll(MemorySegment names, long[] offsets, int[] lengths, short[] tenths, int from, int to) {
+            checkOpen();
+            Objects.checkFromToIndex(from, to, Math.min(Math.min(offsets.length, lengths.length), tenths.length));
+            for (int i = from; i < to; i++) {
+                Objects.checkFromIndexSize(offsets[i], lengths[i], names.byteSize());
+            }
+            for (int i = from; i < to; i++) {
+                writer.add(claim(names, offsets[i], lengths[i]), tenths[i]);
+            }
+        }
+
+        private int claim(MemorySegment names, long offset, int length) {
+            if (names.isNative()) {
+                return store.claim(checkAccessible(names).address() + offset, length);
+            }
+            return store.claim(names.asSlice(offset, length).toArray(ValueLayout.JAVA_BYTE));
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                // Its stripe may belong to another producer by now, which must stay its single writer.
+                throw new IllegalStateException("Producer is closed");
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                freeStripes.add(stripe);
+            }
+        }
+    }
+}
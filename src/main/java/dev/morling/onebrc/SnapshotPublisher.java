@@ -0,0 +1,298 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Publishes snapshots of a running aggregation, e.g. of a {@link MeasurementSink} fed by a scan or of the live store
+ * behind the ingestion server (see {@code CalculateAverage_emersonmde_flow --live}), periodically and whenever
+ * {@link #publish()} is called.
+ *
+ * Snapshots are cumulative, so a subscriber only ever needs the newest one: instead of queueing, each subscription
+ * holds at most one undelivered snapshot, which a newer one replaces. A slow subscriber skips sequences but never
+ * falls behind by more than one snapshot, and never slows down the source or other subscribers. A subscriber that
+ * joins late immediately gets the latest snapshot once it requests one. {@link #complete()} publishes the final
+ * snapshot, which every subscriber receives before onComplete.
+ *
+ * <pre>{@code
+ * SnapshotPublisher publisher = new SnapshotPublisher(sink::snapshot, Duration.ofMillis(100));
+ * publisher.subscribe(subscriber);
+ * ... scan ...
+ * publisher.complete();
+ * }</pre>
+ */
+public final class SnapshotPublisher implements Flow.Publisher<AggregateSnapshot>, AutoCloseable {
+    private final Supplier<AggregateSnapshot> source;
+    private final Executor executor;
+    private final ScheduledExecutorService ticker;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Object lock = new Object();
+
+    // Guarded by lock
+    private AggregateSnapshot latest;
+    private boolean completed;
+    private Throwable failure;
+
+    /**
+     * Delivers on virtual threads and publishes every period, or only on demand if the period is zero.
+     */
+    public SnapshotPublisher(Supplier<AggregateSnapshot> source, Duration period) {
+        this(source, period, task -> Thread.ofVirtual().name("snapshot-subscriber").start(task));
+    }
+
+    public SnapshotPublisher(Supplier<AggregateSnapshot> source, Duration period, Executor executor) {
+        this.source = Objects.requireNonNull(source);
+        this.executor = Objects.requireNonNull(executor);
+        if (period.isNegative()) {
+            throw new IllegalArgumentException("Negative period: " + period);
+        }
+        if (period.isZero()) {
+            ticker = null;
+        }
+        else {
+            ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "snapshot-publisher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long nanos = period.toNanos();
+            ticker.scheduleAtFixedRate(this::publish, nanos, nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super AggregateSnapshot> subscriber) {
+        Subscription subscription = new Subscription(Objects.requireNonNull(subscriber));
+        synchronized (lock) {
+            subscription.pending.set(latest);
+            subscription.failure = failure;
+            subscription.completed = completed;
+            if (!completed && failure == null) {
+                subscriptions.add(subscription);
+            }
+        }
+        subscription.signal();
+    }
+
+    /**
+     * Takes a snapshot and offers it to every subscriber, unless no rows arrived since the last one.
+     */
+    public void publish() {
+        synchronized (lock) {
+            if (completed || failure != null) {
+                return;
+            }
+            AggregateSnapshot snapshot;
+            try {
+                snapshot = source.get();
+            }
+            catch (RuntimeException e) {
+                fail(e);
+                return;
+            }
+            if (snapshot.rows() == (latest == null ? 0 : latest.rows())) {
+                return;
+            }
+            latest = snapshot;
+            for (Subscription subscription : subscriptions) {
+                subscription.offer(snapshot);
+            }
+        }
+    }
+
+    /**
+     * Publishes the final snapshot, then completes every subscription once it has been delivered.
+     */
+    public void complete() {
+        stopTicker();
+        synchronized (lock) {
+            if (completed || failure != null) {
+                return;
+            }
+            AggregateSnapshot snapshot;
+            try {
+                snapshot = source.get();
+            }
+            catch (RuntimeException e) {
+                fail(e);
+                return;
+            }
+            if (latest == null || snapshot.rows() != latest.rows()) {
+                latest = snapshot;
+            }
+            completed = true;
+            for (Subscription subscription : subscriptions) {
+                subscription.pending.set(latest);
+                subscription.completed = true;
+                subscription.signal();
+            }
+            subscriptions.clear();
+        }
+    }
+
+    /**
+     * Fails every subscription right away, dropping undelivered snapshots.
+     */
+    public void fail(Throwable failure) {
+        Objects.requireNonNull(failure);
+        stopTicker();
+        synchronized (lock) {
+            if (completed || this.failure != null) {
+                return;
+            }
+            this.failure = failure;
+            for (Subscription subscription : subscriptions) {
+                subscription.failure = failure;
+                subscription.signal();
+            }
+            subscriptions.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        complete();
+    }
+
+    private void stopTicker() {
+        if (ticker != null) {
+            ticker.shutdown();
+        }
+    }
+
+    /**
+     * All signals to the subscriber come from drain(), which runs on the executor for one thread at a time: whoever
+     * increments wip from zero schedules it, and it loops until every signal it missed meanwhile is handled.
+     */
+    private final class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super AggregateSnapshot> subscriber;
+        private final AtomicReference<AggregateSnapshot> pending = new AtomicReference<>();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile boolean completed;
+        private volatile Throwable failure;
+
+        // Only touched by drain()
+        private boolean subscribed;
+        private boolean terminated;
+        private AggregateSnapshot delivered;
+
+        Subscription(Flow.Subscriber<? super AggregateSnapshot> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                failure = new IllegalArgumentException("Non-positive request: " + n);
+            }
+            else {
+                demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            signal();
+        }
+
+        void offer(AggregateSnapshot snapshot) {
+            pending.set(snapshot);
+            signal();
+        }
+
+        void signal() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                if (!terminated) {
+                    try {
+                        deliver();
+                    }
+                    catch (Throwable e) {
+                        // A subscriber must not throw; treat it as a cancellation
+                        terminate();
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void deliver() {
+            if (!subscribed) {
+                subscribed = true;
+                subscriber.onSubscribe(this);
+            }
+            if (cancelled) {
+                terminate();
+                return;
+            }
+            Throwable failure = this.failure;
+            if (failure != null) {
+                terminate();
+                subscriber.onError(failure);
+                return;
+            }
+            // The final snapshot may be offered again on completion; that needs no demand, or onComplete would wait
+            // for a request that never comes.
+            AggregateSnapshot offered = pending.get();
+            if (offered != null && offered == delivered) {
+                pending.compareAndSet(offered, null);
+            }
+            if (demand.get() > 0) {
+                AggregateSnapshot snapshot = pending.getAndSet(null);
+                if (snapshot != null && snapshot != delivered) {
+                    delivered = snapshot;
+                    demand.getAndUpdate(current -> current == Long.MAX_VALUE ? current : current - 1);
+                    subscriber.onNext(snapshot);
+                }
+            }
+            if (completed && pending.get() == null && !cancelled) {
+                terminate();
+                subscriber.onComplete();
+            }
+        }
+
+        private void terminate() {
+            terminated = true;
+            cancelled = true;
+            pending.set(null);
+            subscriptions.remove(this);
+        }
+    }
+}